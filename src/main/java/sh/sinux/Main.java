@@ -5,74 +5,218 @@ import picocli.CommandLine.*;
 import sh.sinux.command.*;
 import sh.sinux.config.Config;
 import sh.sinux.config.StorageType;
+import sh.sinux.output.NdjsonWriter;
+import sh.sinux.output.OutputFormat;
 import sh.sinux.repository.Repository;
 import sh.sinux.repository.RepositoryProxy;
 
+import java.net.URI;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+
 /**
  * The Main class is the entry point of the application.
  * It parses the command line arguments and executes the command by using Picocli.
- * It also initializes the configuration and the repository proxy.
+ * It also initializes the configuration and the repository proxy, lazily: only when a command
+ * asks for them (so {@code --help} or {@code --version} never touch the storage).
  * @author sinux-l5d
  * @version 1.0
  */
 @Command(name = "snipit", mixinStandardHelpOptions = true, version = "snipit 1.0", synopsisSubcommandLabel = "COMMAND",
-        description = "A simple snippet manager",
-        subcommands = {
-                ListCommand.class,
-                AddCommand.class,
-                RemoveCommand.class,
-                ListTagsCommand.class,
-                SearchCommand.class,
-                InfoCommand.class,
-                ShowCommand.class,
-        })
+        description = "A simple snippet manager")
 public class Main {
 
     /**
-     * The path to the directory where the snippets are stored.
+     * The subcommands, by name, in the order of the usage help.
+     * They are registered by {@link #commandLine(Main, String[])}.
+     */
+    private static final Map<String, Class<?>> SUBCOMMANDS = new LinkedHashMap<>();
+    static {
+        SUBCOMMANDS.put("list", ListCommand.class);
+        SUBCOMMANDS.put("add", AddCommand.class);
+        SUBCOMMANDS.put("remove", RemoveCommand.class);
+        SUBCOMMANDS.put("list-tags", ListTagsCommand.class);
+        SUBCOMMANDS.put("search", SearchCommand.class);
+        SUBCOMMANDS.put("info", InfoCommand.class);
+        SUBCOMMANDS.put("show", ShowCommand.class);
+        SUBCOMMANDS.put("edit", EditCommand.class);
+        SUBCOMMANDS.put("history", HistoryCommand.class);
+        SUBCOMMANDS.put("dupes", DupesCommand.class);
+        SUBCOMMANDS.put("migrate", MigrateCommand.class);
+        SUBCOMMANDS.put("maintain", MaintainCommand.class);
+        SUBCOMMANDS.put("serve", ServeCommand.class);
+        SUBCOMMANDS.put("completion", CompletionCommand.class);
+    }
+
+    /** The options of the main command taking a value, to find the subcommand in the arguments */
+    private static final Set<String> OPTIONS_WITH_VALUE = Set.of("-p", "--path", "--output");
+
+    /**
+     * The paths to the directories where the snippets are stored.
      * For the defaults, see {@link Config#fsAppDir()}
+     * When repeated, the storages are federated, each one under a namespace ({@code namespace=path},
+     * or the name of the directory by default).
+     * An HTTP URL refers to a storage served by {@code snipit serve}.
      */
-    @Option(names = {"-p", "--path"}, description = "Path to the storage")
-    String storagePath;
+    @Option(names = {"-p", "--path"}, description = "Path (or http:// URL) to the storage. Repeat it to search several storages at once, "
+            + "optionally named with NAMESPACE=PATH", paramLabel = "[NAMESPACE=]PATH")
+    String[] storagePaths;
+
+    /**
+     * The output format of the commands listing snippets or tags: human-oriented text,
+     * or one JSON object per line for tools, see {@link #ndjson()}.
+     */
+    @Option(names = {"--output"}, description = "Output format of list, list-tags, search and info: ${COMPLETION-CANDIDATES} (default: ${DEFAULT-VALUE})",
+            paramLabel = "FORMAT", defaultValue = "text")
+    OutputFormat outputFormat;
+
+    /** The writer shared by the commands in NDJSON output, created on first use */
+    private NdjsonWriter ndjson;
+
+    /** A mounted storage, with its namespace */
+    private static final Pattern MOUNT = Pattern.compile("^([A-Za-z0-9_-]+)=(.+)$");
 
     /**
      * Program entry point.
      * Parse the command line arguments and execute the command.
-     * Uses {@link Main#executionStrategy(ParseResult)} strategy to init the application before executing the command.
+     * Uses {@link Main#executionStrategy(ParseResult)} strategy to execute the command.
      * @param args the command line arguments
      */
     public static void main(String[] args) {
         var app = new Main();
-        int exitCode = new CommandLine(app).setExecutionStrategy(app::executionStrategy).execute(args);
+        int exitCode = commandLine(app, args).setExecutionStrategy(app::executionStrategy).execute(args);
         System.exit(exitCode);
     }
 
     /**
-     * The execution strategy is called by picocli before executing the command.
-     * It calls {@link Main#init()} to initialize the configuration and the repository proxy.
+     * Build the picocli model of the application.
+     * Only the invoked subcommand is registered, so the model of the other ones is never built
+     * (nor their classes loaded). Every subcommand is registered when none is invoked,
+     * for the usage help (or a completion script) to list them.
+     * @param app the main command
+     * @param args the command line arguments
+     * @return the command line, ready to execute
+     */
+    public static CommandLine commandLine(Main app, String[] args) {
+        var commandLine = new CommandLine(app).setCaseInsensitiveEnumValuesAllowed(true);
+        var invoked = invokedSubcommand(args);
+        if (invoked != null) {
+            commandLine.addSubcommand(invoked, SUBCOMMANDS.get(invoked));
+        } else {
+            SUBCOMMANDS.forEach(commandLine::addSubcommand);
+        }
+        return commandLine;
+    }
+
+    /**
+     * Find the subcommand invoked by the command line arguments, skipping the options of the main command.
+     * @param args the command line arguments
+     * @return the name of the subcommand, or null if there is none (or an unknown one)
+     */
+    private static String invokedSubcommand(String[] args) {
+        for (int i = 0; i < args.length; i++) {
+            var arg = args[i];
+            if (OPTIONS_WITH_VALUE.contains(arg)) {
+                i++; // skip the value
+            } else if (!arg.startsWith("-")) {
+                return SUBCOMMANDS.containsKey(arg) ? arg : null;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * The execution strategy is called by picocli to execute the command.
+     * Nothing is initialized here: commands call {@link Main#repository()} or {@link Main#config()}
+     * which initialize what they need on first use.
+     * Once the command is executed, the buffered output is written,
+     * then the changes it made to the repository are made durable.
      * @param parseResult the result of the parsing of the command line arguments
      * @return an integer representing the exit code of the command
      */
     private int executionStrategy(ParseResult parseResult) {
-        init(); // custom initialization to be done before executing any command or subcommand
-        return new CommandLine.RunLast().execute(parseResult); // default execution strategy
+        try {
+            return new CommandLine.RunLast().execute(parseResult); // default execution strategy
+        } finally {
+            if (ndjson != null) ndjson.flush();
+            if (RepositoryProxy.getInstance() != null) RepositoryProxy.getInstance().flush();
+        }
     }
 
     /**
      * Initialize the configuration and the repository proxy.
-     * The configuration is initialized with the storage path specified by the user (if specified).
-     * The repository proxy is initialized with the storage type specified in the configuration.
+     * The repository proxy is initialized with the storage type specified in the configuration, see {@link #config()}.
      */
     public void init() {
-        if (storagePath == null) {
-            Config.create();
-        } else {
-            Config.create(StorageType.FILESYSTEM, storagePath);
-        }
-        RepositoryProxy.create(Config.getInstance());
+        RepositoryProxy.create(config());
     }
 
+    /**
+     * Get the repository, initializing it on first use.
+     * The repository does not read the list of snippets until a command needs it.
+     * @return the repository
+     */
     public Repository repository() {
+        if (RepositoryProxy.getInstance() == null) init();
         return RepositoryProxy.getInstance();
     }
-}
\ No newline at end of file
+
+    /**
+     * Get the writer of the records in NDJSON output.
+     * It is buffered and shared by the commands, and flushed once the command is executed.
+     * @return the writer, or null if the output format is text
+     */
+    public NdjsonWriter ndjson() {
+        if (outputFormat != OutputFormat.NDJSON) return null;
+        if (ndjson == null) ndjson = NdjsonWriter.stdout();
+        return ndjson;
+    }
+
+    /**
+     * Get the configuration of the application, initializing it on first use.
+     * The configuration is initialized with the storage path specified by the user (if specified).
+     * @return the configuration
+     */
+    public Config config() {
+        if (Config.getInstance() == null) {
+            if (storagePaths == null) {
+                Config.create();
+            } else if (storagePaths.length == 1 && !MOUNT.matcher(storagePaths[0]).matches()) {
+                Config.create(storageType(storagePaths[0]), storagePaths[0]);
+            } else {
+                var mounts = new LinkedHashMap<String, Config>();
+                for (var storagePath : storagePaths) {
+                    var mount = MOUNT.matcher(storagePath);
+                    var path = mount.matches() ? mount.group(2) : storagePath;
+                    var namespace = mount.matches() ? mount.group(1) : defaultNamespace(path);
+                    if (mounts.putIfAbsent(namespace, Config.mount(storageType(path), path)) != null)
+                        throw new ParameterException(new CommandLine(this), "Duplicate storage namespace: " + namespace);
+                }
+                Config.create(mounts);
+            }
+        }
+        return Config.getInstance();
+    }
+
+    /**
+     * Get the type of a storage from its path.
+     * @param path the path given by the user
+     * @return {@link StorageType#REMOTE} for an HTTP URL, {@link StorageType#FILESYSTEM} otherwise
+     */
+    private static StorageType storageType(String path) {
+        return path.startsWith("http://") || path.startsWith("https://") ? StorageType.REMOTE : StorageType.FILESYSTEM;
+    }
+
+    /**
+     * Get the namespace of a mounted storage not named by the user.
+     * @param path the path given by the user
+     * @return the host of an HTTP URL, the name of the directory otherwise
+     */
+    private static String defaultNamespace(String path) {
+        if (storageType(path) == StorageType.REMOTE) return URI.create(path).getHost();
+        return Path.of(path).getFileName().toString();
+    }
+}
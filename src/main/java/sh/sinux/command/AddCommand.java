@@ -5,6 +5,7 @@ import picocli.CommandLine.ParentCommand;
 import picocli.CommandLine.Parameters;
 import picocli.CommandLine.Option;
 import sh.sinux.Main;
+import sh.sinux.repository.Repository;
 
 import java.io.File;
 import java.io.IOException;
@@ -54,6 +55,10 @@ public class AddCommand implements Callable<Integer> {
 
         if (name == null) name = input.getName();
         if (tags == null) tags = new String[0];
+        if (!Repository.isValidName(name)) {
+            System.out.println("Invalid snippet name: it cannot contain '/', '\\', '..' or NUL");
+            return 1;
+        }
 
 
         var ok = repo.save(name, fileContent, tags);
@@ -0,0 +1,108 @@
+package sh.sinux.command;
+
+import picocli.AutoComplete;
+import picocli.CommandLine.Command;
+import picocli.CommandLine.ParentCommand;
+import sh.sinux.Main;
+import sh.sinux.config.StorageType;
+
+import java.nio.file.Path;
+import java.util.concurrent.Callable;
+
+/**
+ * The Completion command is the user api to get a completion script for bash (or zsh, with bashcompinit).
+ * Commands and options are completed by the script generated by picocli. Snippet names and tags are looked up
+ * by prefix in the sorted completion index of a filesystem storage, with {@code look}: the JVM is never started.
+ * Use it with {@code source <(snipit completion)}.
+ * @author sinux-l5d
+ * @version 1.1
+ */
+@Command(name = "completion", description = "Print a bash completion script", mixinStandardHelpOptions = true)
+public class CompletionCommand implements Callable<Integer> {
+
+    @ParentCommand
+    private Main main;
+
+    /** Completes snippet names and tags from the index, then falls back to the script generated by picocli */
+    private static final String INDEX_COMPLETION = """
+            # Snippet names and tags, looked up in the completion index of the storage
+            _snipit_completion_dir=%s
+
+            function _snipit_lookup() {
+              if command -v look >/dev/null 2>&1; then
+                LC_ALL=C look -- "$2" "$1" 2>/dev/null
+              else
+                LC_ALL=C awk -v prefix="$2" 'index($0, prefix) == 1' "$1" 2>/dev/null
+              fi
+            }
+
+            # The names of the index, with the ones added and removed since it was written (in names.delta)
+            function _snipit_names() {
+              local delta="${_snipit_completion_dir}/names.delta"
+              if [[ -s ${delta} ]]; then
+                { _snipit_lookup "${_snipit_completion_dir}/names" "$1" | sed 's/^/=/'
+                  LC_ALL=C awk -v prefix="$1" 'index($0, prefix) == 2' "${delta}"
+                } | LC_ALL=C awk '{ name = substr($0, 2); if (substr($0, 1, 1) == "-") delete names[name]; else names[name] = 1 }
+                                  END { for (name in names) print name }'
+              else
+                _snipit_lookup "${_snipit_completion_dir}/names" "$1"
+              fi
+            }
+
+            function _snipit_complete() {
+              local curr_word=${COMP_WORDS[COMP_CWORD]}
+              local prev_word=${COMP_WORDS[COMP_CWORD-1]}
+              local subcommand="" positional=0 i word
+              for (( i = 1; i < COMP_CWORD; i++ )); do
+                word=${COMP_WORDS[i]}
+                case ${word} in
+                  -p|--path|--output|-r|--rev|-n|--name) (( i++ )) ;;
+                  -t|--tag) [[ ${subcommand} == add || ${subcommand} == edit ]] && (( i++ )) ;;
+                  -*) ;;
+                  *) if [[ -z ${subcommand} ]]; then subcommand=${word}; else (( positional++ )); fi ;;
+                esac
+              done
+
+              if [[ ${subcommand} == add || ${subcommand} == edit ]] && [[ ${prev_word} == -t || ${prev_word} == --tag ]]; then
+                type compopt &>/dev/null && compopt +o default
+                local IFS=$'\\n'
+                COMPREPLY=( $(_snipit_lookup "${_snipit_completion_dir}/tags" "${curr_word}" | cut -f1) )
+                return
+              fi
+              case ${subcommand} in
+                show|info|remove|edit|history)
+                  if [[ ${curr_word} != -* && ${prev_word} != -r && ${prev_word} != --rev && ${prev_word} != -t && ${prev_word} != --tag ]] \\
+                      && (( positional == 0 )); then
+                    type compopt &>/dev/null && compopt +o default
+                    local IFS=$'\\n'
+                    COMPREPLY=( $(_snipit_names "${curr_word}") )
+                    return
+                  fi
+                  ;;
+              esac
+              _complete_snipit "$@"
+            }
+
+            complete -F _snipit_complete -o default snipit snipit.sh snipit.bash
+            """;
+
+    /**
+     * The call method is called by picocli when the command is executed.
+     * It prints the completion script, building the completion index of the storage if needed.
+     * @return 0
+     */
+    @Override
+    public Integer call() {
+        System.out.println(AutoComplete.bash("snipit", Main.commandLine(new Main(), new String[0])));
+
+        var config = main.config();
+        if (config.getStorageType() != StorageType.FILESYSTEM) {
+            System.err.println("Snippet names and tags are only completed for a filesystem storage");
+            return 0;
+        }
+        main.repository(); // builds the completion index, if missing or stale
+        var dir = Path.of(config.getStoragePath()).toAbsolutePath().resolve("completion").toString();
+        System.out.print(INDEX_COMPLETION.formatted("'" + dir.replace("'", "'\\''") + "'"));
+        return 0;
+    }
+}
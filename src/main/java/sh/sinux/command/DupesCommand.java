@@ -0,0 +1,59 @@
+package sh.sinux.command;
+
+import picocli.CommandLine.Command;
+import picocli.CommandLine.Option;
+import picocli.CommandLine.ParentCommand;
+import sh.sinux.Main;
+import sh.sinux.similarity.LshIndex;
+
+import java.util.concurrent.Callable;
+
+/**
+ * The Dupes command is the user api to find near-duplicate snippets.
+ * It prints the pairs of snippets whose contents are similar enough, the most similar first.
+ * Similarity is estimated from the MinHash signatures of the snippets, and only the pairs
+ * sharing a locality-sensitive hashing bucket are compared.
+ * @author sinux-l5d
+ * @version 1.1
+ */
+@Command(name = "dupes", description = "Find near-duplicate snippets", mixinStandardHelpOptions = true)
+public class DupesCommand implements Callable<Integer> {
+
+    @ParentCommand
+    private Main main;
+
+    /** The minimum similarity of the pairs to print */
+    @Option(names = {"-s", "--similarity"}, description = "Minimum similarity, from 0 to 1 (default: ${DEFAULT-VALUE})")
+    double threshold = 0.8;
+
+    /**
+     * The call method is called by picocli when the command is executed.
+     * It prints the pairs of near-duplicate snippets with their similarity.
+     * @return 0 if the search was done, 1 if the threshold is invalid
+     */
+    @Override
+    public Integer call() {
+        if (threshold <= 0 || threshold > 1) {
+            System.out.println("The similarity must be greater than 0 and at most 1");
+            return 1;
+        }
+
+        var repo = main.repository();
+        var index = new LshIndex(threshold);
+        for (var name : repo.listNames()) {
+            var signature = repo.getSignature(name);
+            if (signature != null) index.add(name, signature);
+        }
+
+        var pairs = index.pairs();
+        if (pairs.isEmpty()) {
+            System.out.println("No duplicates found");
+            return 0;
+        }
+        System.out.println("Duplicates found:");
+        for (var pair : pairs) {
+            System.out.printf("  - %s <-> %s (%d%%)%n", pair.first(), pair.second(), Math.round(pair.similarity() * 100));
+        }
+        return 0;
+    }
+}
@@ -0,0 +1,92 @@
+package sh.sinux.command;
+
+import picocli.CommandLine.Command;
+import picocli.CommandLine.Option;
+import picocli.CommandLine.Parameters;
+import picocli.CommandLine.ParentCommand;
+import sh.sinux.Main;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Objects;
+import java.util.concurrent.Callable;
+
+/**
+ * The Edit command is the user api to change a snippet, keeping its previous versions (see the 'history' command).
+ * The new content is read from a file, or edited with the editor of the user ($VISUAL, $EDITOR, or vi) if none is given.
+ * The tags are kept, unless new ones are given with the -t option (repeated multiple times).
+ * @author sinux-l5d
+ * @version 1.1
+ */
+@Command(name = "edit", description = "Edit a snippet, keeping its history", mixinStandardHelpOptions = true)
+public class EditCommand implements Callable<Integer> {
+
+    @ParentCommand
+    private Main main;
+
+    /** The unique name of the snippet to edit */
+    @Parameters(index = "0", description = "The unique name of the snippet to edit", paramLabel = "NAME")
+    private String name;
+
+    /** The file to read the new content from (optional) */
+    @Parameters(index = "1", arity = "0..1", description = "The file with the new content (default to editing the snippet)", paramLabel = "FILE")
+    private File input;
+
+    /** The new tags of the snippet */
+    @Option(names = {"-t", "--tag"}, description = "The new tags of the snippet (default to keeping them)")
+    private String[] tags;
+
+    /**
+     * The call method is called by picocli when the command is executed.
+     * It reads the new content and updates the snippet.
+     * @return 0 if the snippet was updated, 1 if the snippet was not found or an error occurred
+     */
+    @Override
+    public Integer call() {
+        var repo = main.repository();
+        var snippet = repo.get(name);
+        if (snippet == null) {
+            System.out.println("Snippet not found");
+            return 1;
+        }
+
+        String content;
+        try {
+            content = input != null ? Files.readString(input.toPath()) : edit(snippet.content());
+        } catch (IOException e) {
+            System.out.println("Cannot read the new content: " + e.getMessage());
+            return 1;
+        }
+        if (content == null) return 1;
+
+        if (tags == null) tags = snippet.tags();
+        var ok = repo.update(name, content, tags);
+        return ok ? 0 : 1;
+    }
+
+    /**
+     * Edit a content with the editor of the user, in a temporary file.
+     * @param content the content to edit
+     * @return the edited content, or null if the editor failed
+     * @throws IOException if the temporary file cannot be written or read
+     */
+    private static String edit(String content) throws IOException {
+        var editor = Objects.requireNonNullElse(System.getenv("VISUAL"), Objects.requireNonNullElse(System.getenv("EDITOR"), "vi"));
+        var file = Files.createTempFile("snipit-", ".txt");
+        try {
+            Files.writeString(file, content);
+            var process = new ProcessBuilder("sh", "-c", editor + " \"$0\"", file.toString()).inheritIO().start();
+            if (process.waitFor() != 0) {
+                System.out.println("The editor failed: " + editor);
+                return null;
+            }
+            return Files.readString(file);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+}
@@ -0,0 +1,49 @@
+package sh.sinux.command;
+
+import picocli.CommandLine.Command;
+import picocli.CommandLine.Parameters;
+import picocli.CommandLine.ParentCommand;
+import sh.sinux.Main;
+
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+
+/**
+ * The History command is the user api to list the revisions of a snippet.
+ * A revision can be shown with {@code show --rev N}.
+ * @author sinux-l5d
+ * @version 1.1
+ */
+@Command(name = "history", description = "List the revisions of a snippet", mixinStandardHelpOptions = true)
+public class HistoryCommand implements Runnable {
+
+    @ParentCommand
+    private Main main;
+
+    /** The unique name of the snippet */
+    @Parameters(index = "0", description = "The snippet name")
+    String name;
+
+    /** Format of the time of a revision */
+    private static final DateTimeFormatter TIME = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm").withZone(ZoneId.systemDefault());
+
+    /**
+     * The run method is called by picocli when the command is executed.
+     * It prints the revisions of the snippet, the current one last.
+     */
+    @Override
+    public void run() {
+        var history = main.repository().history(name);
+        if (history == null) {
+            System.out.println("Snippet not found");
+            return;
+        }
+        System.out.println("Revisions:");
+        for (var revision : history) {
+            var time = revision.time() == 0 ? "unknown" : TIME.format(Instant.ofEpochMilli(revision.time()));
+            System.out.println("  - " + revision.number() + "  " + time + "  " + revision.size() + " bytes"
+                    + "  [" + String.join(",", revision.tags()) + "]");
+        }
+    }
+}
@@ -9,8 +9,10 @@ import sh.sinux.Main;
  * The Info command is the user api to get information about a snippet.
  * It prints the name, the tags and the location of the snippet (a string
  * meaningful for the current Repository type, like a filesystem path).
+ * In NDJSON output, it writes them as a {@code {"name":...,"tags":[...],"location":...}} record.
+ * The content of the snippet is not read.
  * @author sinux-l5d
- * @version 1.0
+ * @version 1.1
  */
 @Command(name = "info", description = "Show snippet info", mixinStandardHelpOptions = true)
 public class InfoCommand implements Runnable {
@@ -29,18 +31,29 @@ public class InfoCommand implements Runnable {
      */
     @Override
     public void run() {
-        var snippet = main.repository().get(name);
-        if (snippet == null) {
-            System.out.println("Snippet not found");
+        var repository = main.repository();
+        var snippetTags = repository.getTags(name);
+        var location = snippetTags == null ? null : repository.getLocation(name);
+        var ndjson = main.ndjson();
+        // The snippet may have been removed between the two reads
+        if (location == null) {
+            (ndjson == null ? System.out : System.err).println("Snippet not found");
             return;
         }
-        System.out.println("Name: " + snippet.name());
+        if (ndjson != null) {
+            ndjson.beginRecord();
+            ndjson.field("name", name);
+            ndjson.field("tags", snippetTags);
+            ndjson.field("location", location.isEmpty() ? null : location);
+            ndjson.endRecord();
+            return;
+        }
+        System.out.println("Name: " + name);
 
-        var tags = String.join(", ", snippet.tags());
+        var tags = String.join(", ", snippetTags);
         System.out.println("Tags: " + (tags.isEmpty() ? "none" : tags));
 
         // location
-        var location = snippet.location();
         System.out.println("Location: " + (location.isEmpty() ? "none" : location));
 
         System.out.println("To show content, use the 'show' command");
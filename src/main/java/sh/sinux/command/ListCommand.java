@@ -4,12 +4,19 @@ import picocli.CommandLine.Command;
 import picocli.CommandLine.Option;
 import picocli.CommandLine.ParentCommand;
 import sh.sinux.Main;
+import sh.sinux.output.NdjsonWriter;
+import sh.sinux.repository.Page;
+
+import java.util.Map;
 
 /**
  * The List command is the user api to list snippets.
- * It prints the name of the snippets, along with their tags if specified.
+ * It prints the name of the snippets, sorted, along with their tags if specified.
+ * The listing can be filtered by a prefix and cut in pages: the cursor printed after a page lists the next one.
+ * In NDJSON output, each snippet is a {@code {"name":...,"tags":[...]}} record, and the cursor a final
+ * {@code {"cursor":...}} record.
  * @author sinux-l5d
- * @version 1.0
+ * @version 1.1
  */
 @Command(name = "list", description = "List all snippets", mixinStandardHelpOptions = true)
 public class ListCommand implements Runnable {
@@ -21,27 +28,70 @@ public class ListCommand implements Runnable {
     @Option(names = {"-t", "--tag"}, description = "Show tags along with snippet names")
     Boolean showTags = false;
 
+    /** Only list the names starting with this prefix */
+    @Option(names = {"--prefix"}, description = "Only list the snippets whose name starts with PREFIX", paramLabel = "PREFIX")
+    String prefix;
+
+    /** The maximum number of names to list */
+    @Option(names = {"--limit"}, description = "List at most N snippets, then print the cursor of the next page", paramLabel = "N")
+    Integer limit;
+
+    /** The cursor of the page to list */
+    @Option(names = {"--after"}, description = "List the page following the one which printed CURSOR", paramLabel = "CURSOR")
+    String after;
+
     /**
      * The run method is called by picocli when the command is executed.
-     * It prints the name of the snippets, along with their tags if specified.
+     * It prints the name of the snippets, along with their tags if specified,
+     * then the cursor of the next page if there is one.
      */
     @Override
     public void run() {
-        var snippetNames = main.repository().listNames();
+        var ndjson = main.ndjson();
+        Page page;
+        try {
+            page = main.repository().listNames(prefix, after, limit == null ? Integer.MAX_VALUE : limit);
+        } catch (IllegalArgumentException e) {
+            (ndjson == null ? System.out : System.err).println("Invalid page: " + e.getMessage());
+            return;
+        }
+        var snippetNames = page.names();
+        // Fetch the tags of every snippet at once, without their content
+        Map<String, String[]> tagsByName = showTags && !snippetNames.isEmpty()
+                ? main.repository().getAllTags(snippetNames) : Map.of();
+        if (ndjson != null) {
+            writeNdjson(ndjson, page, tagsByName);
+            return;
+        }
         if (snippetNames.isEmpty()) {
             System.out.println("No snippets found");
             return;
         }
         System.out.println("Snippets:");
         for (var snippetName : snippetNames) {
-            String tags = "";
-            if (showTags) {
-                var snippet = main.repository().get(snippetName);
-                if (snippet != null) {
-                    tags = String.join(",", snippet.tags());
-                }
-            }
+            String tags = String.join(",", tagsByName.getOrDefault(snippetName, new String[0]));
             System.out.println("  - " + snippetName + (showTags ? " [" + tags + "]" : ""));
         }
+        if (page.cursor() != null) System.out.println("More snippets: use --after " + page.cursor());
+    }
+
+    /**
+     * Write the page as NDJSON records.
+     * @param ndjson the writer
+     * @param page the page of names
+     * @param tagsByName the tags of the snippets, by name (empty if the tags are not shown)
+     */
+    private void writeNdjson(NdjsonWriter ndjson, Page page, Map<String, String[]> tagsByName) {
+        for (var snippetName : page.names()) {
+            ndjson.beginRecord();
+            ndjson.field("name", snippetName);
+            if (showTags) ndjson.field("tags", tagsByName.getOrDefault(snippetName, new String[0]));
+            ndjson.endRecord();
+        }
+        if (page.cursor() != null) {
+            ndjson.beginRecord();
+            ndjson.field("cursor", page.cursor());
+            ndjson.endRecord();
+        }
     }
 }
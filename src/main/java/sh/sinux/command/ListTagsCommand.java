@@ -1,34 +1,116 @@
 package sh.sinux.command;
 
 import picocli.CommandLine.Command;
+import picocli.CommandLine.Option;
 import picocli.CommandLine.ParentCommand;
 import sh.sinux.Main;
+import sh.sinux.repository.TagStats;
+
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.stream.Stream;
 
 /**
  * The ListTags command is the user api to list all tags ever used.
- * It prints the name of the tags.
+ * It prints the name of the tags, sorted by name (as {@code {"tag":...}} records in NDJSON output).
+ * Sorted by count, it prints the usage of each tag instead, the most used first: the number of snippets with it
+ * and their total size (as {@code {"tag":...,"count":...,"bytes":...}} records in NDJSON output).
+ * Both are read from the aggregates of the repository, as they're streamed: with a limit, only the first tags
+ * are kept, instead of sorting them all.
  * @author sinux-l5d
- * @version 1.0
+ * @version 1.1
  */
 @Command(name = "list-tags", description = "List all tags", mixinStandardHelpOptions = true)
 public class ListTagsCommand implements Runnable {
 
+    /** The orders of the tags */
+    enum Sort {
+        /** By name (by their UTF-8 bytes, see {@link TagStats#BY_TAG}) */
+        NAME,
+        /** The most used first, with their usage */
+        COUNT;
+
+        /**
+         * Returns the name of the order, as given on the command line.
+         * @return the name of the order
+         */
+        @Override
+        public String toString() {
+            return name().toLowerCase();
+        }
+    }
+
     @ParentCommand
     private Main main;
+
+    /** The order of the tags */
+    @Option(names = {"--sort"}, description = "Order of the tags: ${COMPLETION-CANDIDATES} (default: ${DEFAULT-VALUE}); count prints the usage of each tag",
+            paramLabel = "ORDER", defaultValue = "name")
+    Sort sort;
+
+    /** The maximum number of tags to list */
+    @Option(names = {"--limit"}, description = "List at most N tags", paramLabel = "N")
+    Integer limit;
+
     /**
      * The run method is called by picocli when the command is executed.
-     * It prints the name of the tags.
+     * It prints the name of the tags, or their usage if sorted by count.
      */
     @Override
     public void run() {
-        var tags = main.repository().listTags();
-        if (tags.isEmpty()) {
+        var ndjson = main.ndjson();
+        if (limit != null && limit < 1) {
+            (ndjson == null ? System.out : System.err).println("Invalid limit: it must be positive");
+            return;
+        }
+        boolean count = sort == Sort.COUNT;
+        List<TagStats> stats;
+        try (var stream = main.repository().streamTagStats()) {
+            stats = first(stream, count ? TagStats.BY_COUNT : TagStats.BY_TAG, limit == null ? Integer.MAX_VALUE : limit);
+        }
+        if (ndjson != null) {
+            for (var stat : stats) {
+                ndjson.beginRecord();
+                ndjson.field("tag", stat.tag());
+                if (count) {
+                    ndjson.field("count", stat.count());
+                    ndjson.field("bytes", stat.bytes());
+                }
+                ndjson.endRecord();
+            }
+            return;
+        }
+        if (stats.isEmpty()) {
             System.out.println("No tags found");
             return;
         }
         System.out.println("Tags:");
-        for (var tag : tags) {
-            System.out.println("  - " + tag);
+        for (var stat : stats) {
+            if (!count) System.out.println("  - " + stat.tag());
+            else System.out.println("  - " + stat.tag() + " (" + stat.count() + (stat.count() == 1 ? " snippet, " : " snippets, ")
+                    + stat.bytes() + " bytes)");
         }
     }
+
+    /**
+     * Keep the first tags in an order, as they're streamed: a heap holds at most the limit,
+     * so that it costs the number of tags times the log of the limit, instead of sorting them all.
+     * @param stats the usage of the tags
+     * @param order the order of the tags
+     * @param max the maximum number of tags to keep
+     * @return the first tags, sorted
+     */
+    private static List<TagStats> first(Stream<TagStats> stats, Comparator<TagStats> order, int max) {
+        if (max == Integer.MAX_VALUE) return stats.sorted(order).toList();
+        var heap = new PriorityQueue<TagStats>(max, order.reversed());
+        stats.forEach(stat -> {
+            if (heap.size() < max) heap.add(stat);
+            else if (order.compare(stat, heap.peek()) < 0) {
+                heap.poll();
+                heap.add(stat);
+            }
+        });
+        return heap.stream().sorted(order).toList();
+    }
 }
@@ -0,0 +1,33 @@
+package sh.sinux.command;
+
+import picocli.CommandLine.Command;
+import picocli.CommandLine.ParentCommand;
+import sh.sinux.Main;
+
+/**
+ * The Maintain command is the user api to run the maintenance of the repository in a pass of its own,
+ * e.g. daily from cron: the other commands never run it, so that they don't wait for it.
+ * A filesystem repository moves its snippets between the storage tiers, from how often they were read.
+ * A served repository is maintained by the server itself.
+ * @author sinux-l5d
+ * @since 1.1
+ */
+@Command(name = "maintain", description = {"Tier the snippets by how often they are read (schedule it, e.g. from cron).",
+        "The other commands never tier the snippets, schedule this one instead, e.g. daily with the crontab entry:",
+        "  0 3 * * * snipit maintain",
+        "A storage served by 'snipit serve' is maintained by the server."},
+        mixinStandardHelpOptions = true)
+public class MaintainCommand implements Runnable {
+
+    @ParentCommand
+    private Main main;
+
+    /**
+     * The run method is called by picocli when the command is executed.
+     * It runs the maintenance of the repository.
+     */
+    @Override
+    public void run() {
+        main.repository().maintain();
+    }
+}
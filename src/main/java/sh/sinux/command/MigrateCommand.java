@@ -0,0 +1,59 @@
+package sh.sinux.command;
+
+import picocli.CommandLine.Command;
+import picocli.CommandLine.Option;
+import picocli.CommandLine.ParentCommand;
+import sh.sinux.Main;
+import sh.sinux.config.StorageType;
+import sh.sinux.repository.FilesystemRepository;
+import sh.sinux.repository.StorageLayout;
+
+import java.util.concurrent.Callable;
+
+/**
+ * The Migrate command is the user api to change the on-disk layout of a filesystem repository.
+ * The migration happens in place, and is resumed on the next run if interrupted.
+ * @author sinux-l5d
+ * @version 1.1
+ */
+@Command(name = "migrate", description = "Migrate the storage to another layout", mixinStandardHelpOptions = true)
+public class MigrateCommand implements Callable<Integer> {
+
+    @ParentCommand
+    private Main main;
+
+    /** The layout to migrate to */
+    @Option(names = {"-l", "--layout"}, description = "The layout to migrate to (flat or sharded)", required = true)
+    private String layout;
+
+    /**
+     * The call method is called by picocli when the command is executed.
+     * It moves every snippet to its location in the new layout.
+     * @return 0 if the repository was migrated, 1 if an error occurred
+     */
+    @Override
+    public Integer call() {
+        var config = main.config();
+        if (config.getStorageType() != StorageType.FILESYSTEM) {
+            System.out.println("Only a filesystem storage can be migrated");
+            return 1;
+        }
+
+        StorageLayout target;
+        try {
+            target = StorageLayout.fromName(layout);
+        } catch (IllegalArgumentException e) {
+            System.out.println(e.getMessage());
+            return 1;
+        }
+
+        try {
+            var moved = new FilesystemRepository(config).migrate(target);
+            System.out.println("Migrated " + moved + " snippets to the " + target + " layout");
+        } catch (RuntimeException e) {
+            System.out.println(e.getMessage());
+            return 1;
+        }
+        return 0;
+    }
+}
@@ -5,27 +5,48 @@ import picocli.CommandLine.Command;
 import picocli.CommandLine.ParentCommand;
 import picocli.CommandLine.Parameters;
 import picocli.CommandLine.ArgGroup;
+import picocli.CommandLine.Help.Ansi;
 import sh.sinux.Main;
-import sh.sinux.Snippet;
+import sh.sinux.output.NdjsonWriter;
 import sh.sinux.repository.Repository;
+import sh.sinux.repository.SearchMode;
+import sh.sinux.search.MatchScanner;
 
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.LinkedHashMap;
 import java.util.List;
 
 /**
  * The Search command is the user api to search snippets.
- * It prints the name of the snippets matching the query
+ * It prints the name of the snippets matching the query,
+ * and optionally the matching lines of their content with some context,
+ * found in the content read by the search itself (each snippet found is read once).
+ * The context cannot be shown for a query spanning several lines, which is rejected.
+ * In NDJSON output, each snippet is a {@code {"name":...}} record, along with its
+ * {@code "lines":[{"number":...,"match":...,"text":...,"columns":[...]}]} when the context is asked.
  * @author sinux-l5d
- * @version 1.0
+ * @version 1.1
  */
 @Command(name = "search", description = "Search in snippets name, content and tags", mixinStandardHelpOptions = true)
 public class SearchCommand implements Runnable {
 
+    /** ANSI escape code starting a highlighted match (bold red) */
+    private static final String HIGHLIGHT_ON = "\u001B[1;31m";
+
+    /** ANSI escape code ending a highlighted match */
+    private static final String HIGHLIGHT_OFF = "\u001B[0m";
+
     @ParentCommand
     private Main main;
     /** The query to search for */
     @Parameters(index = "0", description = "The query to search")
     String query;
 
+    /** Number of context lines to print around each match in the content (none printed if not set) */
+    @Option(names = {"-C", "--context"}, description = "Print matching lines of the content, with N lines of context", paramLabel = "N")
+    Integer context;
+
     /**
      * Eventually specify where to search (name, tags, content)
      * The default is to search everywhere.
@@ -57,27 +78,118 @@ public class SearchCommand implements Runnable {
      */
     @Override
     public void run() {
-        List<Snippet> snippets;
-        Repository repo = main.repository();
+        SearchMode mode;
         if (options == null || options.all) {
-            snippets = repo.searchAll(query);
+            mode = SearchMode.ALL;
         } else if (options.name) {
-            snippets = repo.searchName(query);
+            mode = SearchMode.NAME;
         } else if (options.content) {
-            snippets = repo.searchContent(query);
+            mode = SearchMode.CONTENT;
         } else if (options.tags) {
-            snippets = repo.searchTags(query);
+            mode = SearchMode.TAGS;
         } else {
-            snippets = repo.searchAll(query);
+            mode = SearchMode.ALL;
+        }
+
+        var ndjson = main.ndjson();
+        var showContext = context != null && !query.isEmpty() && (mode == SearchMode.ALL || mode == SearchMode.CONTENT);
+        if (showContext && (query.indexOf('\n') >= 0 || query.indexOf('\r') >= 0)) {
+            (ndjson == null ? System.out : System.err).println("Invalid query: the context is shown by line, the query cannot span several lines");
+            return;
         }
 
-        if (snippets.isEmpty()) {
+        // Without the context only names are printed, so let the repository skip building full snippets;
+        // with it, the context is found in the content the search read
+        Repository repo = main.repository();
+        var contents = new LinkedHashMap<String, String>();
+        if (showContext) repo.search(query, mode).forEach(snippet -> contents.put(snippet.name(), snippet.content()));
+        var names = showContext ? List.copyOf(contents.keySet()) : repo.searchNames(query, mode);
+
+        if (ndjson != null) {
+            for (var name : names) writeNdjson(ndjson, name, contents.get(name));
+            return;
+        }
+        if (names.isEmpty()) {
             System.out.println("No snippets found");
             return;
         }
         System.out.println("Snippets found:");
-        for (var snippet : snippets) {
-            System.out.println("  - " + snippet.name());
+        for (var name : names) {
+            System.out.println("  - " + name);
+            if (showContext) printMatches(contents.get(name));
+        }
+    }
+
+    /**
+     * Print the matching lines of a snippet content, with their context lines and the matches highlighted.
+     * The content is scanned once through a {@link MatchScanner}.
+     * @param content the content of the snippet
+     */
+    private void printMatches(String content) {
+        var reader = new StringReader(content);
+        var highlight = Ansi.AUTO.enabled();
+        var previous = new int[]{0};
+        try {
+            new MatchScanner(query, context).scan(reader, line -> {
+                if (previous[0] > 0 && line.number() > previous[0] + 1) System.out.println("      --");
+                previous[0] = line.number();
+                System.out.println("    " + line.number() + (line.isMatch() ? ": " : "- ") + render(line, highlight));
+            });
+        } catch (IOException e) {
+            System.out.println("    (cannot read the content: " + e.getMessage() + ")");
+        }
+    }
+
+    /**
+     * Write a snippet found as an NDJSON record, with its matching lines and their context lines if asked.
+     * @param ndjson the writer
+     * @param name the name of the snippet
+     * @param content the content of the snippet to write the matching lines of, or null not to write them
+     */
+    private void writeNdjson(NdjsonWriter ndjson, String name, String content) {
+        ndjson.beginRecord();
+        ndjson.field("name", name);
+        if (content != null) {
+            var reader = new StringReader(content);
+            ndjson.beginArray("lines");
+            String error = null;
+            try {
+                new MatchScanner(query, context).scan(reader, line -> {
+                    ndjson.beginObject();
+                    ndjson.field("number", line.number());
+                    ndjson.field("match", line.isMatch());
+                    ndjson.field("text", line.text());
+                    ndjson.beginArray("columns");
+                    for (var column : line.columns()) ndjson.value(column);
+                    ndjson.endArray();
+                    ndjson.endObject();
+                });
+            } catch (IOException e) {
+                error = e.getMessage();
+            }
+            ndjson.endArray();
+            if (error != null) ndjson.field("error", error);
+        }
+        ndjson.endRecord();
+    }
+
+    /**
+     * Render a line, highlighting the matches.
+     * @param line the line to render
+     * @param highlight true to highlight the matches with ANSI escape codes
+     * @return the line to print
+     */
+    private String render(MatchScanner.Line line, boolean highlight) {
+        if (!highlight || !line.isMatch()) return line.text();
+        var rendered = new StringBuilder(line.text().length() + line.columns().length * 12);
+        int from = 0;
+        for (var column : line.columns()) {
+            rendered.append(line.text(), from, column)
+                    .append(HIGHLIGHT_ON)
+                    .append(query)
+                    .append(HIGHLIGHT_OFF);
+            from = column + query.length();
         }
+        return rendered.append(line.text(), from, line.text().length()).toString();
     }
 }
@@ -0,0 +1,65 @@
+package sh.sinux.command;
+
+import picocli.CommandLine.Command;
+import picocli.CommandLine.Option;
+import picocli.CommandLine.ParentCommand;
+import sh.sinux.Main;
+import sh.sinux.server.SnippetServer;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * The Serve command is the user api to share the repository over HTTP, see {@link SnippetServer}.
+ * Other instances use it with {@code -p http://HOST:PORT}. It runs until interrupted.
+ * @author sinux-l5d
+ * @version 1.1
+ */
+@Command(name = "serve", description = "Serve the storage over HTTP", mixinStandardHelpOptions = true)
+public class ServeCommand implements Callable<Integer> {
+
+    @ParentCommand
+    private Main main;
+
+    /** The port to listen to */
+    @Option(names = {"--port"}, description = "The port to listen to (default: ${DEFAULT-VALUE})", defaultValue = "8421")
+    private int port;
+
+    /** The address to listen to */
+    @Option(names = {"--bind"}, description = "The address to listen to (default: ${DEFAULT-VALUE})", defaultValue = "127.0.0.1")
+    private String bind;
+
+    /**
+     * The call method is called by picocli when the command is executed.
+     * It starts the server, and waits until the process is interrupted (the changes are then made durable).
+     * @return 1 if the server cannot start, never returns otherwise
+     */
+    @Override
+    public Integer call() {
+        SnippetServer server;
+        try {
+            server = new SnippetServer(main.repository(), new InetSocketAddress(bind, port));
+        } catch (IOException e) {
+            System.out.println("Cannot listen to " + bind + ":" + port + ": " + e.getMessage());
+            return 1;
+        }
+
+        var stopped = new CountDownLatch(1);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            server.stop();
+            stopped.countDown();
+        }));
+        server.start();
+        var address = server.getAddress();
+        System.out.println("Serving on http://" + address.getHostString() + ":" + address.getPort());
+
+        try {
+            stopped.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return 0;
+    }
+}
@@ -3,12 +3,13 @@ package sh.sinux.command;
 
 import picocli.CommandLine.Parameters;
 import picocli.CommandLine.Command;
+import picocli.CommandLine.Option;
 import picocli.CommandLine.ParentCommand;
 import sh.sinux.Main;
 
 /**
  * The Show command is the user api to show a snippet.
- * It prints the content of the snippet.
+ * It prints the content of the snippet, or of one of its revisions (see the 'history' command).
  * @author sinux-l5d
  * @version 1.0
  */
@@ -21,13 +22,18 @@ public class ShowCommand implements Runnable{
     @Parameters(index = "0", description = "The snippet name")
     String name;
 
+    /** The revision to show (default is the current one) */
+    @Option(names = {"-r", "--rev"}, description = "The revision to show (default to the current one)", paramLabel = "N")
+    Integer revision;
+
     /**
      * The run method is called by picocli when the command is executed.
      * It prints the content of the snippet.
      */
     @Override
     public void run() {
-        var snippet = main.repository().get(name);
+        var repo = main.repository();
+        var snippet = revision == null ? repo.get(name) : repo.getRevision(name, revision);
         if (snippet == null) {
             System.out.println("Snippet not found");
             return;
@@ -2,6 +2,9 @@ package sh.sinux.config;
 
 import java.nio.file.FileSystems;
 import java.nio.file.Path;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 /**
  * Configuration of the application.
@@ -12,7 +15,7 @@ import java.nio.file.Path;
 public class Config {
 
     /** The singleton instance */
-    private static Config instance;
+    private static volatile Config instance;
 
     /** The storage path (string relevant to the {@link sh.sinux.repository.Repository}) */
     private final String storagePath;
@@ -20,6 +23,9 @@ public class Config {
     /** The storage type. Determines the Repository used by {@link sh.sinux.repository.RepositoryProxy} */
     private final StorageType storageType;
 
+    /** The configurations of the mounted storages, by namespace (only for {@link StorageType#FEDERATED}) */
+    private final Map<String, Config> mounts;
+
     // Constructors
 
     /**
@@ -30,6 +36,17 @@ public class Config {
     private Config( StorageType storageType, String storagePath) {
         this.storageType = storageType;
         this.storagePath = storagePath;
+        this.mounts = Collections.emptyMap();
+    }
+
+    /**
+     * Creates a new federated Config instance.
+     * @param mounts the configurations of the mounted storages, by namespace
+     */
+    private Config(Map<String, Config> mounts) {
+        this.storageType = StorageType.FEDERATED;
+        this.storagePath = String.join(",", mounts.keySet());
+        this.mounts = Collections.unmodifiableMap(new LinkedHashMap<>(mounts));
     }
 
     /**
@@ -40,7 +57,7 @@ public class Config {
      * @param storagePath the path to the storage (type-dependent)
      * @return Config instance
      */
-    public static Config create( StorageType storageType, String storagePath) { // default singleton constructor
+    public static synchronized Config create( StorageType storageType, String storagePath) { // default singleton constructor
         if (instance == null)
             instance = new Config(storageType, storagePath);
         return instance;
@@ -57,6 +74,32 @@ public class Config {
         return create(StorageType.FILESYSTEM, fsAppDir().toString());
     }
 
+    /**
+     * Creates a new instance of the Config class, federating several storages.
+     * If the instance already exists, it will be returned, which means that the
+     * configuration requested may not match the configuration of the instance.
+     * @param mounts the configurations of the storages, by namespace (see {@link #mount(StorageType, String)})
+     * @return Config instance
+     */
+    public static synchronized Config create(Map<String, Config> mounts) {
+        if (instance == null)
+            instance = new Config(mounts);
+        return instance;
+    }
+
+    /**
+     * Creates the configuration of a storage mounted in a federated configuration.
+     * It's not a singleton: see {@link #create(Map)}.
+     * @param storageType the type of storage to mount (cannot be {@link StorageType#FEDERATED})
+     * @param storagePath the path to the storage (type-dependent)
+     * @return a new Config instance
+     */
+    public static Config mount(StorageType storageType, String storagePath) {
+        if (storageType == StorageType.FEDERATED)
+            throw new IllegalArgumentException("Cannot mount a federated storage");
+        return new Config(storageType, storagePath);
+    }
+
     // Static methods
 
     /**
@@ -115,4 +158,12 @@ public class Config {
     public StorageType getStorageType() {
         return storageType;
     }
+
+    /**
+     * Get the configurations of the mounted storages.
+     * @return the configurations by namespace, in mount order (empty if the storage is not federated)
+     */
+    public Map<String, Config> getMounts() {
+        return mounts;
+    }
 }
@@ -7,7 +7,11 @@ package sh.sinux.config;
  */
 public enum StorageType {
     /** The filesystem storage type */
-    FILESYSTEM("filesystem");
+    FILESYSTEM("filesystem"),
+    /** Several storages mounted under namespaces, see {@link Config#getMounts()} */
+    FEDERATED("federated"),
+    /** A storage served over HTTP by {@code snipit serve}, the storage path being its URL */
+    REMOTE("remote");
 
     /** The name of the storage type */
     private final String typeName;
@@ -0,0 +1,306 @@
+package sh.sinux.output;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The NdjsonWriter streams records as newline-delimited JSON: one JSON object per line.
+ * Strings are escaped straight into a large buffer, without building intermediate strings,
+ * so bulk listings cost little more than their bytes.
+ * <p>
+ * A record is written field by field:
+ * <pre>{@code
+ * out.beginRecord();
+ * out.field("name", name);
+ * out.field("tags", tags);
+ * out.endRecord();
+ * }</pre>
+ * Like a {@link PrintStream}, it never throws: once a write fails (e.g. the reader of a pipe is gone),
+ * the next ones are dropped, see {@link #checkError()}.
+ * @author sinux-l5d
+ * @since 1.1
+ */
+public class NdjsonWriter implements Flushable {
+
+    /** Size of the buffer, in chars */
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    /** Maximum nesting of objects and arrays */
+    private static final int MAX_DEPTH = 16;
+
+    /** Hexadecimal digits, to escape control characters */
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    /** The buffered output */
+    private final Writer out;
+
+    /** For each level of nesting, true until the first value of the object or array is written */
+    private final boolean[] first = new boolean[MAX_DEPTH];
+
+    /** The current level of nesting (-1 outside a record) */
+    private int depth = -1;
+
+    /** True if a name was just written, so the next value needs no separator */
+    private boolean afterName;
+
+    /** True if a write failed */
+    private boolean failed;
+
+    /**
+     * Creates a new NdjsonWriter instance writing to a stream, in UTF-8.
+     * @param out the stream (not closed by the writer)
+     */
+    public NdjsonWriter(OutputStream out) {
+        this.out = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8), BUFFER_SIZE);
+    }
+
+    /**
+     * Creates a new NdjsonWriter instance writing to the standard output, bypassing {@link System#out}
+     * (which flushes on every line).
+     * @return the writer
+     */
+    public static NdjsonWriter stdout() {
+        return new NdjsonWriter(new FileOutputStream(FileDescriptor.out));
+    }
+
+    /** Start a record. */
+    public void beginRecord() {
+        depth = -1;
+        afterName = false;
+        open('{');
+    }
+
+    /** End a record, and its line. */
+    public void endRecord() {
+        endObject();
+        write('\n');
+    }
+
+    /**
+     * Start an object, as the value of the field just named or as an element of the current array.
+     */
+    public void beginObject() {
+        separate();
+        open('{');
+    }
+
+    /** End the current object. */
+    public void endObject() {
+        close('}');
+    }
+
+    /**
+     * Start an array field.
+     * @param name the name of the field
+     */
+    public void beginArray(String name) {
+        name(name);
+        separate();
+        open('[');
+    }
+
+    /** End the current array. */
+    public void endArray() {
+        close(']');
+    }
+
+    /**
+     * Write the name of a field, its value to be written next.
+     * @param name the name of the field
+     */
+    public void name(String name) {
+        separate();
+        string(name);
+        write(':');
+        afterName = true;
+    }
+
+    /**
+     * Write a string value.
+     * @param value the value (null for a JSON null)
+     */
+    public void value(String value) {
+        separate();
+        if (value == null) write("null");
+        else string(value);
+    }
+
+    /**
+     * Write a number value.
+     * @param value the value
+     */
+    public void value(long value) {
+        separate();
+        write(Long.toString(value));
+    }
+
+    /**
+     * Write a boolean value.
+     * @param value the value
+     */
+    public void value(boolean value) {
+        separate();
+        write(value ? "true" : "false");
+    }
+
+    /**
+     * Write a string field.
+     * @param name the name of the field
+     * @param value the value (null for a JSON null)
+     */
+    public void field(String name, String value) {
+        name(name);
+        value(value);
+    }
+
+    /**
+     * Write a number field.
+     * @param name the name of the field
+     * @param value the value
+     */
+    public void field(String name, long value) {
+        name(name);
+        value(value);
+    }
+
+    /**
+     * Write a boolean field.
+     * @param name the name of the field
+     * @param value the value
+     */
+    public void field(String name, boolean value) {
+        name(name);
+        value(value);
+    }
+
+    /**
+     * Write an array of strings field.
+     * @param name the name of the field
+     * @param values the values
+     */
+    public void field(String name, String[] values) {
+        beginArray(name);
+        for (var value : values) value(value);
+        endArray();
+    }
+
+    /**
+     * Write the buffered records.
+     */
+    @Override
+    public void flush() {
+        if (failed) return;
+        try {
+            out.flush();
+        } catch (IOException e) {
+            failed = true;
+        }
+    }
+
+    /**
+     * Flush the buffered records, and tell if a write failed.
+     * @return true if a write failed
+     */
+    public boolean checkError() {
+        flush();
+        return failed;
+    }
+
+    /**
+     * Open an object or an array.
+     * @param bracket the opening bracket
+     * @throws IllegalStateException if the values are nested too deep
+     */
+    private void open(char bracket) {
+        if (depth + 1 >= MAX_DEPTH) throw new IllegalStateException("Too deep nesting");
+        write(bracket);
+        first[++depth] = true;
+    }
+
+    /**
+     * Close an object or an array.
+     * @param bracket the closing bracket
+     */
+    private void close(char bracket) {
+        write(bracket);
+        depth--;
+    }
+
+    /**
+     * Write the separator before a name or a value, if needed.
+     */
+    private void separate() {
+        if (afterName) {
+            afterName = false;
+            return;
+        }
+        if (depth < 0) return;
+        if (!first[depth]) write(',');
+        first[depth] = false;
+    }
+
+    /**
+     * Write a quoted and escaped string.
+     * @param value the string
+     */
+    private void string(String value) {
+        write('"');
+        int from = 0;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c >= 0x20 && c != '"' && c != '\\') continue;
+            write(value, from, i);
+            from = i + 1;
+            switch (c) {
+                case '"' -> write("\\\"");
+                case '\\' -> write("\\\\");
+                case '\n' -> write("\\n");
+                case '\r' -> write("\\r");
+                case '\t' -> write("\\t");
+                default -> {
+                    write("\\u00");
+                    write(HEX[c >> 4]);
+                    write(HEX[c & 0xf]);
+                }
+            }
+        }
+        write(value, from, value.length());
+        write('"');
+    }
+
+    /**
+     * Write a char.
+     * @param c the char
+     */
+    private void write(char c) {
+        if (failed) return;
+        try {
+            out.write(c);
+        } catch (IOException e) {
+            failed = true;
+        }
+    }
+
+    /**
+     * Write a string.
+     * @param s the string
+     */
+    private void write(String s) {
+        write(s, 0, s.length());
+    }
+
+    /**
+     * Write a range of a string.
+     * @param s the string
+     * @param from the first char (inclusive)
+     * @param to the last char (exclusive)
+     */
+    private void write(String s, int from, int to) {
+        if (failed || from >= to) return;
+        try {
+            out.write(s, from, to - from);
+        } catch (IOException e) {
+            failed = true;
+        }
+    }
+}
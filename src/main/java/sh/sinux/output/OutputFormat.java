@@ -0,0 +1,32 @@
+package sh.sinux.output;
+
+/**
+ * The output format of the commands listing snippets or tags.
+ * @author sinux-l5d
+ * @since 1.1
+ */
+public enum OutputFormat {
+    /** Human-oriented text (default) */
+    TEXT("text"),
+    /** One JSON object per line, see {@link NdjsonWriter} */
+    NDJSON("ndjson");
+
+    /** The name of the output format */
+    private final String formatName;
+
+    /**
+     * Creates a new OutputFormat instance.
+     * @param format the name of the output format
+     */
+    OutputFormat(String format) {
+        this.formatName = format;
+    }
+
+    /**
+     * Returns the name of the output format.
+     * @return the name of the output format
+     */
+    public String toString() {
+        return formatName;
+    }
+}
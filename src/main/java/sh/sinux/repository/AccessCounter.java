@@ -0,0 +1,170 @@
+package sh.sinux.repository;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The AccessCounter tracks how often the snippets of a {@link FilesystemRepository} are read,
+ * to choose their tier (see {@link HotTier} and {@link ColdStorage}).
+ * Accesses are counted in memory, appended to an access log on {@link #flush()} (once per command),
+ * and merged from time to time into decaying counts, halved every {@link #HALF_LIFE_MILLIS}:
+ * <pre>{@code
+ * tiers/
+ * - /access (one "time<TAB>accesses<TAB>name" per line, appended)
+ * - /counts (the time of the counts, then one "count<TAB>last access<TAB>name" per line)
+ * }</pre>
+ * Names with a line separator are not counted.
+ * @author sinux-l5d
+ * @since 1.1
+ */
+class AccessCounter {
+
+    /** Time after which the count of a snippet is halved */
+    static final long HALF_LIFE_MILLIS = 7L * 24 * 60 * 60 * 1000;
+
+    /** Size of the access log from which the counts are merged */
+    private static final long COMPACT_BYTES = 4096;
+
+    /** Maximum age of the counts when there are accesses to merge */
+    private static final long COMPACT_INTERVAL_MILLIS = 60L * 60 * 1000;
+
+    /** Counts under which a snippet is forgotten */
+    private static final double MIN_COUNT = 0.05;
+
+    /**
+     * The accesses of a snippet.
+     * @param count the number of accesses, decayed
+     * @param lastAccess when the snippet was last read, in milliseconds since the epoch
+     */
+    record Stats(double count, long lastAccess) {
+    }
+
+    /** The access log */
+    private final Path log;
+
+    /** The counts file */
+    private final Path counts;
+
+    /** The accesses not appended to the log yet, by name */
+    private final ConcurrentHashMap<String, Integer> pending = new ConcurrentHashMap<>();
+
+    /**
+     * Creates a new AccessCounter instance.
+     * @param dir the directory of the access log and counts
+     */
+    AccessCounter(Path dir) {
+        this.log = dir.resolve("access");
+        this.counts = dir.resolve("counts");
+    }
+
+    /**
+     * Count an access to a snippet, in memory.
+     * @param name the unique name of the snippet
+     */
+    void record(String name) {
+        if (name.indexOf('\n') >= 0 || name.indexOf('\r') >= 0) return;
+        pending.merge(name, 1, Integer::sum);
+    }
+
+    /**
+     * Append the accesses counted in memory to the access log.
+     * It must be called with the counters locked.
+     * @throws IOException if the log cannot be written
+     */
+    void flush() throws IOException {
+        if (pending.isEmpty()) return;
+        var time = System.currentTimeMillis();
+        var lines = new StringBuilder();
+        for (var name : pending.keySet()) {
+            var accesses = pending.remove(name);
+            if (accesses != null) lines.append(time).append('\t').append(accesses).append('\t').append(name).append('\n');
+        }
+        Files.createDirectories(log.getParent());
+        Files.writeString(log, lines, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+    }
+
+    /**
+     * Tells if there are enough accesses in the log, or old enough, to merge them into the counts.
+     * @param now the current time
+     * @return true if {@link #compact(long)} is due
+     */
+    boolean isDue(long now) {
+        var logFile = log.toFile();
+        if (logFile.length() == 0) return false;
+        if (logFile.length() >= COMPACT_BYTES) return true;
+        return now - counts.toFile().lastModified() >= COMPACT_INTERVAL_MILLIS;
+    }
+
+    /**
+     * Merge the access log into the counts, decayed to now, and empty the log.
+     * It must be called with the counters locked.
+     * @param now the current time
+     * @return the accesses of the snippets read recently, by name
+     * @throws IOException if the counts cannot be written
+     */
+    Map<String, Stats> compact(long now) throws IOException {
+        var stats = read(now);
+        if (log.toFile().exists()) {
+            for (var line : Files.readAllLines(log, StandardCharsets.UTF_8)) {
+                var fields = line.split("\t", 3);
+                if (fields.length < 3) continue;
+                try {
+                    long time = Long.parseLong(fields[0]);
+                    int accesses = Integer.parseInt(fields[1]);
+                    stats.merge(fields[2], new Stats(accesses, time),
+                            (a, b) -> new Stats(a.count() + b.count(), Math.max(a.lastAccess(), b.lastAccess())));
+                } catch (NumberFormatException ignored) {
+                    // torn line
+                }
+            }
+        }
+
+        var lines = new ArrayList<String>(stats.size() + 1);
+        lines.add(Long.toString(now));
+        stats.forEach((name, stat) -> lines.add(stat.count() + "\t" + stat.lastAccess() + "\t" + name));
+        var tmp = counts.resolveSibling("counts.tmp");
+        Files.createDirectories(counts.getParent());
+        Files.write(tmp, lines, StandardCharsets.UTF_8);
+        Files.move(tmp, counts, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        Files.deleteIfExists(log);
+        return stats;
+    }
+
+    /**
+     * Read the counts, decayed to now.
+     * @param now the current time
+     * @return the accesses of the snippets, by name (the ones decayed under {@link #MIN_COUNT} left out)
+     * @throws IOException if the counts cannot be read
+     */
+    private Map<String, Stats> read(long now) throws IOException {
+        var stats = new HashMap<String, Stats>();
+        if (!counts.toFile().exists()) return stats;
+        var lines = Files.readAllLines(counts, StandardCharsets.UTF_8);
+        if (lines.isEmpty()) return stats;
+        double decay;
+        try {
+            decay = Math.pow(0.5, Math.max(0, now - Long.parseLong(lines.get(0))) / (double) HALF_LIFE_MILLIS);
+        } catch (NumberFormatException e) {
+            return stats;
+        }
+        for (var line : lines.subList(1, lines.size())) {
+            var fields = line.split("\t", 3);
+            if (fields.length < 3) continue;
+            try {
+                double count = Double.parseDouble(fields[0]) * decay;
+                if (count >= MIN_COUNT) stats.put(fields[2], new Stats(count, Long.parseLong(fields[1])));
+            } catch (NumberFormatException ignored) {
+                // corrupted line, the snippet is forgotten
+            }
+        }
+        return stats;
+    }
+}
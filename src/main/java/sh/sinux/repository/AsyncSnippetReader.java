@@ -0,0 +1,128 @@
+package sh.sinux.repository;
+
+import sh.sinux.Snippet;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.function.Function;
+
+/**
+ * The AsyncSnippetReader reads many snippets of a {@link FilesystemRepository} concurrently,
+ * with {@link AsynchronousFileChannel}, to keep the storage queue busy instead of reading files one by one.
+ * The number of snippets read at the same time is bounded.
+ * @author sinux-l5d
+ * @since 1.1
+ */
+class AsyncSnippetReader {
+
+    /** Default number of snippets read at the same time */
+    static final int DEFAULT_CONCURRENCY = 32;
+
+    /** Bounds the number of snippets read at the same time */
+    private final Semaphore inFlight;
+
+    /**
+     * Creates a new AsyncSnippetReader instance.
+     * @param concurrency the maximum number of snippets read at the same time
+     */
+    AsyncSnippetReader(int concurrency) {
+        this.inFlight = new Semaphore(concurrency);
+    }
+
+    /**
+     * Read snippets concurrently.
+     * @param names the unique names of the snippets
+     * @param snippetFile a function giving the {@link SnippetFile} of a snippet from its name
+     * @return the snippets, in the order their reads completed (missing or unreadable snippets are skipped)
+     */
+    List<Snippet> readAll(Collection<String> names, Function<String, Path> snippetFile) {
+        var results = new ConcurrentLinkedQueue<Snippet>();
+        var pending = new ArrayList<CompletableFuture<Void>>(names.size());
+        for (var name : names) {
+            if (!Repository.isValidName(name)) continue;
+            inFlight.acquireUninterruptibly();
+            var file = snippetFile.apply(name);
+            pending.add(readBytes(file)
+                    .thenApply(bytes -> {
+                        try {
+                            var contents = SnippetFile.decode(bytes);
+                            return new Snippet(name, contents.text(), file.toString(), contents.header().tags());
+                        } catch (IOException e) {
+                            throw new UncheckedIOException(e);
+                        }
+                    })
+                    .handle((snippet, error) -> {
+                        inFlight.release();
+                        if (snippet != null) results.add(snippet);
+                        return null;
+                    }));
+        }
+        CompletableFuture.allOf(pending.toArray(CompletableFuture[]::new)).join();
+        return new ArrayList<>(results);
+    }
+
+    /**
+     * Read a whole file asynchronously.
+     * @param file the file to read
+     * @return a future completed with the bytes of the file
+     */
+    private static CompletableFuture<byte[]> readBytes(Path file) {
+        var future = new CompletableFuture<byte[]>();
+        AsynchronousFileChannel channel;
+        ByteBuffer buffer;
+        try {
+            channel = AsynchronousFileChannel.open(file, StandardOpenOption.READ);
+            var size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                channel.close();
+                throw new IOException("File too large: " + file);
+            }
+            buffer = ByteBuffer.allocate((int) size);
+        } catch (IOException e) {
+            future.completeExceptionally(e);
+            return future;
+        }
+
+        channel.read(buffer, 0, buffer, new CompletionHandler<>() {
+            @Override
+            public void completed(Integer read, ByteBuffer attachment) {
+                if (read >= 0 && attachment.hasRemaining()) {
+                    channel.read(attachment, attachment.position(), attachment, this);
+                    return;
+                }
+                close(channel);
+                future.complete(attachment.hasRemaining() ? Arrays.copyOf(attachment.array(), attachment.position()) : attachment.array());
+            }
+
+            @Override
+            public void failed(Throwable exc, ByteBuffer attachment) {
+                close(channel);
+                future.completeExceptionally(exc);
+            }
+        });
+        return future;
+    }
+
+    /**
+     * Close a channel, ignoring errors (the read is over anyway).
+     * @param channel the channel to close
+     */
+    private static void close(AsynchronousFileChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package sh.sinux.repository;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * The ColdStorage keeps the content of the snippets of a {@link FilesystemRepository} rarely touched
+ * compressed, in their {@link SnippetFile} (flagged in its header).
+ * A snippet is demoted or promoted by rewriting its file, renamed over the previous one, so readers
+ * always find it whole. The file keeps its modification time, which is the time of the version.
+ * @author sinux-l5d
+ * @since 1.1
+ */
+final class ColdStorage {
+
+    /** Time without access after which a snippet is demoted */
+    static final long COLD_AFTER_MILLIS = 30L * 24 * 60 * 60 * 1000;
+
+    /** Size under which a snippet is not worth compressing */
+    static final long MIN_BYTES = 1024;
+
+    /** Not instantiable */
+    private ColdStorage() {
+    }
+
+    /**
+     * Compress the content of a snippet, if it makes it smaller.
+     * It must be called with the snippet locked.
+     * @param file the snippet file
+     * @param tmpDir the staging directory
+     * @return true if the snippet was demoted
+     * @throws IOException if the snippet cannot be read or written
+     */
+    static boolean demote(Path file, Path tmpDir) throws IOException {
+        var contents = SnippetFile.read(file);
+        var header = contents.header();
+        if (header.compressed()) return false;
+        var bytes = SnippetFile.encode(contents.content(), header.tags(), header.signature(), true);
+        if (bytes.length >= Files.size(file)) return false;
+        SnippetFile.write(file, bytes, tmpDir, Files.getLastModifiedTime(file).toMillis(), true);
+        return true;
+    }
+
+    /**
+     * Decompress the content of a snippet.
+     * It must be called with the snippet locked.
+     * @param file the snippet file
+     * @param tmpDir the staging directory
+     * @throws IOException if the snippet cannot be read or written
+     */
+    static void promote(Path file, Path tmpDir) throws IOException {
+        var contents = SnippetFile.read(file);
+        var header = contents.header();
+        if (!header.compressed()) return;
+        var bytes = SnippetFile.encode(contents.content(), header.tags(), header.signature(), false);
+        SnippetFile.write(file, bytes, tmpDir, Files.getLastModifiedTime(file).toMillis(), true);
+    }
+}
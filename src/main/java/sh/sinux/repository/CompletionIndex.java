@@ -0,0 +1,400 @@
+package sh.sinux.repository;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
+
+/**
+ * The CompletionIndex keeps the names and tags of a {@link FilesystemRepository} in small sorted text files,
+ * for shell completion to look them up by prefix (binary search with {@code look}) without starting the JVM.
+ * <pre>{@code
+ * completion/
+ * - /names (one snippet name per line)
+ * - /names.delta (the names added ("+name") and removed ("-name") since the names file was written, in order)
+ * - /tags (one "tag<TAB>number of snippets<TAB>total size of their content" per line)
+ * - /generation (the generation of the repository the files match)
+ * }</pre>
+ * Lines are sorted by their UTF-8 bytes, the order of {@code LC_ALL=C sort}.
+ * Names and tags which cannot fit on a line (with a newline or a tab) are left out.
+ * The files are updated along with the generation of the repository: if they don't match it (e.g. after a crash),
+ * they are rebuilt from a full scan. The names file is not rewritten for each snippet added or removed:
+ * they are appended to the delta file, merged into the names file once it's large, or on a checkpoint
+ * (see {@link #merge()}). The tags file, one line per tag, is rewritten.
+ * The sorted names also serve {@link Repository#listNames(String, String, int)}, see {@link #names(String, String, int)},
+ * and the tags {@link Repository#tagStats()}, see {@link #tagStats()}.
+ * @author sinux-l5d
+ * @since 1.1
+ */
+class CompletionIndex {
+
+    /** The directory of the index */
+    private final Path dir;
+
+    /** Constant for the names file */
+    private static final String NAMES_FILE = "names";
+
+    /** Constant for the delta file of the names */
+    private static final String DELTA_FILE = "names.delta";
+
+    /** Size of the delta file from which {@link #update(Collection, long)} merges it into the names file */
+    private static final long MERGE_BYTES = 1 << 16;
+
+    /**
+     * Creates a new CompletionIndex instance.
+     * @param dir the directory of the index
+     */
+    CompletionIndex(Path dir) {
+        this.dir = dir;
+    }
+
+    /**
+     * Tell if the index does not match the repository: it was written for another generation, or
+     * one of the snippets changed since the journal was last checked is not (or no longer) in it
+     * (a crash between a change and its new generation).
+     * @param generation the current generation of the repository
+     * @param changed the names of the snippets changed since the journal was last checked
+     * @param exists a function telling if a snippet exists, from its name
+     * @return true if the index must be rebuilt
+     */
+    boolean isStale(long generation, Collection<String> changed, Predicate<String> exists) {
+        try {
+            if (Long.parseLong(Files.readString(dir.resolve("generation")).trim()) != generation) return true;
+            if (!hasSizes()) return true;
+            if (changed.isEmpty()) return false;
+            var names = new HashSet<String>(Files.readAllLines(dir.resolve(NAMES_FILE), StandardCharsets.UTF_8));
+            readDelta().forEach((name, added) -> {
+                if (added) names.add(name);
+                else names.remove(name);
+            });
+            for (var name : changed) {
+                if (fits(name) && names.contains(name) != exists.test(name)) return true;
+            }
+            return false;
+        } catch (IOException | NumberFormatException e) {
+            return true;
+        }
+    }
+
+    /**
+     * Tell if the tags file has the size of the snippets of each tag: the ones written before did not.
+     * @return true if the first line of the tags file has the three fields (or the file is empty)
+     * @throws IOException if the tags file cannot be read
+     */
+    private boolean hasSizes() throws IOException {
+        try (var reader = Files.newBufferedReader(dir.resolve("tags"), StandardCharsets.UTF_8)) {
+            var line = reader.readLine();
+            return line == null || line.split("\t", -1).length == 3;
+        }
+    }
+
+    /**
+     * Rebuild the index from every snippet.
+     * @param snippets every snippet, as added (see {@link Change#added(String, String[], long)})
+     * @param generation the current generation of the repository
+     * @throws IOException if the index cannot be written
+     */
+    void rebuild(Collection<Change> snippets, long generation) throws IOException {
+        var names = new TreeSet<>(Page.ORDER);
+        for (var snippet : snippets) {
+            if (fits(snippet.name()) && snippet.addedTags() != null) names.add(snippet.name());
+        }
+        Files.createDirectories(dir);
+        replace(NAMES_FILE, names);
+        Files.deleteIfExists(dir.resolve(DELTA_FILE));
+        write(new TreeMap<>(Page.ORDER), snippets, generation);
+    }
+
+    /**
+     * A change of a snippet.
+     * @param name the unique name of the snippet
+     * @param removedTags the tags the snippet had (null if it did not exist)
+     * @param removedBytes the size of the content the snippet had, in bytes
+     * @param addedTags the tags the snippet has now (null if it was removed)
+     * @param addedBytes the size of the content the snippet has now, in bytes
+     */
+    record Change(String name, String[] removedTags, long removedBytes, String[] addedTags, long addedBytes) {
+
+        /**
+         * A snippet added.
+         * @param name the unique name of the snippet
+         * @param tags the tags of the snippet
+         * @param bytes the size of the content of the snippet
+         * @return the change
+         */
+        static Change added(String name, String[] tags, long bytes) {
+            return new Change(name, null, 0, tags, bytes);
+        }
+    }
+
+    /**
+     * Update the index for changes of snippets.
+     * The snippets added or removed are appended to the delta file (merged once it's large),
+     * and the tags file is rewritten: it costs the number of tags, not the number of snippets.
+     * It must be called with the counters locked (see {@link StripedLock#lockCounter()}).
+     * @param changes the changes of the snippets
+     * @param generation the new generation of the repository
+     * @throws IOException if the index cannot be read or written
+     */
+    void update(Collection<Change> changes, long generation) throws IOException {
+        var delta = new ArrayList<String>();
+        for (var change : changes) {
+            if (!fits(change.name())) continue;
+            if (change.addedTags() == null) delta.add("-" + change.name());
+            else if (change.removedTags() == null) delta.add("+" + change.name());
+        }
+        if (!delta.isEmpty()) {
+            var deltaFile = dir.resolve(DELTA_FILE);
+            Files.write(deltaFile, delta, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+            if (Files.size(deltaFile) >= MERGE_BYTES) merge();
+        }
+        var tagStats = new TreeMap<String, TagStats>(Page.ORDER);
+        for (var stat : tagStats()) tagStats.put(stat.tag(), stat);
+        write(tagStats, changes, generation);
+    }
+
+    /**
+     * Merge the delta file into the names file, then delete it.
+     * Applying the delta again is harmless, so a crash between the two leaves the index valid.
+     * It must be called with the counters locked (see {@link StripedLock#lockCounter()}).
+     * @throws IOException if the index cannot be read or written
+     */
+    void merge() throws IOException {
+        var delta = readDelta();
+        if (delta.isEmpty()) return;
+        var names = new TreeSet<>(Page.ORDER);
+        names.addAll(Files.readAllLines(dir.resolve(NAMES_FILE), StandardCharsets.UTF_8));
+        delta.forEach((name, added) -> {
+            if (added) names.add(name);
+            else names.remove(name);
+        });
+        replace(NAMES_FILE, names);
+        Files.deleteIfExists(dir.resolve(DELTA_FILE));
+    }
+
+    /**
+     * Read the delta file: the last change of each name.
+     * A line being appended (without its newline yet) is left out.
+     * @return true for the names added, false for the names removed, by name
+     * @throws IOException if the delta file cannot be read
+     */
+    private Map<String, Boolean> readDelta() throws IOException {
+        var delta = new HashMap<String, Boolean>();
+        byte[] bytes;
+        try {
+            bytes = Files.readAllBytes(dir.resolve(DELTA_FILE));
+        } catch (NoSuchFileException e) {
+            return delta;
+        }
+        int start = 0;
+        for (int end = 0; end < bytes.length; end++) {
+            if (bytes[end] != '\n') continue;
+            if (end > start) {
+                var name = new String(bytes, start + 1, end - start - 1, StandardCharsets.UTF_8);
+                delta.put(name, bytes[start] == '+');
+            }
+            start = end + 1;
+        }
+        return delta;
+    }
+
+    /**
+     * Read the usage of each tag, aggregated by the updates: it costs the number of tags,
+     * not the number of snippets.
+     * @return the usage of each tag, sorted by tag
+     * @throws IOException if the index cannot be read
+     */
+    List<TagStats> tagStats() throws IOException {
+        try (var stats = streamTagStats()) {
+            return stats.toList();
+        }
+    }
+
+    /**
+     * Stream the usage of each tag, read from the tags file as the stream is consumed.
+     * The stream must be closed.
+     * @return the usage of each tag, sorted by tag
+     * @throws IOException if the index cannot be read
+     */
+    Stream<TagStats> streamTagStats() throws IOException {
+        return Files.lines(dir.resolve("tags"), StandardCharsets.UTF_8).map(CompletionIndex::parseTagStats).filter(Objects::nonNull);
+    }
+
+    /**
+     * Parse a line of the tags file.
+     * @param line the line
+     * @return the usage of the tag, or null if the line is corrupted (fixed by the next rebuild)
+     */
+    private static TagStats parseTagStats(String line) {
+        var fields = line.split("\t", -1);
+        if (fields.length != 3) return null;
+        try {
+            return new TagStats(fields[0], Integer.parseInt(fields[1]), Long.parseLong(fields[2]));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * List the names in a range, by a binary search of the first one in the names file (like {@code look}),
+     * then reading the next ones, merged with the delta file: it costs the size of the page and of the delta,
+     * not of the repository.
+     * @param prefix the prefix of the names listed (can be empty)
+     * @param after list the names after this one (can be null)
+     * @param limit the maximum number of names
+     * @return the names, sorted
+     * @throws IOException if the index cannot be read
+     */
+    List<String> names(String prefix, String after, int limit) throws IOException {
+        // The delta is read first: if it's merged meanwhile, the names file has it anyway
+        var delta = readDelta();
+        if (delta.isEmpty()) return readNames(prefix, after, limit);
+        var names = new TreeSet<>(Page.ORDER);
+        int removed = 0;
+        for (var change : delta.entrySet()) {
+            if (!Page.inRange(change.getKey(), prefix, after)) continue;
+            if (change.getValue()) names.add(change.getKey());
+            else removed++;
+        }
+        // Read enough names to fill the page once the removed ones are left out
+        for (var name : readNames(prefix, after, (int) Math.min(Integer.MAX_VALUE, (long) limit + removed))) {
+            if (delta.getOrDefault(name, true)) names.add(name);
+        }
+        return names.stream().limit(limit).toList();
+    }
+
+    /**
+     * List the names in a range from the names file only, see {@link #names(String, String, int)}.
+     * @param prefix the prefix of the names listed (can be empty)
+     * @param after list the names after this one (can be null)
+     * @param limit the maximum number of names
+     * @return the names, sorted
+     * @throws IOException if the index cannot be read
+     */
+    private List<String> readNames(String prefix, String after, int limit) throws IOException {
+        var names = new ArrayList<String>(Math.min(limit, 1024));
+        try (var channel = FileChannel.open(dir.resolve(NAMES_FILE), StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size == 0) return names;
+            var buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+
+            // The first line to list is the first one >= prefix, or > after
+            boolean strict = after != null && Page.ORDER.compare(after, prefix) >= 0;
+            var key = (strict ? after : prefix).getBytes(StandardCharsets.UTF_8);
+            int low = 0;
+            int high = (int) size;
+            while (low < high) {
+                int middle = (low + high) >>> 1;
+                int start = lineStart(buffer, middle);
+                int comparison = start >= size ? 1 : Arrays.compareUnsigned(line(buffer, start), key);
+                if (comparison > 0 || (comparison == 0 && !strict)) high = middle;
+                else low = middle + 1;
+            }
+
+            for (int start = lineStart(buffer, low); start < size && names.size() < limit; ) {
+                var bytes = line(buffer, start);
+                start += bytes.length + 1;
+                var name = new String(bytes, StandardCharsets.UTF_8);
+                if (!name.startsWith(prefix)) break;
+                if (Page.inRange(name, prefix, after)) names.add(name);
+            }
+        }
+        return names;
+    }
+
+    /**
+     * Find the start of the first line at or after a position.
+     * @param buffer the file
+     * @param position the position
+     * @return the start of the line (the size of the file if there is none)
+     */
+    private static int lineStart(MappedByteBuffer buffer, int position) {
+        if (position == 0) return 0;
+        int i = position - 1;
+        while (i < buffer.limit() && buffer.get(i) != '\n') i++;
+        return i + 1;
+    }
+
+    /**
+     * Read a line.
+     * @param buffer the file
+     * @param start the start of the line
+     * @return the bytes of the line, without the newline
+     */
+    private static byte[] line(MappedByteBuffer buffer, int start) {
+        int end = start;
+        while (end < buffer.limit() && buffer.get(end) != '\n') end++;
+        var bytes = new byte[end - start];
+        buffer.get(start, bytes);
+        return bytes;
+    }
+
+    /**
+     * Apply changes of snippets to the usage of the tags, then write the tags file and the generation,
+     * each file atomically; the generation last.
+     * @param tagStats the usage of each tag, sorted
+     * @param changes the changes of the snippets
+     * @param generation the generation of the repository
+     * @throws IOException if the index cannot be written
+     */
+    private void write(SortedMap<String, TagStats> tagStats, Collection<Change> changes, long generation) throws IOException {
+        for (var change : changes) {
+            if (!fits(change.name())) continue;
+            count(tagStats, change.removedTags(), -1, change.removedBytes());
+            count(tagStats, change.addedTags(), 1, change.addedBytes());
+        }
+        Files.createDirectories(dir);
+        var tags = new ArrayList<String>(tagStats.size());
+        tagStats.values().forEach(stat -> tags.add(stat.tag() + "\t" + stat.count() + "\t" + stat.bytes()));
+        replace("tags", tags);
+        replace("generation", List.of(Long.toString(generation)));
+    }
+
+    /**
+     * Replace a file of the index atomically.
+     * @param file the name of the file
+     * @param lines the lines of the file
+     * @throws IOException if the file cannot be written
+     */
+    private void replace(String file, Collection<String> lines) throws IOException {
+        var tmp = dir.resolve(file + ".tmp");
+        Files.write(tmp, lines, StandardCharsets.UTF_8);
+        Files.move(tmp, dir.resolve(file), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Count the tags of a snippet in or out.
+     * @param tagStats the usage of each tag
+     * @param tags the tags of a snippet (can be null)
+     * @param delta 1 to count the tags in, -1 to count them out
+     * @param bytes the size of the content of the snippet
+     */
+    private static void count(Map<String, TagStats> tagStats, String[] tags, int delta, long bytes) {
+        if (tags == null) return;
+        for (var tag : new HashSet<>(Arrays.asList(tags))) {
+            if (tag.isEmpty() || !fits(tag) || tag.indexOf('\t') >= 0) continue;
+            tagStats.compute(tag, (t, stat) -> {
+                int count = (stat == null ? 0 : stat.count()) + delta;
+                long total = (stat == null ? 0 : stat.bytes()) + delta * bytes;
+                return count > 0 ? new TagStats(tag, count, Math.max(0, total)) : null;
+            });
+        }
+    }
+
+    /**
+     * Tell if a name or a tag can be stored on a line.
+     * @param value the name or the tag
+     * @return false if it has a line separator
+     */
+    private static boolean fits(String value) {
+        return value.indexOf('\n') < 0 && value.indexOf('\r') < 0;
+    }
+}
@@ -0,0 +1,183 @@
+package sh.sinux.repository;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Delta encodes a version of a snippet as the difference against another version (the base),
+ * as a list of instructions copying a range of the base or inserting new bytes.
+ * The base is indexed by blocks of {@link #BLOCK} bytes, and the target is scanned with a rolling hash
+ * to find blocks of the base, extended as long as the bytes match: moved or repeated ranges are found too,
+ * unlike with a common prefix and suffix.
+ * <p>
+ * A delta is stored as (numbers as unsigned varints):
+ * <pre>{@code
+ * target length | instruction...
+ * instruction = 0 offset length (copy from the base) | 1 length bytes... (insert)
+ * }</pre>
+ * @author sinux-l5d
+ * @since 1.1
+ */
+final class Delta {
+
+    /** Size of the blocks of the base indexed */
+    static final int BLOCK = 16;
+
+    /** Multiplier of the rolling hash */
+    private static final int PRIME = 31;
+
+    /** Copy instruction */
+    private static final int COPY = 0;
+
+    /** Insert instruction */
+    private static final int INSERT = 1;
+
+    /** Not instantiable */
+    private Delta() {
+    }
+
+    /**
+     * Compute the delta turning a base into a target.
+     * @param base the base version
+     * @param target the target version
+     * @return the encoded delta
+     */
+    static byte[] diff(byte[] base, byte[] target) {
+        var out = new ByteArrayOutputStream(Math.min(target.length, 1024));
+        writeVarint(out, target.length);
+
+        // Index the blocks of the base (the first occurrence wins)
+        var blocks = new HashMap<Integer, Integer>();
+        for (int offset = 0; offset + BLOCK <= base.length; offset += BLOCK) {
+            blocks.putIfAbsent(hash(base, offset), offset);
+        }
+
+        int power = 1; // PRIME^(BLOCK - 1), to roll the hash
+        for (int i = 1; i < BLOCK; i++) power *= PRIME;
+
+        int pending = 0; // start of the bytes to insert
+        int i = 0;
+        int h = target.length >= BLOCK ? hash(target, 0) : 0;
+        while (i + BLOCK <= target.length) {
+            var match = blocks.get(h);
+            if (match != null && Arrays.equals(base, match, match + BLOCK, target, i, i + BLOCK)) {
+                // Extend the match backward over the pending bytes, then forward
+                int start = match;
+                while (start > 0 && i > pending && base[start - 1] == target[i - 1]) {
+                    start--;
+                    i--;
+                }
+                int length = 0;
+                while (start + length < base.length && i + length < target.length && base[start + length] == target[i + length]) {
+                    length++;
+                }
+                insert(out, target, pending, i);
+                writeVarint(out, COPY);
+                writeVarint(out, start);
+                writeVarint(out, length);
+                i += length;
+                pending = i;
+                if (i + BLOCK <= target.length) h = hash(target, i);
+                continue;
+            }
+            if (i + BLOCK < target.length) h = (h - target[i] * power) * PRIME + target[i + BLOCK];
+            i++;
+        }
+        insert(out, target, pending, target.length);
+        return out.toByteArray();
+    }
+
+    /**
+     * Apply a delta to its base.
+     * @param base the base version
+     * @param delta the encoded delta
+     * @return the target version
+     * @throws IllegalArgumentException if the delta is corrupted, or does not apply to this base
+     */
+    static byte[] apply(byte[] base, byte[] delta) throws IllegalArgumentException {
+        var position = new int[1];
+        int length = readVarint(delta, position);
+        var target = new byte[length];
+        int written = 0;
+        try {
+            while (position[0] < delta.length) {
+                int op = readVarint(delta, position);
+                if (op == COPY) {
+                    int offset = readVarint(delta, position);
+                    int count = readVarint(delta, position);
+                    System.arraycopy(base, offset, target, written, count);
+                    written += count;
+                } else if (op == INSERT) {
+                    int count = readVarint(delta, position);
+                    System.arraycopy(delta, position[0], target, written, count);
+                    position[0] += count;
+                    written += count;
+                } else {
+                    throw new IllegalArgumentException("Unknown delta instruction: " + op);
+                }
+            }
+        } catch (IndexOutOfBoundsException e) {
+            throw new IllegalArgumentException("Corrupted delta", e);
+        }
+        if (written != length) throw new IllegalArgumentException("Corrupted delta: " + written + " bytes instead of " + length);
+        return target;
+    }
+
+    /**
+     * Write an insert instruction, if there are bytes to insert.
+     * @param out the delta
+     * @param target the target version
+     * @param from the first byte to insert (inclusive)
+     * @param to the last byte to insert (exclusive)
+     */
+    private static void insert(ByteArrayOutputStream out, byte[] target, int from, int to) {
+        if (from >= to) return;
+        writeVarint(out, INSERT);
+        writeVarint(out, to - from);
+        out.write(target, from, to - from);
+    }
+
+    /**
+     * Hash a block.
+     * @param bytes the bytes
+     * @param offset the start of the block
+     * @return the hash, consistent with the rolling hash of {@link #diff(byte[], byte[])}
+     */
+    private static int hash(byte[] bytes, int offset) {
+        int h = 0;
+        for (int i = offset; i < offset + BLOCK; i++) h = h * PRIME + bytes[i];
+        return h;
+    }
+
+    /**
+     * Write an unsigned varint (7 bits per byte, the high bit set on every byte but the last).
+     * @param out the output
+     * @param value the value (non-negative)
+     */
+    private static void writeVarint(ByteArrayOutputStream out, int value) {
+        while ((value & ~0x7f) != 0) {
+            out.write((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    /**
+     * Read an unsigned varint.
+     * @param bytes the input
+     * @param position the position to read from, advanced past the varint
+     * @return the value
+     * @throws IllegalArgumentException if the varint is truncated or too long
+     */
+    private static int readVarint(byte[] bytes, int[] position) throws IllegalArgumentException {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            if (position[0] >= bytes.length) throw new IllegalArgumentException("Truncated delta");
+            int b = bytes[position[0]++];
+            value |= (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) return value;
+        }
+        throw new IllegalArgumentException("Corrupted delta");
+    }
+}
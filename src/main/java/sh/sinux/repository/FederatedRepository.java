@@ -0,0 +1,542 @@
+package sh.sinux.repository;
+
+import sh.sinux.Snippet;
+import sh.sinux.config.Config;
+
+import java.io.Reader;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * FederatedRepository mounts several repositories (possibly of different storage types) under namespaces.
+ * Names are qualified with the namespace of their repository: {@code namespace:snippet-unique-name}.
+ * An unqualified name refers to the first repository having it (or to the first mounted repository, to save),
+ * except for {@link #getAll(Collection)} which looks it up in every repository.
+ * Queries are sent to every repository concurrently, and the results are merged as they arrive,
+ * so a query takes about as long as the slowest repository.
+ * A repository which fails (e.g. an unreachable server) is reported on the standard error, and the query
+ * answers from the other ones: it only fails when every repository does.
+ * It assumes that the storage type is {@link sh.sinux.config.StorageType#FEDERATED}.
+ * @author sinux-l5d
+ * @since 1.1
+ */
+public class FederatedRepository implements Repository {
+
+    /** Separator between the namespace and the name of a snippet */
+    public static final char NAMESPACE_SEPARATOR = ':';
+
+    /** The mounted repositories, by namespace */
+    private final Map<String, Repository> members = new LinkedHashMap<>();
+
+    /** The namespace used to save unqualified names */
+    private final String defaultNamespace;
+
+    /** Runs the queries to the mounted repositories */
+    private final ExecutorService executor;
+
+    /**
+     * Creates a new FederatedRepository instance.
+     * @param config the configuration of the application, with the mounted storages
+     * @throws RuntimeException if no storage is mounted, or if a mounted repository cannot be created
+     */
+    public FederatedRepository(Config config) throws RuntimeException {
+        if (config.getMounts().isEmpty())
+            throw new RuntimeException("No storage to federate");
+        config.getMounts().forEach((namespace, mount) -> members.put(namespace, RepositoryProxy.inner(mount)));
+        defaultNamespace = members.keySet().iterator().next();
+
+        executor = Executors.newFixedThreadPool(members.size(), runnable -> {
+            var thread = new Thread(runnable, "snipit-federation");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Save a snippet in one of the repositories.
+     * @param name the snippet name, qualified with the namespace of the repository (or saved in the first one)
+     * @param content the snippet content
+     * @param tags the snippet tags (can be empty)
+     * @return true if the snippet was saved, false otherwise (e.g. the snippet name is already used)
+     */
+    @Override
+    public boolean save(String name, String content, String[] tags) {
+        if (name == null) return false;
+        var qualified = qualify(name);
+        if (qualified == null) return members.get(defaultNamespace).save(name, content, tags);
+        return members.get(qualified[0]).save(qualified[1], content, tags);
+    }
+
+    /**
+     * Get a snippet from the repositories.
+     * @param name the snippet name, qualified or not
+     * @return the snippet with its qualified name, or null if not found
+     */
+    @Override
+    public Snippet get(String name) {
+        if (name == null) return null;
+        var qualified = qualify(name);
+        if (qualified != null) return withNamespace(qualified[0], members.get(qualified[0]).get(qualified[1]));
+        for (var member : members.entrySet()) {
+            var snippet = member.getValue().get(name);
+            if (snippet != null) return withNamespace(member.getKey(), snippet);
+        }
+        return null;
+    }
+
+    /**
+     * Get many snippets at once, grouped by repository and fetched concurrently.
+     * Unqualified names are looked up in every repository.
+     * @param names the snippet names, qualified or not
+     * @return the snippets that exist, with their qualified names, in no particular order
+     */
+    @Override
+    public List<Snippet> getAll(Collection<String> names) {
+        var byNamespace = new LinkedHashMap<String, List<String>>();
+        for (var name : names) {
+            if (name == null) continue;
+            var qualified = qualify(name);
+            if (qualified != null) {
+                byNamespace.computeIfAbsent(qualified[0], namespace -> new ArrayList<>()).add(qualified[1]);
+            } else {
+                members.keySet().forEach(namespace -> byNamespace.computeIfAbsent(namespace, ns -> new ArrayList<>()).add(name));
+            }
+        }
+        return merge(byNamespace.keySet(), (namespace, repository) -> repository.getAll(byNamespace.get(namespace))
+                .stream()
+                .map(snippet -> withNamespace(namespace, snippet))
+                .toList());
+    }
+
+    /**
+     * Get the tags of a snippet from the repositories.
+     * @param name the snippet name, qualified or not
+     * @return the tags of the snippet, or null if not found
+     */
+    @Override
+    public String[] getTags(String name) {
+        if (name == null) return null;
+        var qualified = qualify(name);
+        if (qualified != null) return members.get(qualified[0]).getTags(qualified[1]);
+        for (var member : members.values()) {
+            var tags = member.getTags(name);
+            if (tags != null) return tags;
+        }
+        return null;
+    }
+
+    /**
+     * Get the tags of many snippets at once, grouped by repository and fetched concurrently.
+     * Unqualified names are looked up in every repository, the first one having the snippet wins.
+     * @param names the snippet names, qualified or not
+     * @return the tags of the snippets that exist, by the names given
+     */
+    @Override
+    public Map<String, String[]> getAllTags(Collection<String> names) {
+        // The names to look up in each repository, with the names given for them
+        var requested = new LinkedHashMap<String, Map<String, List<String>>>();
+        for (var name : names) {
+            if (name == null) continue;
+            var qualified = qualify(name);
+            var namespaces = qualified == null ? members.keySet() : List.of(qualified[0]);
+            var local = qualified == null ? name : qualified[1];
+            for (var namespace : namespaces) {
+                requested.computeIfAbsent(namespace, ns -> new HashMap<>()).computeIfAbsent(local, n -> new ArrayList<>()).add(name);
+            }
+        }
+        var found = new HashMap<String, Map<String, String[]>>();
+        merge(requested.keySet(), (namespace, repository) -> List.of(Map.entry(namespace, repository.getAllTags(requested.get(namespace).keySet()))))
+                .forEach(entry -> found.put(entry.getKey(), entry.getValue()));
+        var tags = new HashMap<String, String[]>();
+        // In the order of the repositories, so that the first one having an unqualified name wins
+        for (var namespace : members.keySet()) {
+            found.getOrDefault(namespace, Map.of()).forEach((local, snippetTags) ->
+                    requested.get(namespace).get(local).forEach(name -> tags.putIfAbsent(name, snippetTags)));
+        }
+        return tags;
+    }
+
+    /**
+     * Get the location of a snippet from the repositories.
+     * @param name the snippet name, qualified or not
+     * @return the location of the snippet, or null if not found
+     */
+    @Override
+    public String getLocation(String name) {
+        if (name == null) return null;
+        var qualified = qualify(name);
+        if (qualified != null) return members.get(qualified[0]).getLocation(qualified[1]);
+        for (var member : members.values()) {
+            var location = member.getLocation(name);
+            if (location != null) return location;
+        }
+        return null;
+    }
+
+    /**
+     * Open the content of a snippet from the repositories.
+     * @param name the snippet name, qualified or not
+     * @return a reader of the content, or null if not found
+     */
+    @Override
+    public Reader openContent(String name) {
+        if (name == null) return null;
+        var qualified = qualify(name);
+        if (qualified != null) return members.get(qualified[0]).openContent(qualified[1]);
+        for (var member : members.values()) {
+            var reader = member.openContent(name);
+            if (reader != null) return reader;
+        }
+        return null;
+    }
+
+    /**
+     * Get the MinHash signature of a snippet from the repositories.
+     * @param name the snippet name, qualified or not
+     * @return the signature of the snippet, or null if not found
+     */
+    @Override
+    public int[] getSignature(String name) {
+        if (name == null) return null;
+        var qualified = qualify(name);
+        if (qualified != null) return members.get(qualified[0]).getSignature(qualified[1]);
+        for (var member : members.values()) {
+            var signature = member.getSignature(name);
+            if (signature != null) return signature;
+        }
+        return null;
+    }
+
+    /**
+     * Remove a snippet from the repositories.
+     * @param name the snippet name, qualified or not (the first one found is removed)
+     * @return true if the snippet was removed, false otherwise (e.g. the snippet does not exist)
+     */
+    @Override
+    public boolean remove(String name) {
+        if (name == null) return false;
+        var qualified = qualify(name);
+        if (qualified != null) return members.get(qualified[0]).remove(qualified[1]);
+        for (var member : members.values()) {
+            if (member.remove(name)) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Replace a snippet by a new version in its repository.
+     * @param name the snippet name, qualified or not (the first one found is updated)
+     * @param content the new content of the snippet
+     * @param tags the new tags of the snippet
+     * @return true if the snippet was updated, false otherwise (e.g. the snippet does not exist)
+     */
+    @Override
+    public boolean update(String name, String content, String[] tags) {
+        if (name == null) return false;
+        var qualified = qualify(name);
+        if (qualified != null) return members.get(qualified[0]).update(qualified[1], content, tags);
+        for (var member : members.values()) {
+            if (member.update(name, content, tags)) return true;
+        }
+        return false;
+    }
+
+    /**
+     * List the revisions of a snippet from its repository.
+     * @param name the snippet name, qualified or not
+     * @return the revisions, or null if not found
+     */
+    @Override
+    public List<Revision> history(String name) {
+        if (name == null) return null;
+        var qualified = qualify(name);
+        if (qualified != null) return members.get(qualified[0]).history(qualified[1]);
+        for (var member : members.values()) {
+            var history = member.history(name);
+            if (history != null) return history;
+        }
+        return null;
+    }
+
+    /**
+     * Get a revision of a snippet from its repository.
+     * @param name the snippet name, qualified or not
+     * @param revision the number of the revision
+     * @return the snippet as it was at this revision, with its qualified name, or null if not found
+     */
+    @Override
+    public Snippet getRevision(String name, int revision) {
+        if (name == null) return null;
+        var qualified = qualify(name);
+        if (qualified != null) return withNamespace(qualified[0], members.get(qualified[0]).getRevision(qualified[1], revision));
+        for (var member : members.entrySet()) {
+            if (member.getValue().get(name) == null) continue;
+            return withNamespace(member.getKey(), member.getValue().getRevision(name, revision));
+        }
+        return null;
+    }
+
+    /**
+     * List the qualified names of the snippets of every repository.
+     * @return a list of snippet names
+     */
+    @Override
+    public List<String> listNames() {
+        return merge(members.keySet(), (namespace, repository) -> repository.listNames()
+                .stream()
+                .map(name -> namespace + NAMESPACE_SEPARATOR + name)
+                .toList());
+    }
+
+    /**
+     * List a page of the qualified names of every repository, sorted.
+     * Qualified names sort by namespace first: the repositories are listed one after the other,
+     * each one asked for the rest of the page only. A repository which fails is reported, and skipped.
+     * @param prefix only list the qualified names starting with it (can be null)
+     * @param cursor the cursor given by the previous page (null for the first page)
+     * @param limit the maximum number of names of the page
+     * @return the page
+     * @throws IllegalArgumentException if the cursor or the limit is not valid
+     */
+    @Override
+    public Page listNames(String prefix, String cursor, int limit) throws IllegalArgumentException {
+        if (limit < 1) throw new IllegalArgumentException("The limit must be positive");
+        var after = Page.decodeCursor(cursor);
+        var start = prefix == null ? "" : prefix;
+        var namespaces = members.keySet().stream().sorted(Comparator.comparing(ns -> ns + NAMESPACE_SEPARATOR, Page.ORDER)).toList();
+
+        var names = new ArrayList<String>();
+        for (var namespace : namespaces) {
+            var qualifier = namespace + NAMESPACE_SEPARATOR;
+            // The range of this repository
+            String memberPrefix;
+            if (start.startsWith(qualifier)) memberPrefix = start.substring(qualifier.length());
+            else if (qualifier.startsWith(start)) memberPrefix = "";
+            else continue;
+            String memberAfter = null;
+            if (after != null) {
+                if (after.startsWith(qualifier)) memberAfter = after.substring(qualifier.length());
+                else if (Page.ORDER.compare(after, qualifier) > 0) continue; // listed in a previous page
+            }
+
+            Page page;
+            try {
+                page = members.get(namespace).listNames(memberPrefix,
+                        memberAfter == null ? null : Page.encodeCursor(memberAfter), (int) Math.min(Integer.MAX_VALUE, (long) limit - names.size() + 1));
+            } catch (IllegalArgumentException e) {
+                throw e;
+            } catch (RuntimeException e) {
+                warn(namespace, e);
+                continue;
+            }
+            page.names().forEach(name -> names.add(qualifier + name));
+            if (names.size() > limit) break;
+        }
+        return Page.of(names, limit);
+    }
+
+    /**
+     * List the tags used in every repository.
+     * @return a list of tags, without duplicates
+     */
+    @Override
+    public List<String> listTags() {
+        return merge(members.keySet(), (namespace, repository) -> repository.listTags())
+                .stream()
+                .distinct()
+                .toList();
+    }
+
+    /**
+     * List the usage of each tag in every repository, summed: tags are shared between the namespaces.
+     * @return the usage of each tag, sorted by tag
+     */
+    @Override
+    public List<TagStats> tagStats() {
+        return TagStats.merge(merge(members.keySet(), (namespace, repository) -> repository.tagStats()));
+    }
+
+    /**
+     * Search in name, content and tags in every repository.
+     * @param query a word or a phrase to search
+     * @return a list of snippets, with their qualified names
+     */
+    @Override
+    public List<Snippet> searchAll(String query) {
+        return searchEverywhere(repository -> repository.searchAll(query));
+    }
+
+    /**
+     * Search in name in every repository.
+     * @param query a word or a phrase to search
+     * @return a list of snippets, with their qualified names
+     */
+    @Override
+    public List<Snippet> searchName(String query) {
+        return searchEverywhere(repository -> repository.searchName(query));
+    }
+
+    /**
+     * Search in content in every repository.
+     * @param query a word or a phrase to search
+     * @return a list of snippets, with their qualified names
+     */
+    @Override
+    public List<Snippet> searchContent(String query) {
+        return searchEverywhere(repository -> repository.searchContent(query));
+    }
+
+    /**
+     * Search in tags in every repository.
+     * @param query a word or a phrase to search
+     * @return a list of snippets, with their qualified names
+     */
+    @Override
+    public List<Snippet> searchTags(String query) {
+        return searchEverywhere(repository -> repository.searchTags(query));
+    }
+
+    /**
+     * Search in every repository, returning only the qualified names of the matching snippets.
+     * Each repository may answer from its own cache.
+     * @param query a word or a phrase to search
+     * @param mode where to search
+     * @return a list of snippet names
+     */
+    @Override
+    public List<String> searchNames(String query, SearchMode mode) {
+        return merge(members.keySet(), (namespace, repository) -> repository.searchNames(query, mode)
+                .stream()
+                .map(name -> namespace + NAMESPACE_SEPARATOR + name)
+                .toList());
+    }
+
+    /**
+     * Search in every repository, where the mode tells.
+     * Each repository may answer from its own cache.
+     * @param query a word or a phrase to search
+     * @param mode where to search
+     * @return a list of snippets, with their qualified names
+     */
+    @Override
+    public List<Snippet> search(String query, SearchMode mode) {
+        return searchEverywhere(repository -> repository.search(query, mode));
+    }
+
+    /**
+     * Makes the changes done so far durable in every repository.
+     */
+    @Override
+    public void flush() {
+        members.values().forEach(Repository::flush);
+    }
+
+    /**
+     * Makes the changes durable and releases the resources of every repository.
+     */
+    @Override
+    public void close() {
+        members.values().forEach(Repository::close);
+    }
+
+    /**
+     * Runs the maintenance of every repository.
+     */
+    @Override
+    public void maintain() {
+        members.values().forEach(Repository::maintain);
+    }
+
+    /**
+     * Watches the snippets changed outside every repository.
+     * @param listener called with the qualified names of the snippets changed, or null if any may have changed
+     */
+    @Override
+    public void watch(Consumer<Collection<String>> listener) {
+        members.forEach((namespace, repository) -> repository.watch(names -> listener.accept(names == null ? null
+                : names.stream().map(name -> namespace + NAMESPACE_SEPARATOR + name).toList())));
+    }
+
+    /**
+     * Run a search in every repository and qualify the names of the results.
+     * @param search the search to run on a repository
+     * @return the merged results
+     */
+    private List<Snippet> searchEverywhere(Function<Repository, List<Snippet>> search) {
+        return merge(members.keySet(), (namespace, repository) -> search.apply(repository)
+                .stream()
+                .map(snippet -> withNamespace(namespace, snippet))
+                .toList());
+    }
+
+    /**
+     * Run a query on some repositories concurrently, and merge the results as each repository answers.
+     * The repositories which fail are reported (see {@link #warn(String, Throwable)}), and left out of the results.
+     * @param namespaces the namespaces of the repositories to query
+     * @param query the query to run on a repository, given its namespace
+     * @param <T> the type of the results
+     * @return the merged results of the repositories which answered
+     * @throws RuntimeException if every repository fails
+     */
+    private <T> List<T> merge(Collection<String> namespaces, BiFunction<String, Repository, List<T>> query) throws RuntimeException {
+        var completion = new ExecutorCompletionService<List<T>>(executor);
+        var pending = new HashMap<Future<List<T>>, String>();
+        for (var namespace : namespaces) {
+            pending.put(completion.submit(() -> query.apply(namespace, members.get(namespace))), namespace);
+        }
+        var results = new ArrayList<T>();
+        int failed = 0;
+        try {
+            for (int i = 0; i < namespaces.size(); i++) {
+                var future = completion.take();
+                try {
+                    results.addAll(future.get());
+                } catch (ExecutionException e) {
+                    if (++failed == namespaces.size())
+                        throw new RuntimeException("Every federated storage failed: " + e.getCause().getMessage(), e.getCause());
+                    warn(pending.get(future), e.getCause());
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while querying the federated storages", e);
+        }
+        return results;
+    }
+
+    /**
+     * Report a repository which failed to answer a query, on the standard error (the standard output being the results).
+     * @param namespace the namespace of the repository
+     * @param error the failure
+     */
+    private static void warn(String namespace, Throwable error) {
+        System.err.println("The storage " + namespace + " failed, its snippets are left out: " + error.getMessage());
+    }
+
+    /**
+     * Split a qualified name.
+     * @param name the snippet name
+     * @return the namespace and the name in this namespace, or null if the name is not qualified by a known namespace
+     */
+    private String[] qualify(String name) {
+        int separator = name.indexOf(NAMESPACE_SEPARATOR);
+        if (separator <= 0) return null;
+        var namespace = name.substring(0, separator);
+        if (!members.containsKey(namespace)) return null;
+        return new String[]{namespace, name.substring(separator + 1)};
+    }
+
+    /**
+     * Qualify the name of a snippet with a namespace.
+     * @param namespace the namespace of the repository the snippet comes from
+     * @param snippet the snippet (can be null)
+     * @return the snippet with its qualified name, or null
+     */
+    private static Snippet withNamespace(String namespace, Snippet snippet) {
+        if (snippet == null) return null;
+        return new Snippet(namespace + NAMESPACE_SEPARATOR + snippet.name(), snippet.content(), snippet.location(), snippet.tags());
+    }
+}
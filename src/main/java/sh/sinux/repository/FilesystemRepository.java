@@ -2,14 +2,26 @@ package sh.sinux.repository;
 
 import sh.sinux.Snippet;
 import sh.sinux.config.Config;
+import sh.sinux.similarity.MinHash;
 
 import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.FileSystems;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.util.*;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
+import java.util.zip.GZIPInputStream;
 
 /**
  * FilesystemRepository is a repository that stores snippets in the filesystem.
@@ -19,33 +31,1013 @@ import java.util.stream.Stream;
  * <pre>{@code
  * app-dir/
  * - /snippets/
- *   - /snippet-unique-name/
- *     - /content (the content file of the snippet)
- *     - /tags (the tags of the snippet file, separated by a newline)
+ *   - /snippet-unique-name (the {@link SnippetFile} of the snippet: its tags, {@link MinHash} signature and content)
+ * - /history/
+ *   - /snippet-unique-name (the previous versions of the snippet, see {@link History}, written at update)
+ * - /repository.properties (metadata, like the {@link StorageLayout} and the format of the snippets)
+ * - /generation (a number bumped by every save and remove)
+ * - /journal (the {@link Journal} of the mutations not checkpointed yet)
+ * - /tmp/ (snippets being written, discarded on startup)
+ * - /lock (locked by region to coordinate processes)
+ * - /cache/search (the {@link QueryCache} of search results)
+ * - /completion/ (the sorted names and tags for shell completion, see {@link CompletionIndex})
+ * - /tiers/ (the {@link AccessCounter} of the snippets read, and the {@link HotTier} file)
+ * - /snapshot (the {@link Snapshot} of the snippet files, to find the ones changed outside the repository)
+ * - /snapshot.delta (the changes of the snapshot since it was written)
  * }</pre>
+ * With the {@link StorageLayout#SHARDED} layout, snippet and history files are nested under
+ * two levels of hash-prefix directories instead (e.g. {@code snippets/3f/a2/snippet-unique-name}).
+ * <p>
+ * A snippet file is written in /tmp/ then renamed into place, so it is never seen half-written.
+ * Mutations are logged in a write-ahead {@link Journal}, synced once per group of mutations or on {@link #flush()},
+ * and replayed on startup if the data files did not make it to disk.
+ * <p>
+ * The repository is safe to use from several threads and processes at once: mutations are serialized per name
+ * by a {@link StripedLock} (backed by the /lock file), and reads take no lock since snippets are only
+ * ever renamed into place.
+ * <p>
+ * Snippets are tiered by how often they are read, on {@link #maintain()} (see {@link #rebalance()}): the most read
+ * small ones are copied inline into the {@link HotTier} file, and the ones not read for long have their content
+ * compressed into {@link ColdStorage}. Tiering changes how snippets are read, never what is read.
+ * Only the snippets read one by one are counted as read: the scans of every snippet (searches, listings)
+ * read them with {@link #getAll(Collection)}, which is not counted.
+ * <p>
+ * The snippet files changed outside the repository (by hand, or by a synchronization tool) are found on startup
+ * by comparing them with the {@link Snapshot}, and while the process runs once {@link #watch(Consumer)} is called:
+ * only those are read again to update the derived structures (see {@link #reconcile(Collection)}).
+ * On startup, every snippet file is compared only if a directory of the snippets was modified after the snapshot
+ * (a file created, deleted or renamed in it); otherwise only the snippets of the {@link HotTier} are,
+ * since their copy would be served instead of the file. A snippet file edited in place is found
+ * on the next comparison of every file, or right away by {@link #watch(Consumer)}.
+ * <p>
+ * Repositories of the format 1 (a directory per snippet, holding {@code content}, {@code tags},
+ * {@code minhash} and {@code history} files) are upgraded on startup, see {@link #upgrade()}.
  *
  * @author sinux-l5d
  * @since 1.0
  */
-public class FilesystemRepository implements Repository {
+public final class FilesystemRepository implements Repository {
     /** The root directory of the repository */
     private final Path root;
 
     /** Constant for the snippets directory */
     private static final String SNIPPETS_DIR = "snippets";
 
+    /** Constant for the history directory */
+    private static final String HISTORY_DIR = "history";
+
+    /** Constant for the metadata file */
+    private static final String METADATA_FILE = "repository.properties";
+
+    /** The format of the snippets, see {@link SnippetFile} */
+    private static final int FORMAT = 2;
+
+    /** The repository metadata (layout, format, pending migration...) */
+    private final Properties metadata = new Properties();
+
+    /** The layout used to resolve snippet files */
+    private volatile StorageLayout layout;
+
+    /** Serializes the mutations per name, between threads and processes */
+    private final StripedLock locks;
+
+    /** Constant for the generation file */
+    private static final String GENERATION_FILE = "generation";
+
+    /** Constant for the history file of a snippet directory, in the format 1 */
+    private static final String HISTORY_FILE = "history";
+
+    /** Constant for the staging directory */
+    private static final String TMP_DIR = "tmp";
+
+    /** Constant for the directory of the snippet directories being upgraded from the format 1 */
+    private static final String UPGRADE_DIR = "upgrade";
+
+    /** Constant for the tiers directory */
+    private static final String TIERS_DIR = "tiers";
+
+    /** Time between two sweeps of the snippets to demote to {@link ColdStorage} */
+    private static final long SWEEP_INTERVAL_MILLIS = 24L * 60 * 60 * 1000;
+
+    /**
+     * Size of the journal from which {@link #flush()} makes a checkpoint.
+     * A checkpoint syncs every data file written since the last one, so checkpoints are kept rare: until then,
+     * the synced journal makes the mutations durable. It bounds what a startup checks (see {@link #recover()}).
+     */
+    private static final long CHECKPOINT_BYTES = 1 << 20;
+
+    /** Time without mutation after which {@link #flush()} makes a checkpoint of a journal not empty */
+    private static final long IDLE_CHECKPOINT_MILLIS = 10_000;
+
+    /** The journal of the mutations */
+    private final Journal journal;
+
+    /** Caches the results of {@link #searchNames(String, SearchMode)} */
+    private final QueryCache queryCache;
+
+    /** The names and tags for shell completion, updated with the generation */
+    private final CompletionIndex completion;
+
+    /** Counts the reads of the snippets, to tier them */
+    private final AccessCounter accesses;
+
+    /** The most read small snippets, inline in a single file */
+    private final HotTier hot;
+
+    /** The size, modification time and tags of the snippet files, as of the current generation */
+    private final Snapshot snapshot;
+
+    /** Watches the snippet files, once {@link #watch(Consumer)} is called */
+    private SnippetWatcher watcher;
+
+    /** The size of the journal when it was last seen changed by {@link #flush()} */
+    private long flushedSize = -1;
+
+    /** The time the journal was last seen changed by {@link #flush()} */
+    private long flushedTime;
+
+    /** Reads snippets concurrently for {@link #getAll(Collection)} */
+    private final AsyncSnippetReader asyncReader = new AsyncSnippetReader(AsyncSnippetReader.DEFAULT_CONCURRENCY);
+
     /**
      * Creates a new FilesystemRepository instance.
      * @param config the configuration of the application.
      * @throws RuntimeException if the {@link sh.sinux.config.Config#getStoragePath()} directory cannot be created.
      */
+    @SuppressWarnings("try")
     public FilesystemRepository(Config config) throws RuntimeException {
         this.root = FileSystems.getDefault().getPath(config.getStoragePath());
+        this.queryCache = new QueryCache(root.resolve("cache").resolve("search"), QueryCache.DEFAULT_CAPACITY);
+        this.journal = new Journal(root.resolve("journal"), Journal.DEFAULT_GROUP_SIZE);
+        this.completion = new CompletionIndex(root.resolve("completion"));
+        this.accesses = new AccessCounter(root.resolve(TIERS_DIR));
+        this.hot = new HotTier(root.resolve(TIERS_DIR).resolve("hot"));
+        this.snapshot = new Snapshot(root.resolve("snapshot"));
 
         if (!root.toFile().exists())
             if (!root.toFile().mkdirs())
                 throw new RuntimeException("Cannot create the root directory: " + root);
 
+        var metadataFile = root.resolve(METADATA_FILE);
+        if (metadataFile.toFile().exists()) {
+            try (var reader = Files.newBufferedReader(metadataFile)) {
+                metadata.load(reader);
+            } catch (IOException e) {
+                throw new RuntimeException("Cannot read the repository metadata: " + metadataFile, e);
+            }
+        }
+        layout = StorageLayout.fromName(metadata.getProperty("layout", StorageLayout.FLAT.toString()));
+        int format;
+        try {
+            format = Integer.parseInt(metadata.getProperty("format", "1"));
+        } catch (NumberFormatException e) {
+            throw new RuntimeException("Invalid storage format: " + metadata.getProperty("format"), e);
+        }
+        if (format > FORMAT) throw new RuntimeException("The storage format " + format + " is not supported: " + root);
+
+        // Resume a migration interrupted by a crash, upgrade, recover, then reconcile, with every mutation locked out
+        this.locks = new StripedLock(root.resolve("lock"), StripedLock.DEFAULT_STRIPES);
+        try (var ignored = locks.lockAll()) {
+            var pending = metadata.getProperty("migration");
+            if (pending != null) doMigrate(StorageLayout.fromName(pending));
+            if (format < FORMAT) upgrade();
+
+            var changed = recover();
+            long generation = generation();
+            if (completion.isStale(generation, changed, name -> snippetFile(name).toFile().exists())) rebuild();
+            else if (snapshot.generation() != generation || layout.isModifiedSince(root.resolve(SNIPPETS_DIR), snapshot.modified())) reconcile(null);
+            else {
+                var hotChanged = changedHot();
+                if (!hotChanged.isEmpty()) reconcile(hotChanged);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Cannot update the indexes of the repository: " + root, e);
+        } catch (UncheckedIOException e) {
+            throw new RuntimeException(e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Upgrade the repository from the format 1, a directory per snippet, to single {@link SnippetFile}s.
+     * Each snippet directory is moved out of place first (to /upgrade/), then its snippet file is written
+     * in place and its history moved to /history/, then the directory is deleted: an interrupted upgrade
+     * is resumed from /upgrade/ on the next startup.
+     * A new repository is created with the current format.
+     * It must be called with every mutation locked out.
+     * @throws RuntimeException if a snippet cannot be upgraded, or the metadata cannot be written
+     */
+    private void upgrade() throws RuntimeException {
+        var snippetsDir = root.resolve(SNIPPETS_DIR);
+        var upgradeDir = root.resolve(UPGRADE_DIR);
+        try {
+            for (var name : layout.listNames(upgradeDir)) upgrade(name, layout.resolve(upgradeDir, name));
+            for (var name : layout.listNames(snippetsDir)) {
+                var snippetDir = layout.resolve(snippetsDir, name);
+                if (!snippetDir.toFile().isDirectory()) continue;
+                var moved = layout.resolve(upgradeDir, name);
+                Files.createDirectories(moved.getParent());
+                Files.move(snippetDir, moved, StandardCopyOption.ATOMIC_MOVE);
+                upgrade(name, moved);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Cannot upgrade the storage: " + root, e);
+        }
+        deleteRecursively(upgradeDir);
+        metadata.setProperty("format", Integer.toString(FORMAT));
+        writeMetadata();
+    }
+
+    /**
+     * Upgrade a snippet directory of the format 1, moved out of place.
+     * A directory without a content or tags file is an incomplete write, dropped (the journal replays it).
+     * @param name the unique name of the snippet
+     * @param snippetDir the snippet directory
+     * @throws IOException if the snippet cannot be upgraded
+     */
+    private void upgrade(String name, Path snippetDir) throws IOException {
+        var file = snippetFile(name);
+        var contentFile = snippetDir.resolve("content");
+        var coldFile = snippetDir.resolve("content.gz");
+        var tagsFile = snippetDir.resolve("tags");
+        if (!file.toFile().exists() && tagsFile.toFile().exists() && (contentFile.toFile().exists() || coldFile.toFile().exists())) {
+            byte[] content;
+            long time;
+            if (contentFile.toFile().exists()) {
+                content = Files.readAllBytes(contentFile);
+                time = Files.getLastModifiedTime(contentFile).toMillis();
+            } else {
+                try (var in = new GZIPInputStream(Files.newInputStream(coldFile))) {
+                    content = in.readAllBytes();
+                }
+                time = Files.getLastModifiedTime(coldFile).toMillis();
+            }
+            var tags = withoutEmpty(Files.readString(tagsFile).split("\n"));
+            var signatureFile = snippetDir.resolve("minhash");
+            var signature = signatureFile.toFile().exists() ? MinHash.decode(Files.readAllBytes(signatureFile)) : null;
+            if (signature == null) signature = MinHash.signature(new String(content, StandardCharsets.UTF_8));
+            SnippetFile.write(file, SnippetFile.encode(content, tags, MinHash.encode(signature), false),
+                    root.resolve(TMP_DIR), time, true);
+        }
+        var history = snippetDir.resolve(HISTORY_FILE);
+        if (history.toFile().exists()) {
+            var historyFile = historyFile(name);
+            Files.createDirectories(historyFile.getParent());
+            Files.move(history, historyFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+        deleteRecursively(snippetDir);
+    }
+
+    /**
+     * Recover from a crash: discard the incomplete writes (what is left in /tmp/),
+     * then replay the journal for the mutations whose data files did not make it to disk.
+     * Only the entries appended since the journal was last checked are, unless the system restarted
+     * meanwhile (see {@link Journal#checked()}): the cost of a startup does not grow with the journal.
+     * The snippet files changed outside the repository since their last mutation are left as they are
+     * (see {@link #isChangedOutside(Map, long, String)}).
+     * The snippets in the journal are checked in the hot file, which may have missed their last change
+     * (a crash before its invalidation).
+     * @return the names of the snippets changed since the journal was last checked
+     * @throws RuntimeException if the journal cannot be read
+     */
+    @SuppressWarnings("try")
+    private Set<String> recover() throws RuntimeException {
+        deleteRecursively(root.resolve(TMP_DIR));
+
+        List<Journal.Entry> entries;
+        try {
+            entries = journal.recover(journal.checked());
+        } catch (IOException e) {
+            throw new RuntimeException("Cannot read the journal: " + root.resolve("journal"), e);
+        }
+        // Only the last operation on a snippet determines its state
+        var last = new LinkedHashMap<String, Journal.Entry>();
+        entries.stream().filter(entry -> Repository.isValidName(entry.name())).forEach(entry -> last.put(entry.name(), entry));
+        var states = last.isEmpty() ? null : snapshot.read(generation());
+        long snapshotTime = snapshot.modified();
+        for (var entry : last.values()) {
+            var file = snippetFile(entry.name());
+            if (states != null && isChangedOutside(states, snapshotTime, entry.name())) continue;
+            try {
+                if (entry.op() == Journal.Op.REMOVE) {
+                    if (file.toFile().exists()) discard(entry.name());
+                    continue;
+                }
+                if (entry.op() == Journal.Op.UPDATE && file.toFile().exists()) {
+                    try {
+                        replace(entry.name(), entry.content(), entry.tags()); // no-op if it completed
+                        continue;
+                    } catch (IOException e) {
+                        // the current version is corrupted: write the new one over it
+                    }
+                }
+                if (file.toFile().exists() && isWritten(file, entry)) continue;
+                write(entry.name(), entry.content(), entry.tags());
+            } catch (IOException e) {
+                throw new RuntimeException("Cannot replay the journal for the snippet " + entry.name(), e);
+            }
+        }
+        if (!last.isEmpty()) {
+            try (var ignored = locks.lockCounter()) {
+                for (var name : last.keySet()) {
+                    var hotEntry = hot.lookup(name);
+                    if (hotEntry != null && !isCurrent(hotEntry)) hot.invalidate(name);
+                }
+            } catch (IOException e) {
+                // Without the invalidations, the hot file could serve stale snippets: drop it
+                deleteRecursively(root.resolve(TIERS_DIR).resolve("hot"));
+            }
+        }
+        journal.markChecked();
+        return last.keySet();
+    }
+
+    /**
+     * Tells if a snippet file was changed outside the repository after the last change the repository made:
+     * it's a valid snippet file, newer than its state in the snapshot (or than the snapshot, for a snippet not in it),
+     * or it was deleted from a directory changed after the snapshot.
+     * A snippet file lost or damaged by a crash is missing (from a directory not changed since), not valid, or older.
+     * @param states the state of the snippet files by name, from the snapshot
+     * @param snapshotTime the modification time of the snapshot
+     * @param name the unique name of the snippet
+     * @return true if the journal must not be replayed over the snippet file
+     */
+    private boolean isChangedOutside(Map<String, Snapshot.Entry> states, long snapshotTime, String name) {
+        var current = stat(name, null, -1);
+        var previous = states.get(name);
+        if (current == null) return previous != null && snippetFile(name).getParent().toFile().lastModified() > snapshotTime;
+        if (current.modified() <= (previous == null ? snapshotTime : previous.modified())) return false;
+        try {
+            SnippetFile.readHeader(snippetFile(name));
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Tells if the snippet file of a journal entry made it to disk, from its header.
+     * @param file the snippet file
+     * @param entry the journal entry saving or updating the snippet
+     * @return true if the file holds the content of the entry
+     */
+    private static boolean isWritten(Path file, Journal.Entry entry) {
+        try {
+            var header = SnippetFile.readHeader(file);
+            var content = entry.content().getBytes(StandardCharsets.UTF_8);
+            return header.length() == content.length && header.crc() == History.crc(content);
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Tells if a snippet in the hot file is the current version of the snippet.
+     * @param hotEntry the snippet in the hot file
+     * @return true if the snippet file has the same content and tags
+     */
+    private boolean isCurrent(HotTier.Entry hotEntry) {
+        try {
+            var contents = SnippetFile.read(snippetFile(hotEntry.name()));
+            return contents.text().equals(hotEntry.content()) && Arrays.equals(contents.header().tags(), hotEntry.tags());
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Make the mutations durable: sync the journal, and make a checkpoint once it's large,
+     * or once no mutation was made for a while (in a long-lived process flushing regularly).
+     * A checkpoint syncs the data files of the snippets in the journal, then empties it.
+     * The reads counted are appended to the access log too, for {@link #maintain()}.
+     */
+    @Override
+    @SuppressWarnings("try")
+    public void flush() {
+        checkpoint();
+        try (var ignored = locks.lockCounter()) {
+            accesses.flush();
+        } catch (IOException | UncheckedIOException e) {
+            // only counts of reads, lost
+        }
+    }
+
+    /**
+     * Tier the snippets, if it's due (see {@link #rebalance()}).
+     * It reads the headers of the most read snippets, and once a day stats every snippet file:
+     * the server runs it on a background thread, and {@code snipit maintain} in a pass of its own.
+     */
+    @Override
+    public void maintain() {
+        rebalance();
+    }
+
+    /**
+     * Make a checkpoint of the journal whatever its size, close it, and make the reads counted durable:
+     * for a long-lived process shutting down. The repository cannot be used anymore.
+     */
+    @Override
+    @SuppressWarnings("try")
+    public void close() {
+        flush();
+        try (var ignored = locks.lockAll()) {
+            if (journal.size() > 0) doCheckpoint();
+            journal.close();
+        } catch (IOException | UncheckedIOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Sync the journal, and make a checkpoint once it's large, or idle (see {@link #isIdle(long)}).
+     */
+    @SuppressWarnings("try")
+    private void checkpoint() {
+        try {
+            journal.sync();
+            long size = journal.size();
+            if (size < CHECKPOINT_BYTES && !isIdle(size)) return;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return;
+        }
+
+        try (var ignored = locks.lockAll()) {
+            doCheckpoint();
+        } catch (IOException | UncheckedIOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Tells if the journal is not empty and did not change for {@link #IDLE_CHECKPOINT_MILLIS},
+     * from its size on the previous flushes. A process flushing once (a command) is never idle.
+     * @param size the size of the journal
+     * @return true if a checkpoint can be made now, without delaying the mutations
+     */
+    private synchronized boolean isIdle(long size) {
+        long now = System.currentTimeMillis();
+        if (size != flushedSize) {
+            flushedSize = size;
+            flushedTime = now;
+            return false;
+        }
+        return size > 0 && now - flushedTime >= IDLE_CHECKPOINT_MILLIS;
+    }
+
+    /**
+     * Make a checkpoint: sync the data files of the snippets in the journal, then their directories
+     * (once each, as they're shared by many snippets), then empty it.
+     * The names added and removed since the last one are merged in the completion index too.
+     * It must be called with every mutation locked out (other processes may have appended to the journal).
+     * @throws IOException if the journal cannot be read or emptied
+     */
+    @SuppressWarnings("try")
+    private void doCheckpoint() throws IOException {
+        var names = new LinkedHashSet<String>();
+        journal.recover().stream().map(Journal.Entry::name).filter(Repository::isValidName).forEach(names::add);
+        var dirs = new LinkedHashSet<Path>();
+        for (var name : names) {
+            for (var file : List.of(snippetFile(name), historyFile(name))) {
+                if (!file.toFile().exists()) continue;
+                force(file);
+                dirs.add(file.getParent());
+            }
+        }
+        for (var dir : dirs) force(dir);
+        journal.reset();
+        try (var ignored = locks.lockCounter()) {
+            completion.merge();
+        } catch (IOException e) {
+            // merged on the next checkpoint
+        }
+    }
+
+    /**
+     * Move the snippets between the tiers, from how often they were read.
+     * Once enough reads were logged (see {@link AccessCounter#isDue(long)}), the most read snippets
+     * are promoted out of {@link ColdStorage}, and the small ones are copied into a new {@link HotTier} file.
+     * Once a day, the snippets not read (nor changed) for {@link ColdStorage#COLD_AFTER_MILLIS} are demoted.
+     * It runs on {@link #maintain()}, never after a command: on a background thread in a server,
+     * or with {@code snipit maintain}.
+     * Tiering is a cache of the snippets: if it fails, it's retried on the next maintenance.
+     */
+    @SuppressWarnings("try")
+    private void rebalance() {
+        long now = System.currentTimeMillis();
+        var sweepFile = root.resolve(TIERS_DIR).resolve("sweep").toFile();
+        boolean sweep = now - sweepFile.lastModified() >= SWEEP_INTERVAL_MILLIS;
+        try {
+            Map<String, AccessCounter.Stats> stats;
+            try (var ignored = locks.lockCounter()) {
+                accesses.flush();
+                if (!accesses.isDue(now) && !sweep) return;
+                stats = accesses.compact(now);
+            }
+
+            var hottest = stats.entrySet().stream()
+                    .filter(entry -> entry.getValue().count() >= HotTier.MIN_ACCESSES && Repository.isValidName(entry.getKey()))
+                    .sorted(Comparator.comparingDouble((Map.Entry<String, AccessCounter.Stats> entry) -> entry.getValue().count()).reversed())
+                    .map(Map.Entry::getKey)
+                    .toList();
+            var promoted = new ArrayList<String>();
+            for (var name : hottest) {
+                if (!isCompressed(name)) continue;
+                try (var ignored = locks.lock(name)) {
+                    if (!isCompressed(name)) continue;
+                    ColdStorage.promote(snippetFile(name), root.resolve(TMP_DIR));
+                    promoted.add(name);
+                }
+            }
+            restat(promoted);
+
+            if (sweep) {
+                restat(demote(stats, now));
+                Files.createDirectories(sweepFile.toPath().getParent());
+                Files.write(sweepFile.toPath(), new byte[0]);
+            }
+
+            // Copy the hottest snippets from their file, which cannot change meanwhile (see HotTier)
+            try (var ignored = locks.lockCounter()) {
+                var entries = new ArrayList<HotTier.Entry>();
+                long bytes = 0;
+                for (var name : hottest) {
+                    var file = snippetFile(name);
+                    long size = file.toFile().length();
+                    if (size == 0 || size > HotTier.MAX_SNIPPET_BYTES) continue;
+                    if (bytes + size > HotTier.MAX_BYTES) break;
+                    try {
+                        var contents = SnippetFile.read(file);
+                        entries.add(new HotTier.Entry(name, contents.text(), contents.header().tags()));
+                        bytes += size;
+                    } catch (IOException e) {
+                        // removed meanwhile
+                    }
+                }
+                hot.write(entries);
+            }
+        } catch (IOException | UncheckedIOException e) {
+            // retried on the next maintenance
+        }
+    }
+
+    /**
+     * Demote to {@link ColdStorage} the snippets not read nor changed for {@link ColdStorage#COLD_AFTER_MILLIS}.
+     * @param stats the accesses of the snippets read recently, by name
+     * @param now the current time
+     * @return the names of the snippets demoted
+     * @throws IOException if a snippet cannot be demoted
+     */
+    @SuppressWarnings("try")
+    private List<String> demote(Map<String, AccessCounter.Stats> stats, long now) throws IOException {
+        long coldBefore = now - ColdStorage.COLD_AFTER_MILLIS;
+        var demoted = new ArrayList<String>();
+        for (var name : listNames()) {
+            var stat = stats.get(name);
+            if (stat != null && stat.lastAccess() >= coldBefore) continue;
+            var file = snippetFile(name).toFile();
+            if (file.length() < ColdStorage.MIN_BYTES || file.lastModified() >= coldBefore) continue;
+            try (var ignored = locks.lock(name)) {
+                if (file.exists() && ColdStorage.demote(file.toPath(), root.resolve(TMP_DIR))) demoted.add(name);
+            }
+        }
+        return demoted;
+    }
+
+    /**
+     * Tells if the content of a snippet is compressed, from the header of its file.
+     * @param name the unique name of the snippet
+     * @return true if the snippet is in {@link ColdStorage}
+     */
+    private boolean isCompressed(String name) {
+        try {
+            return SnippetFile.readHeader(snippetFile(name)).compressed();
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Sync a file or a directory to disk.
+     * @param path the file or directory
+     */
+    private static void force(Path path) {
+        try (var channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException ignored) {
+            // directories cannot be opened on some platforms
+        }
+    }
+
+    /**
+     * Get the file of a snippet according to the current layout.
+     * @param name the unique name of the snippet
+     * @return the path of the snippet file (which may not exist)
+     */
+    private Path snippetFile(String name) {
+        return layout.resolve(root.resolve(SNIPPETS_DIR), name);
+    }
+
+    /**
+     * Get the history file of a snippet according to the current layout.
+     * @param name the unique name of the snippet
+     * @return the path of the history file (which may not exist)
+     */
+    private Path historyFile(String name) {
+        return layout.resolve(root.resolve(HISTORY_DIR), name);
+    }
+
+    /**
+     * Get the layout used by the repository.
+     * @return the storage layout
+     */
+    public StorageLayout getLayout() {
+        return layout;
+    }
+
+    /**
+     * Get the generation of the repository, a number bumped by every change to the repository.
+     * @return the current generation (0 for a repository never changed)
+     */
+    public long generation() {
+        try {
+            return Long.parseLong(Files.readString(root.resolve(GENERATION_FILE)).trim());
+        } catch (IOException | NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Bump the generation of the repository after a change of a snippet, see {@link #bumpGeneration(List)}.
+     * @param name the unique name of the snippet
+     * @param previous the header of the snippet file before the change (null if it did not exist)
+     * @param addedTags the tags the snippet has now (null if it was removed)
+     * @param addedBytes the size of the content the snippet has now
+     */
+    private void bumpGeneration(String name, SnippetFile.Header previous, String[] addedTags, long addedBytes) {
+        bumpGeneration(List.of(new CompletionIndex.Change(name, previous == null ? null : previous.tags(),
+                previous == null ? 0 : previous.length(), addedTags, addedBytes)));
+    }
+
+    /**
+     * Bump the generation of the repository after changes of snippets, which invalidates the cached
+     * search results and the snippets in the hot file, and update the completion index and the snapshot along
+     * (they're rebuilt on the next startup if that fails).
+     * @param changes the changes of the snippets
+     */
+    @SuppressWarnings("try")
+    private void bumpGeneration(List<CompletionIndex.Change> changes) {
+        var tmp = root.resolve(GENERATION_FILE + ".tmp");
+        try (var ignored = locks.lockCounter()) {
+            for (var change : changes) hot.invalidate(change.name());
+            long previous = generation();
+            long generation = previous + 1;
+            Files.writeString(tmp, Long.toString(generation));
+            Files.move(tmp, root.resolve(GENERATION_FILE), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            try {
+                completion.update(changes, generation);
+            } catch (IOException e) {
+                // stale, rebuilt on the next startup
+            }
+            var states = new HashMap<String, Snapshot.Entry>();
+            for (var change : changes) {
+                var tags = change.addedTags();
+                states.put(change.name(), tags == null ? null : stat(change.name(), withoutEmpty(tags), change.addedBytes()));
+            }
+            updateSnapshot(states, previous, generation);
+        } catch (IOException | UncheckedIOException e) {
+            // Without a new generation, stale results could be served: drop the cache
+            //noinspection ResultOfMethodCallIgnored
+            root.resolve("cache").resolve("search").toFile().delete();
+        }
+    }
+
+    /**
+     * Update the snapshot after snippet files were rewritten with the same tags (moved between the tiers).
+     * @param names the unique names of the snippets
+     */
+    @SuppressWarnings("try")
+    private void restat(Collection<String> names) {
+        if (names.isEmpty()) return;
+        try (var ignored = locks.lockCounter()) {
+            var states = new HashMap<String, Snapshot.Entry>();
+            for (var name : names) states.put(name, stat(name, null, -1));
+            long generation = generation();
+            updateSnapshot(states, generation, generation);
+        } catch (UncheckedIOException e) {
+            // found changed on the next startup, and reconciled
+        }
+    }
+
+    /**
+     * Update the snapshot, or drop it if that fails (it's rebuilt on the next startup).
+     * It must be called with the counters locked.
+     * @param states the new state of the snippet files by name, see {@link Snapshot#update(Map, long, long)}
+     * @param from the generation of the repository before the changes
+     * @param to the generation of the repository after the changes
+     */
+    private void updateSnapshot(Map<String, Snapshot.Entry> states, long from, long to) {
+        try {
+            snapshot.update(states, from, to);
+        } catch (IOException e) {
+            try {
+                snapshot.delete();
+            } catch (IOException ignored) {
+                // it doesn't match the generation anyway
+            }
+        }
+    }
+
+    /**
+     * Get the state of a snippet file, for the snapshot.
+     * @param name the unique name of the snippet
+     * @param tags the tags of the snippet (null if unknown)
+     * @param length the size of the content of the snippet (-1 if unknown)
+     * @return the state of the file, or null if it doesn't exist
+     */
+    private Snapshot.Entry stat(String name, String[] tags, long length) {
+        try {
+            var attributes = Files.readAttributes(snippetFile(name), BasicFileAttributes.class);
+            return new Snapshot.Entry(attributes.lastModifiedTime().toMillis(), attributes.size(), length, tags);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * List the snippets of the hot file whose snippet file was modified after the snapshot, or deleted:
+     * changed in place outside the repository, which changes the snippet files before the snapshot.
+     * It costs a stat of each snippet of the hot file, not of every snippet.
+     * @return the unique names of the snippets
+     */
+    private List<String> changedHot() {
+        long snapshotTime = snapshot.modified();
+        return hot.names().stream().filter(name -> {
+            var state = stat(name, null, -1);
+            return state == null || state.modified() > snapshotTime;
+        }).toList();
+    }
+
+    /**
+     * Tells if a snippet file changed since the snapshot.
+     * @param states the state of the snippet files by name, from the snapshot
+     * @param name the unique name of the snippet
+     * @return true if the snippet file was created, changed or deleted
+     */
+    private boolean isChanged(Map<String, Snapshot.Entry> states, String name) {
+        var previous = states.get(name);
+        var current = stat(name, null, -1);
+        return previous == null ? current != null : !previous.matches(current);
+    }
+
+    /**
+     * Bring the completion index, the snapshot, the hot file and the cached search results up to date with
+     * the snippet files changed outside the repository (by hand, or by a synchronization tool).
+     * The snippet files are compared with the {@link Snapshot} by size and modification time: only the headers
+     * of the ones which differ are read. Without a snapshot of the current generation, everything is rebuilt.
+     * Once every snippet file was compared, the snapshot is marked up to date (see {@link Snapshot#touch(long)}),
+     * so that the next startup does not compare them again unless a directory of the snippets changes.
+     * It must be called with every mutation locked out.
+     * @param names the unique names of the snippets to check, or null to check every snippet
+     * @return the names of the snippets changed, or null if everything was rebuilt (any may have changed)
+     * @throws IOException if the completion index or the snapshot cannot be written
+     */
+    private Collection<String> reconcile(Collection<String> names) throws IOException {
+        long start = System.currentTimeMillis();
+        var states = snapshot.read(generation());
+        if (states == null) {
+            rebuild();
+            return null;
+        }
+        boolean everything = names == null;
+        if (everything) {
+            var all = new HashSet<>(states.keySet());
+            all.addAll(listNames());
+            all.removeIf(name -> !Repository.isValidName(name));
+            names = all;
+        }
+
+        var changes = new ArrayList<CompletionIndex.Change>();
+        for (var name : names) {
+            if (!isChanged(states, name)) continue;
+            var previous = states.get(name);
+            // A file which is not a snippet file counts as no snippet
+            var header = header(name);
+            if (previous == null && header == null) continue;
+            changes.add(new CompletionIndex.Change(name, previous == null ? null : previous.tags(),
+                    previous == null ? 0 : previous.length(), header == null ? null : header.tags(),
+                    header == null ? 0 : header.length()));
+        }
+        if (!changes.isEmpty()) {
+            // The journal must not be replayed over the changes
+            if (journal.size() > 0) doCheckpoint();
+            bumpGeneration(changes);
+        }
+        if (everything) {
+            try {
+                snapshot.touch(start);
+            } catch (IOException e) {
+                // compared again on the next startup
+            }
+        }
+        return changes.stream().map(CompletionIndex.Change::name).toList();
+    }
+
+    /**
+     * Rebuild the completion index and the snapshot from a full scan, reading the header of every snippet,
+     * and empty the hot file (it's rebuilt on a next maintenance). The snippet files are taken as they are:
+     * the journal is emptied (checkpoint) so that it's not replayed over them.
+     * It must be called with every mutation locked out.
+     * @throws IOException if the completion index or the snapshot cannot be written
+     */
+    @SuppressWarnings("try")
+    private void rebuild() throws IOException {
+        if (journal.size() > 0) doCheckpoint();
+        var states = new HashMap<String, Snapshot.Entry>();
+        for (var name : listNames()) {
+            var header = header(name);
+            var state = header == null ? null : stat(name, header.tags(), header.length());
+            if (state != null) states.put(name, state);
+        }
+        try (var ignored = locks.lockCounter()) {
+            long generation = generation();
+            var snippets = new ArrayList<CompletionIndex.Change>(states.size());
+            states.forEach((name, state) -> snippets.add(CompletionIndex.Change.added(name, state.tags(), state.length())));
+            completion.rebuild(snippets, generation);
+            snapshot.write(states, generation);
+            hot.write(List.of());
+        }
+    }
+
+    /**
+     * Watch the snippet files changed outside the repository, to reconcile them as they change
+     * (see {@link #reconcile(Collection)}), on a background thread.
+     * The names changed are first compared with the snapshot without locking, since most of the events
+     * are the changes of the repository itself (in this process or another one).
+     *
+     * @param listener called with the names of the snippets changed on disk, by another process or outside
+     *                 the repository, or null if any may have changed
+     */
+    @Override
+    @SuppressWarnings("try")
+    public synchronized void watch(Consumer<Collection<String>> listener) {
+        if (watcher != null) return;
+        try {
+            watcher = new SnippetWatcher(root.resolve(SNIPPETS_DIR), names -> {
+                try {
+                    var states = names == null ? null : snapshot.read(generation());
+                    var outside = states == null ? names : names.stream().filter(name -> isChanged(states, name)).toList();
+                    if (outside == null || !outside.isEmpty()) {
+                        try (var ignored = locks.lockAll()) {
+                            if (reconcile(outside) == null) names = null;
+                        }
+                    }
+                    if (names == null || !names.isEmpty()) listener.accept(names);
+                } catch (IOException | UncheckedIOException e) {
+                    e.printStackTrace();
+                }
+            });
+        } catch (IOException e) {
+            e.printStackTrace();
+            return;
+        }
+        watcher.start();
+
+        // The changes made before the directories were watched
+        try (var ignored = locks.lockAll()) {
+            var changed = reconcile(null);
+            if (changed == null || !changed.isEmpty()) listener.accept(changed);
+        } catch (IOException | UncheckedIOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Migrate the repository in place to another layout.
+     * Snippet and history files are renamed (no content is copied), and the migration is recorded
+     * in the metadata beforehand so that an interrupted migration is resumed on the next startup.
+     * @param target the layout to migrate to
+     * @return the number of snippets moved
+     * @throws RuntimeException if the metadata cannot be written or a snippet cannot be moved
+     */
+    @SuppressWarnings("try")
+    public int migrate(StorageLayout target) throws RuntimeException {
+        try (var ignored = locks.lockAll()) {
+            return doMigrate(target);
+        } catch (UncheckedIOException e) {
+            throw new RuntimeException(e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Migrate the repository in place to another layout, every mutation being locked out.
+     * It moves snippet directories as well, for a migration interrupted before an upgrade from the format 1.
+     * @param target the layout to migrate to
+     * @return the number of snippets moved
+     * @throws RuntimeException if the metadata cannot be written or a snippet cannot be moved
+     */
+    private int doMigrate(StorageLayout target) throws RuntimeException {
+        metadata.setProperty("migration", target.toString());
+        writeMetadata();
+
+        int moved = 0;
+        for (var dir : List.of(SNIPPETS_DIR, HISTORY_DIR)) {
+            var entriesDir = root.resolve(dir);
+            for (var source : migrationSources(entriesDir, target)) {
+                var name = source.getFileName().toString();
+                if (!Repository.isValidName(name)) continue; // not a snippet
+                var destination = target.resolve(entriesDir, name);
+                if (source.equals(destination)) continue;
+                try {
+                    Files.createDirectories(destination.getParent());
+                    Files.move(source, destination, StandardCopyOption.ATOMIC_MOVE);
+                } catch (IOException e) {
+                    throw new RuntimeException("Cannot move the snippet " + name + " to " + destination, e);
+                }
+                if (dir.equals(SNIPPETS_DIR)) moved++;
+            }
+
+            // Shards left empty by a migration to the flat layout (delete() fails on non-empty directories)
+            if (target == StorageLayout.FLAT) {
+                for (var shard : shardDirs(entriesDir)) {
+                    //noinspection ResultOfMethodCallIgnored
+                    Arrays.stream(Objects.requireNonNullElse(shard.listFiles(), new File[0])).forEach(File::delete);
+                    //noinspection ResultOfMethodCallIgnored
+                    shard.delete();
+                }
+            }
+        }
+
+        layout = target;
+        metadata.setProperty("layout", target.toString());
+        metadata.remove("migration");
+        writeMetadata();
+        return moved;
+    }
+
+    /**
+     * List the snippet (or history) files that are not yet stored with the target layout.
+     * Works whatever the state of an interrupted migration, because a shard directory
+     * is never a snippet file (nor a snippet directory of the format 1).
+     * @param entriesDir the snippets (or history) directory
+     * @param target the layout to migrate to
+     * @return the files to move
+     */
+    private List<Path> migrationSources(Path entriesDir, StorageLayout target) {
+        var sources = new ArrayList<Path>();
+        if (target == StorageLayout.SHARDED) {
+            var shards = shardDirs(entriesDir);
+            for (var child : Objects.requireNonNullElse(entriesDir.toFile().listFiles(), new File[0])) {
+                if (!shards.contains(child)) sources.add(child.toPath());
+            }
+            return sources;
+        }
+        for (var level1 : shardDirs(entriesDir)) {
+            for (var level2 : Objects.requireNonNullElse(level1.listFiles(File::isDirectory), new File[0])) {
+                for (var entry : Objects.requireNonNullElse(level2.listFiles(), new File[0])) {
+                    sources.add(entry.toPath());
+                }
+            }
+        }
+        return sources;
+    }
+
+    /**
+     * List the first level shard directories of the snippets (or history) directory.
+     * @param entriesDir the snippets (or history) directory
+     * @return the shard directories
+     */
+    private static List<File> shardDirs(Path entriesDir) {
+        File[] children = entriesDir.toFile().listFiles(
+                file -> file.isDirectory() && StorageLayout.isShardName(file.getName()) && !isSnippetDir(file.toPath()));
+        return children == null ? new ArrayList<>() : Arrays.asList(children);
+    }
+
+    /**
+     * Tells if a directory is a snippet directory of the format 1.
+     * @param dir the directory to test
+     * @return true if the directory holds a content file
+     */
+    private static boolean isSnippetDir(Path dir) {
+        return dir.resolve("content").toFile().exists() || dir.resolve("content.gz").toFile().exists();
+    }
+
+    /**
+     * Write the metadata to the metadata file, atomically.
+     * @throws RuntimeException if the metadata file cannot be written
+     */
+    private void writeMetadata() throws RuntimeException {
+        var metadataFile = root.resolve(METADATA_FILE);
+        var tmp = root.resolve(METADATA_FILE + ".tmp");
+        try (var writer = Files.newBufferedWriter(tmp)) {
+            metadata.store(writer, "SnipIt repository metadata");
+        } catch (IOException e) {
+            throw new RuntimeException("Cannot write the repository metadata: " + metadataFile, e);
+        }
+        try {
+            Files.move(tmp, metadataFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            throw new RuntimeException("Cannot write the repository metadata: " + metadataFile, e);
+        }
     }
 
     /**
@@ -57,70 +1049,364 @@ public class FilesystemRepository implements Repository {
      * @return true if the snippet was saved successfully, false otherwise (e.g. the snippet name is already used)
      */
     @Override
+    @SuppressWarnings("try")
     public boolean save(String name, String content, String[] tags) {
-        if (name == null || name.isBlank()) return false;
-        var snippetDir = root.resolve(SNIPPETS_DIR).resolve(name);
-        // No duplicate name
-        if (snippetDir.toFile().exists()) return false;
+        if (!Repository.isValidName(name)) return false;
+        try (var ignored = locks.lock(name)) {
+            // No duplicate name (checked under the lock of the name)
+            if (snippetFile(name).toFile().exists()) return false;
 
-        // Create the snippet directory
-        if (!snippetDir.toFile().mkdirs()) return false;
+            try {
+                journal.append(new Journal.Entry(Journal.Op.SAVE, name, content, tags));
+            } catch (IOException e) {
+                e.printStackTrace();
+                return false;
+            }
 
-        // Files to write
-        var contentFile = snippetDir.resolve("content");
-        var tagsFile = snippetDir.resolve("tags");
+            int length;
+            try {
+                length = write(name, content, tags);
+            } catch (IOException e) {
+                abort(name);
+                return false;
+            }
 
-        // Create the files
-        try {
-            if (!contentFile.toFile().createNewFile()) return false;
-            if (!tagsFile.toFile().createNewFile()) return false;
-        } catch (Exception e) {
+            bumpGeneration(name, null, tags, length);
+            return true;
+        } catch (UncheckedIOException e) {
             e.printStackTrace();
-            remove(name);
             return false;
         }
+    }
 
-        // Write the content
-        try {
-            Files.writeString(contentFile, content);
-            Files.writeString(tagsFile, String.join("\n", tags));
-        } catch (Exception e) {
+    /**
+     * Write a new snippet file in the staging directory, then rename it into place.
+     * The history left by a snippet of the same name, removed, is dropped first.
+     * @param name the unique name of the snippet
+     * @param content the content of the snippet
+     * @param tags the tags of the snippet
+     * @return the size of the content, in bytes
+     * @throws IOException if the snippet cannot be written
+     */
+    private int write(String name, String content, String[] tags) throws IOException {
+        Files.deleteIfExists(historyFile(name));
+        var next = content.getBytes(StandardCharsets.UTF_8);
+        var bytes = SnippetFile.encode(next, withoutEmpty(tags), MinHash.encode(MinHash.signature(content)), false);
+        SnippetFile.write(snippetFile(name), bytes, root.resolve(TMP_DIR), -1, false);
+        return next.length;
+    }
+
+    /**
+     * Replace a snippet by a new version, keeping the current one in its history.
+     *
+     * @param name the unique name of the snippet
+     * @param content the new content of the snippet
+     * @param tags the new tags of the snippet
+     * @return true if the snippet was updated successfully, false otherwise (e.g. the snippet doesn't exist)
+     */
+    @Override
+    @SuppressWarnings("try")
+    public boolean update(String name, String content, String[] tags) {
+        if (!Repository.isValidName(name)) return false;
+        try (var ignored = locks.lock(name)) {
+            if (!snippetFile(name).toFile().exists()) return false;
+
+            try {
+                journal.append(new Journal.Entry(Journal.Op.UPDATE, name, content, tags));
+            } catch (IOException e) {
+                e.printStackTrace();
+                return false;
+            }
+
+            var previous = header(name);
+            int length;
+            try {
+                length = replace(name, content, tags);
+            } catch (IOException e) {
+                abort(name);
+                return false;
+            }
+
+            bumpGeneration(name, previous, tags, length);
+            return true;
+        } catch (UncheckedIOException e) {
             e.printStackTrace();
-            remove(name);
             return false;
         }
+    }
+
+    /**
+     * Push the current version of a snippet to its history (synced), then rename the new version over it.
+     * Once the snippet file is the new one, the update is complete, so replaying it does nothing.
+     * A snippet in {@link ColdStorage} is promoted back along.
+     * @param name the unique name of the snippet
+     * @param content the new content of the snippet
+     * @param tags the new tags of the snippet
+     * @return the size of the new content, in bytes
+     * @throws IOException if the snippet cannot be read or written
+     */
+    private int replace(String name, String content, String[] tags) throws IOException {
+        var file = snippetFile(name);
+        var current = SnippetFile.read(file);
+        var currentTags = current.header().tags();
+        var next = content.getBytes(StandardCharsets.UTF_8);
+        var nextTags = withoutEmpty(tags);
+        if (Arrays.equals(current.content(), next) && Arrays.equals(currentTags, nextTags)) return next.length;
+
+        var historyFile = historyFile(name);
+        Files.createDirectories(historyFile.getParent());
+        History.push(historyFile, History.read(historyFile), current.content(), Files.getLastModifiedTime(file).toMillis(),
+                currentTags, next);
 
-        return true;
+        var bytes = SnippetFile.encode(next, nextTags, MinHash.encode(MinHash.signature(content)), false);
+        SnippetFile.write(file, bytes, root.resolve(TMP_DIR), -1, false);
+        return next.length;
     }
 
     /**
-     * Get a snippet from the repository.
+     * Delete a snippet file, then its history.
+     * @param name the unique name of the snippet
+     * @throws IOException if the snippet cannot be deleted
+     */
+    private void discard(String name) throws IOException {
+        Files.delete(snippetFile(name));
+        Files.deleteIfExists(historyFile(name));
+    }
+
+    /**
+     * Log that the last operation on a snippet failed, so that it's not replayed.
+     * @param name the unique name of the snippet
+     */
+    private void abort(String name) {
+        try {
+            journal.append(new Journal.Entry(Journal.Op.ABORT, name, "", new String[0]));
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Delete a file or a directory with everything in it, ignoring errors.
+     * @param path the file or directory to delete
+     */
+    @SuppressWarnings("ResultOfMethodCallIgnored")
+    private static void deleteRecursively(Path path) {
+        if (!path.toFile().exists()) return;
+        try (var walk = Files.walk(path)) {
+            walk.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        } catch (IOException | UncheckedIOException ignored) {
+            // leftovers are deleted on the next startup
+        }
+    }
+
+    /**
+     * Get a snippet from the repository, from the hot file if it's there.
+     * The read is counted, to tier the snippet.
      *
      * @param name the unique name of the snippet
      * @return the snippet, or null if it doesn't exist
      */
     @Override
     public Snippet get(String name) {
-        if (name == null || name.isBlank()) return null;
-        var snippetDir = root.resolve(SNIPPETS_DIR).resolve(name);
-        if (!snippetDir.toFile().exists()) return null;
+        var snippet = read(name);
+        if (snippet != null) accesses.record(name);
+        return snippet;
+    }
 
-        var contentFile = snippetDir.resolve("content");
-        var tagsFile = snippetDir.resolve("tags");
+    /**
+     * Read a snippet, from the hot file if it's there, without counting the read.
+     * @param name the unique name of the snippet
+     * @return the snippet, or null if it doesn't exist
+     */
+    private Snippet read(String name) {
+        if (!Repository.isValidName(name)) return null;
+        var file = snippetFile(name);
+        var hotEntry = hot.lookup(name);
+        if (hotEntry != null) return new Snippet(name, hotEntry.content(), file.toString(), hotEntry.tags());
+
+        try {
+            var contents = SnippetFile.read(file);
+            return new Snippet(name, contents.text(), file.toString(), contents.header().tags());
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Get many snippets from the repository at once: the ones in the hot file are served from it,
+     * and the files of the others are read concurrently (with a bounded number of snippets in flight),
+     * instead of one blocking read after another.
+     * It's the read of the scans (searches, listings), so the reads are not counted: only the snippets
+     * read one by one ({@link #get(String)}, {@link #openContent(String)}) are tiered as read.
+     *
+     * @param names the unique names of the snippets
+     * @return the snippets that exist, the hot ones first, then in the order their reads completed
+     */
+    @Override
+    public List<Snippet> getAll(Collection<String> names) {
+        var snippets = new ArrayList<Snippet>(names.size());
+        var rest = new ArrayList<String>();
+        for (var name : names) {
+            if (!Repository.isValidName(name)) continue;
+            var hotEntry = hot.lookup(name);
+            if (hotEntry == null) rest.add(name);
+            else snippets.add(new Snippet(name, hotEntry.content(), snippetFile(name).toString(), hotEntry.tags()));
+        }
+        snippets.addAll(asyncReader.readAll(rest, this::snippetFile));
+        return snippets;
+    }
+
+    /**
+     * Get the tags of a snippet, reading only the header of its file.
+     *
+     * @param name the unique name of the snippet
+     * @return the tags, or null if the snippet doesn't exist
+     */
+    @Override
+    public String[] getTags(String name) {
+        var header = header(name);
+        return header == null ? null : header.tags();
+    }
+
+    /**
+     * Get the location of a snippet, its file, reading only the header of the file to know if it exists.
+     *
+     * @param name the unique name of the snippet
+     * @return the path of the file, or null if the snippet doesn't exist
+     */
+    @Override
+    public String getLocation(String name) {
+        return header(name) == null ? null : snippetFile(name).toString();
+    }
+
+    /**
+     * Read the header of a snippet file only.
+     * @param name the unique name of the snippet
+     * @return the header, or null if the snippet doesn't exist (or its file is not a snippet file)
+     */
+    private SnippetFile.Header header(String name) {
+        if (!Repository.isValidName(name)) return null;
+        try {
+            return SnippetFile.readHeader(snippetFile(name));
+        } catch (IOException e) {
+            return null;
+        }
+    }
 
+    /**
+     * Open the content of a snippet for reading, decoded as it's read.
+     * The read is counted, to tier the snippet.
+     *
+     * @param name the unique name of the snippet
+     * @return a reader of the content, or null if the snippet doesn't exist
+     */
+    @Override
+    public Reader openContent(String name) {
+        if (!Repository.isValidName(name)) return null;
+        var hotEntry = hot.lookup(name);
+        if (hotEntry != null) {
+            accesses.record(name);
+            return new StringReader(hotEntry.content());
+        }
+        try {
+            var reader = SnippetFile.open(snippetFile(name));
+            accesses.record(name);
+            return reader;
+        } catch (IOException e) {
+            return null;
+        }
+    }
 
-        if (!contentFile.toFile().exists() || !tagsFile.toFile().exists()) return null;
+    /**
+     * Get the MinHash signature of a snippet, stored in the header of its file.
+     *
+     * @param name the unique name of the snippet
+     * @return the signature, or null if the snippet doesn't exist
+     */
+    @Override
+    public int[] getSignature(String name) {
+        if (!Repository.isValidName(name)) return null;
+        try {
+            var signature = MinHash.decode(SnippetFile.readHeader(snippetFile(name)).signature());
+            if (signature != null) return signature;
+        } catch (IOException e) {
+            return null;
+        }
+        var snippet = read(name);
+        return snippet == null ? null : MinHash.signature(snippet.content());
+    }
 
-        String content;
-        String[] tags;
+    /**
+     * List the revisions of a snippet, from its history file.
+     *
+     * @param name the unique name of the snippet
+     * @return the revisions, from the oldest to the current one, or null if the snippet doesn't exist
+     */
+    @Override
+    public List<Revision> history(String name) {
+        if (!Repository.isValidName(name)) return null;
+        var file = snippetFile(name);
         try {
-            content = Files.readString(contentFile);
-            tags = Files.readString(tagsFile).split("\n");
-        } catch (Exception e) {
+            var current = SnippetFile.read(file);
+            var entries = readHistory(name, current.content());
+            var revisions = new ArrayList<Revision>(entries.size() + 1);
+            entries.forEach(entry -> revisions.add(new Revision(entry.revision(), entry.time(), entry.size(), withoutEmpty(entry.tags()))));
+            int head = entries.isEmpty() ? 1 : entries.get(entries.size() - 1).revision() + 1;
+            revisions.add(new Revision(head, Files.getLastModifiedTime(file).toMillis(), current.content().length, current.header().tags()));
+            return revisions;
+        } catch (IOException e) {
             return null;
         }
+    }
 
-        return new Snippet(name, content, snippetDir.toString(), tags);
+    /**
+     * Get a revision of a snippet, rebuilt from its history.
+     *
+     * @param name the unique name of the snippet
+     * @param revision the number of the revision
+     * @return the snippet as it was at this revision, or null if the snippet or the revision doesn't exist
+     */
+    @Override
+    public Snippet getRevision(String name, int revision) {
+        if (!Repository.isValidName(name)) return null;
+        var file = snippetFile(name);
+        try {
+            var current = SnippetFile.read(file).content();
+            var entries = readHistory(name, current);
+            int head = entries.isEmpty() ? 1 : entries.get(entries.size() - 1).revision() + 1;
+            if (revision == head) return get(name);
+            var version = History.rebuild(entries, current, revision);
+            if (version == null) return null;
+            var tags = entries.stream().filter(entry -> entry.revision() == revision).findFirst().orElseThrow().tags();
+            return new Snippet(name, new String(version, StandardCharsets.UTF_8), file.toString(), withoutEmpty(tags));
+        } catch (IOException | IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Read the history of a snippet, without the last entry if it does not apply to the current version
+     * (an update in progress, or interrupted).
+     * @param name the unique name of the snippet
+     * @param current the current version of the snippet
+     * @return the entries of the history
+     * @throws IOException if the history cannot be read
+     */
+    private List<History.Entry> readHistory(String name, byte[] current) throws IOException {
+        var entries = History.read(historyFile(name));
+        if (!entries.isEmpty() && entries.get(entries.size() - 1).baseCrc() != History.crc(current)) {
+            entries.remove(entries.size() - 1);
+        }
+        return entries;
+    }
+
+    /**
+     * Drop the empty tags (a snippet without tags of the format 1 has an empty tags file).
+     * @param tags the tags
+     * @return the tags which are not empty
+     */
+    private static String[] withoutEmpty(String[] tags) {
+        return Arrays.stream(tags).filter(tag -> !tag.isEmpty()).toArray(String[]::new);
     }
 
     /**
@@ -129,61 +1415,132 @@ public class FilesystemRepository implements Repository {
      * @param name the unique name of the snippet
      * @return true if the snippet was removed successfully, false otherwise (e.g. the snippet doesn't exist)
      */
-    @SuppressWarnings({"ResultOfMethodCallIgnored", "resource"})
     @Override
+    @SuppressWarnings("try")
     public boolean remove(String name) {
-        if (name == null || name.isBlank()) return false;
-        var snippetDir = root.resolve(SNIPPETS_DIR).resolve(name);
-        if (!snippetDir.toFile().exists()) return false;
+        if (!Repository.isValidName(name)) return false;
+        try (var ignored = locks.lock(name)) {
+            if (!snippetFile(name).toFile().exists()) return false;
 
-        try {
-            Files.walk(snippetDir).sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
-        } catch (Exception e) {
+            try {
+                journal.append(new Journal.Entry(Journal.Op.REMOVE, name, "", new String[0]));
+            } catch (IOException e) {
+                e.printStackTrace();
+                return false;
+            }
+
+            var previous = header(name);
+            try {
+                discard(name);
+            } catch (IOException e) {
+                abort(name);
+                return false;
+            }
+
+            bumpGeneration(name, previous, null, 0);
+            return true;
+        } catch (UncheckedIOException e) {
+            e.printStackTrace();
             return false;
         }
-
-        return true;
     }
 
     /**
      * List all the snippets name in the repository.
-     * This read the directory in {@link sh.sinux.config.Config#getStoragePath()}/snippets
+     * This read the directory in {@link sh.sinux.config.Config#getStoragePath()}/snippets,
+     * walking the shards in parallel with the sharded layout.
      *
      * @return a list of snippet names
      */
     @Override
     public List<String> listNames() {
-        String[] snippets = root.resolve(SNIPPETS_DIR).toFile().list();
-        if (snippets == null) return new ArrayList<>();
-        return Arrays.asList(snippets);
+        return layout.listNames(root.resolve(SNIPPETS_DIR));
+    }
+
+    /**
+     * List a page of the snippet names, sorted, from the names of the completion index.
+     * It reads only the page, instead of the whole snippets directory.
+     * Names with a line separator are not in the index, and are only listed by {@link #listNames()}.
+     *
+     * @param prefix only list the names starting with it (can be null)
+     * @param cursor the cursor given by the previous page (null for the first page)
+     * @param limit the maximum number of names of the page
+     * @return the page
+     * @throws IllegalArgumentException if the cursor or the limit is not valid
+     */
+    @Override
+    public Page listNames(String prefix, String cursor, int limit) throws IllegalArgumentException {
+        if (limit < 1) throw new IllegalArgumentException("The limit must be positive");
+        var after = Page.decodeCursor(cursor);
+        try {
+            // One more name than the limit, to know if there is a next page
+            return Page.of(completion.names(prefix == null ? "" : prefix, after, limit == Integer.MAX_VALUE ? limit : limit + 1), limit);
+        } catch (IOException e) {
+            return Repository.super.listNames(prefix, cursor, limit);
+        }
     }
 
     /**
      * List all the snippets in the repository.
-     * This read the directory in {@link sh.sinux.config.Config#getStoragePath()}/snippets
+     * This read the directory in {@link sh.sinux.config.Config#getStoragePath()}/snippets,
+     * then the snippets concurrently with {@link #getAll(Collection)}.
      *
      * @return a list of snippets
      */
     private List<Snippet> listSnippets() {
-        return listNames()
-                .stream()
-                .map(this::get)
-                .toList();
+        return getAll(listNames());
     }
 
     /**
-     * List all the tags used in the repository.
-     * @return a list of tags
+     * List all the tags used in the repository, from their usage (see {@link #tagStats()}).
+     * @return a list of tags, sorted
      */
     @Override
     public List<String> listTags() {
-        return listSnippets()
-                .stream()
-                .map(Snippet::tags)
-                .flatMap(Arrays::stream)
-                .distinct()
-                .toList();
+        return tagStats().stream().map(TagStats::tag).toList();
+    }
 
+    /**
+     * List the usage of each tag, from the aggregates of the completion index (see {@link #streamTagStats()}).
+     * @return the usage of each tag, sorted by tag
+     */
+    @Override
+    public List<TagStats> tagStats() {
+        try (var stats = streamTagStats()) {
+            return stats.toList();
+        }
+    }
+
+    /**
+     * Stream the usage of each tag, from the aggregates of the completion index, updated along with each change:
+     * it reads one small file as it's consumed, instead of every snippet.
+     * Without an index of the current generation, the headers of the snippet files are read instead,
+     * never their content. The tags and names with a line separator are left out of the index, so of the usage.
+     * @return the usage of each tag, sorted by tag
+     */
+    @Override
+    public Stream<TagStats> streamTagStats() {
+        try {
+            if (!completion.isStale(generation(), List.of(), name -> true)) return completion.streamTagStats();
+        } catch (IOException e) {
+            // read from the snippet files
+        }
+        return scanTagStats().stream();
+    }
+
+    /**
+     * Count the usage of each tag from the headers of the snippet files.
+     * @return the usage of each tag, sorted by tag
+     */
+    private List<TagStats> scanTagStats() {
+        var stats = new ArrayList<TagStats>();
+        for (var name : listNames()) {
+            var header = header(name);
+            if (header == null) continue;
+            Arrays.stream(header.tags()).filter(tag -> !tag.isEmpty()).distinct()
+                    .forEach(tag -> stats.add(new TagStats(tag, 1, header.length())));
+        }
+        return TagStats.merge(stats);
     }
 
     /**
@@ -206,6 +1563,48 @@ public class FilesystemRepository implements Repository {
         return merge.stream().toList();
     }
 
+    /**
+     * Search for the names of the snippets matching the query.
+     * Results are cached until the next change to the repository,
+     * so a repeated query doesn't open any snippet file.
+     * @param query a word or phrase to search for
+     * @param mode where to search
+     * @return a list of snippet names
+     */
+    @Override
+    public List<String> searchNames(String query, SearchMode mode) {
+        var generation = generation();
+        var cached = queryCache.get(mode, query, generation);
+        if (cached != null) return cached;
+
+        var names = Repository.super.search(query, mode).stream().map(Snippet::name).toList();
+        queryCache.put(mode, query, generation, names);
+        return names;
+    }
+
+    /**
+     * Search for snippets matching the query, where the mode tells.
+     * The names of the results are cached like {@link #searchNames(String, SearchMode)}: on a cached query,
+     * only the matching snippets are read.
+     * @param query a word or phrase to search for
+     * @param mode where to search
+     * @return a list of snippets, in the order of the cached names
+     */
+    @Override
+    public List<Snippet> search(String query, SearchMode mode) {
+        var generation = generation();
+        var cached = queryCache.get(mode, query, generation);
+        if (cached != null) {
+            var byName = new HashMap<String, Snippet>();
+            getAll(cached).forEach(snippet -> byName.put(snippet.name(), snippet));
+            return cached.stream().map(byName::get).filter(Objects::nonNull).toList();
+        }
+
+        var snippets = Repository.super.search(query, mode);
+        queryCache.put(mode, query, generation, snippets.stream().map(Snippet::name).toList());
+        return snippets;
+    }
+
     /**
      * Search for snippets names matching the query.
      * @param query a word or phrase to search for
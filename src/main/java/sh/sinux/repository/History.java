@@ -0,0 +1,235 @@
+package sh.sinux.repository;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * The History keeps the previous versions of a snippet of a {@link FilesystemRepository}, in its file of the
+ * {@code history} directory ({@code history/NAME}, next to {@code snippets/NAME}). The current version stays whole
+ * in the {@link SnippetFile} of the snippet, so reading it costs nothing more.
+ * Each previous version is appended as a reverse {@link Delta} against the version replacing it: an older version
+ * is rebuilt from the current one, applying the deltas from the newest to the oldest.
+ * A version is stored whole when a delta would not be smaller (and rebuilding older versions starts from it).
+ * Only the last {@link #MAX_REVISIONS} previous versions are kept, which bounds both the size of the history
+ * and the number of deltas to apply.
+ * <p>
+ * Each entry is stored as:
+ * <pre>{@code
+ * int length | int crc32 | int revision | long time | byte full | int base crc32 | int size
+ *            | int tag count | UTF tags... | int data length | data (version or delta)
+ * }</pre>
+ * The base checksum is the one of the version the delta applies to (the next one), to detect a history
+ * not matching the current content.
+ * @author sinux-l5d
+ * @since 1.1
+ */
+final class History {
+
+    /** Number of previous versions kept */
+    static final int MAX_REVISIONS = 64;
+
+    /**
+     * An entry of the history: a previous version of the snippet.
+     * @param revision the number of the revision
+     * @param time when the revision was saved, in milliseconds since the epoch
+     * @param full true if the data is the version itself, false if it's a delta
+     * @param baseCrc the checksum of the next version, which the delta applies to
+     * @param size the size of the version, in bytes
+     * @param tags the tags of the version
+     * @param data the version, or the delta against the next version
+     */
+    record Entry(int revision, long time, boolean full, int baseCrc, int size, String[] tags, byte[] data) {
+    }
+
+    /** Not instantiable */
+    private History() {
+    }
+
+    /**
+     * Read the entries of a history. A torn entry at the end (crash while appending) is ignored.
+     * @param file the history file
+     * @return the entries, from the oldest to the newest (empty if there is no history)
+     * @throws IOException if the history cannot be read
+     */
+    static List<Entry> read(Path file) throws IOException {
+        var entries = new ArrayList<Entry>();
+        if (!Files.exists(file)) return entries;
+        long fileSize = Files.size(file);
+        try (var in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            while (true) {
+                int length;
+                try {
+                    length = in.readInt();
+                } catch (EOFException e) {
+                    break;
+                }
+                if (length <= 0 || length > fileSize) break;
+                int crc = in.readInt();
+                var payload = new byte[length];
+                if (in.readNBytes(payload, 0, length) < length || crc != crc(payload)) break;
+                entries.add(decode(payload));
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * Record the current version of a snippet, about to be replaced, and sync the history to disk.
+     * The history is rewritten instead of appended to when its last entry does not apply to the current version
+     * (an update that did not complete: the entry is dropped), when it ends with a torn entry,
+     * or when it holds too many versions (the oldest ones are dropped, by batches to rewrite it once in a while only).
+     * It must be called with the snippet locked.
+     * @param file the history file
+     * @param entries the entries of the history (see {@link #read(Path)})
+     * @param current the current version
+     * @param time when the current version was saved
+     * @param tags the tags of the current version
+     * @param next the version replacing it
+     * @throws IOException if the history cannot be written
+     */
+    static void push(Path file, List<Entry> entries, byte[] current, long time, String[] tags, byte[] next) throws IOException {
+        long length = 0;
+        for (var entry : entries) length += frame(entry).remaining();
+        boolean rewrite = length != (Files.exists(file) ? Files.size(file) : 0);
+
+        List<Entry> kept = new ArrayList<>(entries);
+        if (!kept.isEmpty() && kept.get(kept.size() - 1).baseCrc() != crc(current)) {
+            kept.remove(kept.size() - 1);
+            rewrite = true;
+        }
+        if (kept.size() >= MAX_REVISIONS + MAX_REVISIONS / 4) {
+            kept = new ArrayList<>(kept.subList(kept.size() - MAX_REVISIONS + 1, kept.size()));
+            rewrite = true;
+        }
+
+        int revision = kept.isEmpty() ? 1 : kept.get(kept.size() - 1).revision() + 1;
+        var delta = Delta.diff(next, current);
+        boolean full = delta.length >= current.length;
+        byte[] data = full ? current : delta;
+        var entry = new Entry(revision, time, full, crc(next), current.length, tags, data);
+
+        if (rewrite) {
+            kept.add(entry);
+            rewrite(file, kept);
+            return;
+        }
+        try (var channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            var buffer = frame(entry);
+            while (buffer.hasRemaining()) channel.write(buffer);
+            channel.force(false);
+        }
+    }
+
+    /**
+     * Rebuild a previous version of a snippet.
+     * @param entries the entries of the history (see {@link #read(Path)})
+     * @param current the current version
+     * @param revision the number of the revision to rebuild
+     * @return the version, or null if the revision is not in the history
+     * @throws IllegalArgumentException if the history is corrupted, or does not match the current version
+     */
+    static byte[] rebuild(List<Entry> entries, byte[] current, int revision) throws IllegalArgumentException {
+        int index = -1;
+        for (int i = 0; i < entries.size(); i++) {
+            if (entries.get(i).revision() == revision) index = i;
+        }
+        if (index < 0) return null;
+
+        // Start from the closest version stored whole, or from the current version
+        int start = entries.size();
+        for (int i = index; i < entries.size(); i++) {
+            if (entries.get(i).full()) {
+                start = i;
+                break;
+            }
+        }
+        byte[] version = start < entries.size() ? entries.get(start).data() : current;
+        if (start == entries.size() && !entries.isEmpty() && entries.get(start - 1).baseCrc() != crc(current))
+            throw new IllegalArgumentException("The history does not match the current version");
+        for (int i = start - 1; i >= index; i--) {
+            var entry = entries.get(i);
+            version = entry.full() ? entry.data() : Delta.apply(version, entry.data());
+        }
+        return version;
+    }
+
+    /**
+     * Compute the checksum of a version.
+     * @param bytes the version (or a payload)
+     * @return its CRC32
+     */
+    static int crc(byte[] bytes) {
+        var crc = new CRC32();
+        crc.update(bytes);
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Rewrite a history atomically.
+     * @param file the history file
+     * @param entries the entries to keep
+     * @throws IOException if the history cannot be written
+     */
+    private static void rewrite(Path file, List<Entry> entries) throws IOException {
+        var tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (var channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            for (var entry : entries) {
+                var buffer = frame(entry);
+                while (buffer.hasRemaining()) channel.write(buffer);
+            }
+            channel.force(false);
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Frame an entry with its length and checksum.
+     * @param entry the entry
+     * @return a buffer ready to be written
+     * @throws IOException if the entry cannot be encoded
+     */
+    private static ByteBuffer frame(Entry entry) throws IOException {
+        var bytes = new ByteArrayOutputStream();
+        var out = new DataOutputStream(bytes);
+        out.writeInt(entry.revision());
+        out.writeLong(entry.time());
+        out.writeBoolean(entry.full());
+        out.writeInt(entry.baseCrc());
+        out.writeInt(entry.size());
+        out.writeInt(entry.tags().length);
+        for (var tag : entry.tags()) out.writeUTF(tag);
+        out.writeInt(entry.data().length);
+        out.write(entry.data());
+        var payload = bytes.toByteArray();
+        var buffer = ByteBuffer.allocate(Integer.BYTES * 2 + payload.length);
+        buffer.putInt(payload.length).putInt(crc(payload)).put(payload).flip();
+        return buffer;
+    }
+
+    /**
+     * Decode an entry.
+     * @param payload the payload of the entry
+     * @return the entry
+     * @throws IOException if the payload is not an entry
+     */
+    private static Entry decode(byte[] payload) throws IOException {
+        var in = new DataInputStream(new ByteArrayInputStream(payload));
+        int revision = in.readInt();
+        long time = in.readLong();
+        boolean full = in.readBoolean();
+        int baseCrc = in.readInt();
+        int size = in.readInt();
+        var tags = new String[in.readInt()];
+        for (int i = 0; i < tags.length; i++) tags[i] = in.readUTF();
+        var data = in.readNBytes(in.readInt());
+        return new Entry(revision, time, full, baseCrc, size, tags, data);
+    }
+}
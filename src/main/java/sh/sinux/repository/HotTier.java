@@ -0,0 +1,222 @@
+package sh.sinux.repository;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The HotTier keeps a copy of the most read small snippets of a {@link FilesystemRepository} inline in a single
+ * file, memory-mapped once per process: reading one of them costs a lookup in memory instead of a file
+ * lookup, open and read. The snippets stay in their {@link SnippetFile}, which remains the reference.
+ * <p>
+ * The file is stored as:
+ * <pre>{@code
+ * int magic | byte retired | int entry count
+ * entry = byte valid | int name length | name | int tags length | tags | int content length | content (UTF-8)
+ * }</pre>
+ * The entries are written once and never change, but for their valid flag: when a snippet in the file is changed,
+ * its entry is invalidated in place (see {@link #invalidate(String)}), which every process mapping the file sees.
+ * When the file is rebuilt, the old one is marked retired before the new one is renamed over it,
+ * so that the processes mapping it map the new one instead.
+ * Both happen with the counters of the repository locked, so an invalidation always reaches the current file.
+ * @author sinux-l5d
+ * @since 1.1
+ */
+class HotTier {
+
+    /** Maximum size of the snippets kept in the hot file */
+    static final int MAX_BYTES = 1 << 20;
+
+    /** Maximum size of a snippet kept in the hot file */
+    static final int MAX_SNIPPET_BYTES = 16 << 10;
+
+    /** Minimum number of accesses (decayed) of a snippet kept in the hot file */
+    static final double MIN_ACCESSES = 2;
+
+    /** Magic number and version of the hot file format */
+    private static final int MAGIC = 0x534e4831; // "SNH1"
+
+    /** Offset of the retired flag */
+    private static final int RETIRED = Integer.BYTES;
+
+    /** Size of the header */
+    private static final int HEADER = Integer.BYTES + 1 + Integer.BYTES;
+
+    /** Time between two looks for a hot file, when there is none to map */
+    private static final long REOPEN_NANOS = 1_000_000_000L;
+
+    /**
+     * A snippet kept in the hot file.
+     * @param name the unique name of the snippet
+     * @param content the content of the snippet
+     * @param tags the tags of the snippet
+     */
+    record Entry(String name, String content, String[] tags) {
+    }
+
+    /**
+     * A mapped hot file.
+     * @param buffer the mapped file
+     * @param index the offset of the entries, by name
+     */
+    private record Mapping(MappedByteBuffer buffer, Map<String, Integer> index) {
+    }
+
+    /** The hot file */
+    private final Path file;
+
+    /** The mapped hot file, or null if there is none */
+    private volatile Mapping mapping;
+
+    /** When to look for a hot file again, if there was none to map */
+    private volatile long nextOpen;
+
+    /**
+     * Creates a new HotTier instance.
+     * @param file the hot file
+     */
+    HotTier(Path file) {
+        this.file = file;
+        this.nextOpen = System.nanoTime();
+    }
+
+    /**
+     * Get a snippet from the hot file.
+     * @param name the unique name of the snippet
+     * @return the snippet, or null if it's not in the hot file (or no longer valid)
+     */
+    Entry lookup(String name) {
+        var current = current(false);
+        if (current == null) return null;
+        var offset = current.index().get(name);
+        if (offset == null) return null;
+        var buffer = current.buffer();
+        if (buffer.get(offset) == 0) return null;
+        int position = offset + 1;
+        position += Integer.BYTES + buffer.getInt(position);
+        var tags = string(buffer, position);
+        position += Integer.BYTES + buffer.getInt(position);
+        var content = string(buffer, position);
+        return new Entry(name, content, tags.isEmpty() ? new String[0] : tags.split("\n"));
+    }
+
+    /**
+     * List the snippets in the hot file, still valid.
+     * @return the unique names of the snippets
+     */
+    List<String> names() {
+        var current = current(true);
+        if (current == null) return List.of();
+        return current.index().entrySet().stream()
+                .filter(entry -> current.buffer().get(entry.getValue()) != 0).map(Map.Entry::getKey).toList();
+    }
+
+    /**
+     * Invalidate the entry of a snippet changed, if it's in the hot file.
+     * It must be called with the counters of the repository locked.
+     * @param name the unique name of the snippet
+     * @throws IOException if the hot file cannot be written
+     */
+    void invalidate(String name) throws IOException {
+        var current = current(true);
+        if (current == null) return;
+        var offset = current.index().get(name);
+        if (offset == null || current.buffer().get(offset) == 0) return;
+        try (var channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.wrap(new byte[]{0}), offset);
+        }
+    }
+
+    /**
+     * Replace the hot file.
+     * It must be called with the counters of the repository locked.
+     * @param entries the snippets to keep in the hot file
+     * @throws IOException if the hot file cannot be written
+     */
+    void write(List<Entry> entries) throws IOException {
+        var bytes = new ByteArrayOutputStream();
+        var out = new DataOutputStream(bytes);
+        out.writeInt(MAGIC);
+        out.writeBoolean(false);
+        out.writeInt(entries.size());
+        for (var entry : entries) {
+            out.writeBoolean(true);
+            for (var field : new String[]{entry.name(), String.join("\n", entry.tags()), entry.content()}) {
+                var encoded = field.getBytes(StandardCharsets.UTF_8);
+                out.writeInt(encoded.length);
+                out.write(encoded);
+            }
+        }
+        Files.createDirectories(file.getParent());
+        var tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        Files.write(tmp, bytes.toByteArray());
+
+        if (Files.exists(file)) {
+            try (var channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+                channel.write(ByteBuffer.wrap(new byte[]{1}), RETIRED);
+            }
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Get the current mapping of the hot file, mapping it again if it was retired.
+     * @param force true to look for a hot file even if there was none a moment ago
+     * @return the mapping, or null if there is no hot file
+     */
+    private Mapping current(boolean force) {
+        var current = mapping;
+        if (current != null && current.buffer().get(RETIRED) == 0) return current;
+        if (current == null && !force && System.nanoTime() - nextOpen < 0) return null;
+        return open();
+    }
+
+    /**
+     * Map the hot file, and index its entries.
+     * @return the mapping, or null if there is no valid hot file
+     */
+    private synchronized Mapping open() {
+        var current = mapping;
+        if (current != null && current.buffer().get(RETIRED) == 0) return current;
+        mapping = null;
+        try (var channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            var buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.limit() < HEADER || buffer.getInt(0) != MAGIC || buffer.get(RETIRED) != 0) throw new IOException("No hot file");
+            var index = new HashMap<String, Integer>();
+            int position = HEADER;
+            for (int i = buffer.getInt(RETIRED + 1); i > 0; i--) {
+                int offset = position;
+                index.put(string(buffer, position + 1), offset);
+                position += 1;
+                for (int field = 0; field < 3; field++) position += Integer.BYTES + buffer.getInt(position);
+            }
+            mapping = new Mapping(buffer, index);
+        } catch (IOException | IndexOutOfBoundsException e) {
+            nextOpen = System.nanoTime() + REOPEN_NANOS;
+        }
+        return mapping;
+    }
+
+    /**
+     * Read a length-prefixed string.
+     * @param buffer the mapped file
+     * @param position the position of the length
+     * @return the string
+     */
+    private static String string(MappedByteBuffer buffer, int position) {
+        var bytes = new byte[buffer.getInt(position)];
+        buffer.get(position + Integer.BYTES, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
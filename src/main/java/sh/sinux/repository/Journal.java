@@ -0,0 +1,313 @@
+package sh.sinux.repository;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * The Journal is an append-only write-ahead log of the mutations of a {@link FilesystemRepository}.
+ * Every mutation is appended before being applied, and the journal is synced to disk once per group
+ * of entries (group commit) or on {@link #sync()}, instead of syncing every file written.
+ * After a crash, the entries are replayed; a torn entry at the end of the journal is discarded.
+ * An operation that failed once logged is followed by an {@link Op#ABORT} entry.
+ * A checkpoint (see {@link #reset()}) empties the journal once the data files are synced.
+ * <p>
+ * Until then, the entries checked against the data files on a startup are not checked again by the next ones
+ * (see {@link #checked()}): the data files written, even if not synced, stay as long as the system does not restart.
+ * <p>
+ * Each entry is stored as:
+ * <pre>{@code
+ * int length | int crc32 | byte op | UTF name | int tag count | UTF tags... | int content length | content (UTF-8)
+ * }</pre>
+ * @author sinux-l5d
+ * @since 1.1
+ */
+class Journal implements Closeable {
+
+    /** Default number of entries appended before the journal syncs itself */
+    static final int DEFAULT_GROUP_SIZE = 64;
+
+    /**
+     * The operation of an entry.
+     */
+    enum Op {
+        /** A snippet was saved */
+        SAVE,
+        /** A snippet was removed */
+        REMOVE,
+        /** The last operation logged on a snippet could not be applied, and must not be replayed */
+        ABORT,
+        /** A snippet was replaced by a new version, see {@link History} */
+        UPDATE
+    }
+
+    /**
+     * An entry of the journal.
+     * @param op the operation
+     * @param name the unique name of the snippet
+     * @param content the content of the snippet (empty for a removal or an abort)
+     * @param tags the tags of the snippet (empty for a removal or an abort)
+     */
+    record Entry(Op op, String name, String content, String[] tags) {
+    }
+
+    /** The journal file */
+    private final Path file;
+
+    /** The file recording up to where the journal was checked, and during which boot of the system */
+    private final Path checkedFile;
+
+    /** The identifier of the current boot of the system, or null if unknown */
+    private static final String BOOT_ID = bootId();
+
+    /** Number of entries appended before the journal syncs itself */
+    private final int groupSize;
+
+    /** The channel used to append, opened on the first append */
+    private FileChannel channel;
+
+    /** Number of entries appended since the last sync */
+    private int pending;
+
+    /**
+     * Creates a new Journal instance.
+     * @param file the journal file
+     * @param groupSize the number of entries appended before the journal syncs itself
+     */
+    Journal(Path file, int groupSize) {
+        this.file = file;
+        this.checkedFile = file.resolveSibling(file.getFileName() + ".checked");
+        this.groupSize = groupSize;
+    }
+
+    /**
+     * Read the entries of the journal, to replay them.
+     * A torn or corrupted entry ends the journal: it's cut from the file, with everything after it.
+     * Aborted operations are left out.
+     * @return the valid entries to replay, in order
+     * @throws IOException if the journal cannot be read
+     */
+    synchronized List<Entry> recover() throws IOException {
+        return recover(0);
+    }
+
+    /**
+     * Read the entries of the journal from an offset, to replay them, see {@link #recover()}.
+     * @param from the offset of the first entry to return, as given by {@link #checked()}
+     * @return the valid entries to replay from the offset, in order
+     * @throws IOException if the journal cannot be read
+     */
+    synchronized List<Entry> recover(long from) throws IOException {
+        var entries = new ArrayList<Entry>();
+        var offsets = new ArrayList<Long>();
+        if (!Files.exists(file)) return entries;
+
+        long valid = 0;
+        long fileSize = Files.size(file);
+        try (var in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            while (true) {
+                int length;
+                try {
+                    length = in.readInt();
+                } catch (EOFException e) {
+                    break;
+                }
+                if (length <= 0 || length > fileSize) break;
+                int crc = in.readInt();
+                var payload = new byte[length];
+                if (in.readNBytes(payload, 0, length) < length || crc != crc(payload)) break;
+                var entry = decode(payload);
+                if (entry.op() == Op.ABORT) {
+                    for (int i = entries.size() - 1; i >= 0; i--) {
+                        if (entries.get(i).name().equals(entry.name())) {
+                            entries.remove(i);
+                            offsets.remove(i);
+                            break;
+                        }
+                    }
+                } else {
+                    entries.add(entry);
+                    offsets.add(valid);
+                }
+                valid += Integer.BYTES * 2 + length;
+            }
+        }
+
+        if (valid < Files.size(file)) {
+            try (var truncate = FileChannel.open(file, StandardOpenOption.WRITE)) {
+                truncate.truncate(valid);
+                truncate.force(true);
+            }
+        }
+        int first = 0;
+        while (first < offsets.size() && offsets.get(first) < from) first++;
+        return first == 0 ? entries : new ArrayList<>(entries.subList(first, entries.size()));
+    }
+
+    /**
+     * Get the offset up to which the journal was checked against the data files (see {@link #markChecked()}),
+     * if it was during the current boot of the system. Otherwise, the data files not synced may have been lost:
+     * the whole journal must be checked.
+     * @return the offset of the first entry not checked
+     */
+    synchronized long checked() {
+        if (BOOT_ID == null) return 0;
+        try {
+            var lines = Files.readAllLines(checkedFile);
+            if (lines.size() != 2 || !lines.get(0).equals(BOOT_ID)) return 0;
+            long offset = Long.parseLong(lines.get(1));
+            return offset <= size() ? offset : 0;
+        } catch (IOException | NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Record that the whole journal was checked against the data files (and replayed where needed),
+     * during the current boot of the system.
+     * It must be called with every mutation locked out.
+     */
+    synchronized void markChecked() {
+        if (BOOT_ID == null) return;
+        var tmp = checkedFile.resolveSibling(checkedFile.getFileName() + ".tmp");
+        try {
+            Files.writeString(tmp, BOOT_ID + "\n" + size() + "\n");
+            Files.move(tmp, checkedFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            // checked again on the next startup
+        }
+    }
+
+    /**
+     * Append an entry, syncing the journal if a group of entries is complete.
+     * @param entry the entry to append
+     * @throws IOException if the entry cannot be written
+     */
+    synchronized void append(Entry entry) throws IOException {
+        if (channel == null) {
+            channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        }
+        var payload = encode(entry);
+        var buffer = ByteBuffer.allocate(Integer.BYTES * 2 + payload.length);
+        buffer.putInt(payload.length).putInt(crc(payload)).put(payload).flip();
+        while (buffer.hasRemaining()) channel.write(buffer);
+
+        if (++pending >= groupSize) sync();
+    }
+
+    /**
+     * Sync the appended entries to disk (a single fsync for the whole group).
+     * @throws IOException if the journal cannot be synced
+     */
+    synchronized void sync() throws IOException {
+        if (channel == null || pending == 0) return;
+        channel.force(false);
+        pending = 0;
+    }
+
+    /**
+     * Get the size of the journal.
+     * @return the size in bytes
+     */
+    synchronized long size() {
+        try {
+            return Files.exists(file) ? Files.size(file) : 0;
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Empty the journal, once every mutation it holds is durable in the data files (checkpoint).
+     * @throws IOException if the journal cannot be emptied
+     */
+    synchronized void reset() throws IOException {
+        // Before the journal is emptied, so that the offset is never taken for one of the entries appended next
+        Files.deleteIfExists(checkedFile);
+        if (channel == null) {
+            channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        }
+        channel.truncate(0);
+        channel.force(true);
+        pending = 0;
+    }
+
+    /**
+     * Sync and close the journal.
+     * @throws IOException if the journal cannot be synced
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (channel == null) return;
+        sync();
+        channel.close();
+        channel = null;
+    }
+
+    /**
+     * Encode an entry.
+     * @param entry the entry
+     * @return the payload of the entry
+     * @throws IOException if the entry cannot be encoded (e.g. a name too long)
+     */
+    private static byte[] encode(Entry entry) throws IOException {
+        var bytes = new ByteArrayOutputStream();
+        var out = new DataOutputStream(bytes);
+        out.writeByte(entry.op().ordinal());
+        out.writeUTF(entry.name());
+        out.writeInt(entry.tags().length);
+        for (var tag : entry.tags()) out.writeUTF(tag);
+        var content = entry.content().getBytes(StandardCharsets.UTF_8);
+        out.writeInt(content.length);
+        out.write(content);
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Decode an entry.
+     * @param payload the payload of the entry
+     * @return the entry
+     * @throws IOException if the payload is not an entry
+     */
+    private static Entry decode(byte[] payload) throws IOException {
+        var in = new DataInputStream(new ByteArrayInputStream(payload));
+        var op = Op.values()[in.readByte()];
+        var name = in.readUTF();
+        var tags = new String[in.readInt()];
+        for (int i = 0; i < tags.length; i++) tags[i] = in.readUTF();
+        var content = new String(in.readNBytes(in.readInt()), StandardCharsets.UTF_8);
+        return new Entry(op, name, content, tags);
+    }
+
+    /**
+     * Read the identifier of the current boot of the system (on Linux).
+     * @return the identifier, or null if unknown
+     */
+    private static String bootId() {
+        try {
+            var id = Files.readString(Path.of("/proc/sys/kernel/random/boot_id")).trim();
+            return id.isEmpty() ? null : id;
+        } catch (IOException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Compute the checksum of a payload.
+     * @param payload the payload
+     * @return its CRC32
+     */
+    private static int crc(byte[] payload) {
+        var crc = new CRC32();
+        crc.update(payload);
+        return (int) crc.getValue();
+    }
+}
@@ -0,0 +1,94 @@
+package sh.sinux.repository;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * A page of snippet names, as listed by {@link Repository#listNames(String, String, int)}.
+ * Names are sorted by their UTF-8 bytes (see {@link #ORDER}). The cursor is opaque: it is given back
+ * to list the next page, and is null on the last page.
+ * @param names the names of the page, sorted
+ * @param cursor the cursor of the next page, or null if there are no more names
+ * @author sinux-l5d
+ * @since 1.1
+ */
+public record Page(List<String> names, String cursor) {
+
+    /** The order of the names: by their UTF-8 bytes, like {@code LC_ALL=C sort} */
+    public static final Comparator<String> ORDER = Page::compareUtf8;
+
+    /**
+     * Creates a new Page instance.
+     * @param names the names of the page, sorted
+     * @param cursor the cursor of the next page, or null if there are no more names
+     */
+    public Page {
+        names = List.copyOf(names);
+    }
+
+    /**
+     * Compare two strings by their UTF-8 bytes, without encoding them.
+     * The UTF-8 order is the order of the code points: it's the order of the UTF-16 chars,
+     * except for the surrogates (of the code points above U+FFFF), which come before U+E000..U+FFFF in UTF-16.
+     * @param a the first string
+     * @param b the second string
+     * @return a negative number, zero, or a positive number if the first string comes before, with, or after the second
+     */
+    private static int compareUtf8(String a, String b) {
+        int length = Math.min(a.length(), b.length());
+        for (int i = 0; i < length; i++) {
+            char x = a.charAt(i);
+            char y = b.charAt(i);
+            if (x == y) continue;
+            boolean surrogate = Character.isSurrogate(x);
+            if (surrogate != Character.isSurrogate(y)) return surrogate ? 1 : -1;
+            return x - y;
+        }
+        return a.length() - b.length();
+    }
+
+    /**
+     * Build a page from sorted names, cutting it at a limit.
+     * @param sorted the names, sorted, at least up to the limit plus one (to know if there is a next page)
+     * @param limit the maximum number of names of the page
+     * @return the page
+     */
+    static Page of(List<String> sorted, int limit) {
+        if (sorted.size() <= limit) return new Page(sorted, null);
+        var names = sorted.subList(0, limit);
+        return new Page(names, encodeCursor(names.get(limit - 1)));
+    }
+
+    /**
+     * Build the cursor of the page following a name.
+     * @param last the last name of a page
+     * @return the opaque cursor
+     */
+    static String encodeCursor(String last) {
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(last.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Read a cursor.
+     * @param cursor the cursor given by a previous page (can be null, for the first page)
+     * @return the last name of the previous page, or null for the first page
+     * @throws IllegalArgumentException if the cursor is not valid
+     */
+    static String decodeCursor(String cursor) throws IllegalArgumentException {
+        if (cursor == null) return null;
+        return new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Tell if a name is in the range of a listing.
+     * @param name the name
+     * @param prefix the prefix of the names listed (can be empty)
+     * @param after the last name of the previous page (can be null)
+     * @return true if the name starts with the prefix, and comes after the previous page
+     */
+    static boolean inRange(String name, String prefix, String after) {
+        return name.startsWith(prefix) && (after == null || ORDER.compare(name, after) > 0);
+    }
+}
@@ -0,0 +1,208 @@
+package sh.sinux.repository;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The QueryCache is a persistent cache of search results (snippet names), keyed by search mode and query.
+ * Every entry is valid for a repository generation: a number bumped by every change to the repository.
+ * When the generation moves on, the whole cache is dropped.
+ * The cache is bounded, the least recently used entries being evicted first.
+ * Since a process may only look up (the command line runs one per command), the order of use is persisted too:
+ * the keys hit are appended to a hits log next to the cache file, replayed on load, and emptied when
+ * the cache file is written again.
+ * It is safe to use from several threads: the entries, in access order, change on every lookup,
+ * so lookups and updates are serialized.
+ * @author sinux-l5d
+ * @since 1.1
+ */
+class QueryCache {
+
+    /** Default maximum number of cached queries */
+    static final int DEFAULT_CAPACITY = 256;
+
+    /** Magic number and version of the cache file format */
+    private static final int MAGIC = 0x534e5131; // "SNQ1"
+
+    /** Size of the hits log from which a hit rewrites the cache file instead (which empties the log) */
+    private static final long MAX_HITS_BYTES = 1 << 16;
+
+    /** The file the cache is persisted to */
+    private final Path file;
+
+    /** The log of the keys hit since the cache file was written */
+    private final Path hits;
+
+    /** The maximum number of cached queries */
+    private final int capacity;
+
+    /** The cached results, in access order, loaded on first use */
+    private LinkedHashMap<String, List<String>> entries;
+
+    /** The generation of the cached results */
+    private long generation = -1;
+
+    /**
+     * Creates a new QueryCache instance.
+     * @param file the file the cache is persisted to
+     * @param capacity the maximum number of cached queries
+     */
+    QueryCache(Path file, int capacity) {
+        this.file = file;
+        this.hits = file.resolveSibling(file.getFileName() + ".hits");
+        this.capacity = capacity;
+    }
+
+    /**
+     * Get cached results. A hit makes the entry the most recently used one, and is logged.
+     * @param mode the search mode
+     * @param query the query
+     * @param currentGeneration the current generation of the repository
+     * @return the names of the matching snippets, or null if not cached (or stale)
+     */
+    synchronized List<String> get(SearchMode mode, String query, long currentGeneration) {
+        load(currentGeneration);
+        var key = key(mode, query);
+        var names = entries.get(key);
+        if (names != null) logHit(key);
+        return names;
+    }
+
+    /**
+     * Cache results and persist the cache.
+     * @param mode the search mode
+     * @param query the query
+     * @param currentGeneration the current generation of the repository
+     * @param names the names of the matching snippets
+     */
+    synchronized void put(SearchMode mode, String query, long currentGeneration, List<String> names) {
+        load(currentGeneration);
+        entries.put(key(mode, query), List.copyOf(names));
+        store();
+    }
+
+    /**
+     * Build the key of a query.
+     * @param mode the search mode
+     * @param query the query
+     * @return the key
+     */
+    private static String key(SearchMode mode, String query) {
+        return mode + ":" + query;
+    }
+
+    /**
+     * Load the cache file if not done yet, and drop the entries of another generation.
+     * An unreadable cache file is treated as an empty cache.
+     * @param currentGeneration the current generation of the repository
+     */
+    private void load(long currentGeneration) {
+        if (entries == null) {
+            entries = newEntries();
+            if (file.toFile().exists()) {
+                try (var in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+                    if (in.readInt() == MAGIC) {
+                        generation = in.readLong();
+                        int count = in.readInt();
+                        for (int i = 0; i < count; i++) {
+                            var key = in.readUTF();
+                            int size = in.readInt();
+                            var names = new ArrayList<String>(size);
+                            for (int n = 0; n < size; n++) names.add(in.readUTF());
+                            entries.put(key, names);
+                        }
+                    }
+                } catch (IOException e) {
+                    entries.clear();
+                }
+                replayHits();
+            }
+        }
+        if (generation != currentGeneration) {
+            entries.clear();
+            generation = currentGeneration;
+        }
+    }
+
+    /**
+     * Move the entries hit since the cache file was written to the end of the access order, in the order of the hits.
+     * A hit cut by a crash ends the log.
+     */
+    private void replayHits() {
+        if (!hits.toFile().exists()) return;
+        try (var in = new DataInputStream(new BufferedInputStream(Files.newInputStream(hits)))) {
+            while (in.available() > 0) entries.get(in.readUTF());
+        } catch (IOException e) {
+            // the hits read so far are replayed
+        }
+    }
+
+    /**
+     * Append a hit to the hits log, or write the cache file once the log is large.
+     * The order of use being an optimization, errors are ignored.
+     * @param key the key of the entry hit
+     */
+    private void logHit(String key) {
+        if (hits.toFile().length() >= MAX_HITS_BYTES) {
+            store();
+            return;
+        }
+        var bytes = new ByteArrayOutputStream();
+        try (var out = new DataOutputStream(bytes)) {
+            out.writeUTF(key);
+        } catch (IOException e) {
+            return;
+        }
+        try {
+            Files.write(hits, bytes.toByteArray(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        } catch (IOException e) {
+            // the entry is only less recent
+        }
+    }
+
+    /**
+     * Persist the cache, atomically, and empty the hits log (the cache file has the order of use).
+     * The cache being an optimization, errors are ignored.
+     */
+    private void store() {
+        var tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try {
+            Files.createDirectories(file.getParent());
+            try (var out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+                out.writeInt(MAGIC);
+                out.writeLong(generation);
+                out.writeInt(entries.size());
+                for (var entry : entries.entrySet()) {
+                    out.writeUTF(entry.getKey());
+                    out.writeInt(entry.getValue().size());
+                    for (var name : entry.getValue()) out.writeUTF(name);
+                }
+            }
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            Files.deleteIfExists(hits);
+        } catch (IOException | UncheckedIOException e) {
+            //noinspection ResultOfMethodCallIgnored
+            tmp.toFile().delete();
+        }
+    }
+
+    /**
+     * Create the map of entries, evicting the least recently used one when full.
+     * @return an empty map of entries
+     */
+    private LinkedHashMap<String, List<String>> newEntries() {
+        return new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, List<String>> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+}
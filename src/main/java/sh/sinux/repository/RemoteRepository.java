@@ -0,0 +1,577 @@
+package sh.sinux.repository;
+
+import sh.sinux.Snippet;
+import sh.sinux.config.Config;
+import sh.sinux.server.SnippetServer;
+
+import java.io.*;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+
+/**
+ * RemoteRepository is a client of a repository served by {@code snipit serve} (see {@link SnippetServer}).
+ * Snippets read are kept in a read-through cache on disk, with their entity tag: a snippet already cached is
+ * fetched again only if it changed (conditional request), and is served from the cache if the server is unreachable.
+ * Within a process, a snippet is revalidated once. Many snippets are fetched in a single request, see {@link #getAll(Collection)}.
+ * It assumes that the storage type is {@link sh.sinux.config.StorageType#REMOTE}, the storage path being the URL of the server.
+ * @author sinux-l5d
+ * @since 1.1
+ */
+public class RemoteRepository implements Repository {
+
+    /** Timeout to connect to the server */
+    private static final Duration CONNECT_TIMEOUT = Duration.ofSeconds(5);
+
+    /** The URL of the server, without trailing slash */
+    private final String baseUrl;
+
+    /** The HTTP client, shared by every request */
+    private final HttpClient client;
+
+    /** The directory of the cache, for this server */
+    private final Path cacheDir;
+
+    /** The snippets revalidated by this process, by name */
+    private final Map<String, Cached> validated = new ConcurrentHashMap<>();
+
+    /**
+     * A snippet in the cache.
+     * @param etag the entity tag of the snippet, given by the server
+     * @param snippet the snippet
+     */
+    private record Cached(String etag, Snippet snippet) {
+    }
+
+    /**
+     * Creates a new RemoteRepository instance.
+     * @param config the configuration of the application, with the URL of the server as storage path
+     */
+    public RemoteRepository(Config config) {
+        this(config, cacheRoot());
+    }
+
+    /**
+     * Creates a new RemoteRepository instance, with its cache in a given directory.
+     * @param config the configuration of the application, with the URL of the server as storage path
+     * @param cacheRoot the directory of the caches of every server
+     */
+    RemoteRepository(Config config, Path cacheRoot) {
+        var url = config.getStoragePath();
+        this.baseUrl = url.endsWith("/") ? url.substring(0, url.length() - 1) : url;
+        this.client = HttpClient.newBuilder().connectTimeout(CONNECT_TIMEOUT).build();
+        this.cacheDir = cacheRoot.resolve(SnippetServer.encode(baseUrl));
+    }
+
+    /**
+     * Save a snippet on the server.
+     * @param name the snippet name, has to be unique
+     * @param content the snippet content
+     * @param tags the snippet tags (can be empty)
+     * @return true if the snippet was saved, false otherwise (e.g. the snippet name is already used, or the server is unreachable)
+     */
+    @Override
+    public boolean save(String name, String content, String[] tags) {
+        if (!Repository.isValidName(name)) return false;
+        var request = HttpRequest.newBuilder(uri("/snippets/" + SnippetServer.encode(name) + tagsQuery(tags)))
+                .PUT(HttpRequest.BodyPublishers.ofString(content, StandardCharsets.UTF_8))
+                .build();
+        try {
+            return send(request, HttpResponse.BodyHandlers.discarding()).statusCode() == 201;
+        } catch (IOException e) {
+            return false;
+        } finally {
+            evict(name);
+        }
+    }
+
+    /**
+     * Get a snippet, from the cache if it did not change on the server.
+     * @param name the unique name of the snippet
+     * @return the snippet if it exists, null otherwise
+     */
+    @Override
+    public Snippet get(String name) {
+        if (!Repository.isValidName(name)) return null;
+        var cached = validated.get(name);
+        if (cached != null) return cached.snippet();
+
+        cached = readCache(name);
+        var builder = HttpRequest.newBuilder(uri("/snippets/" + SnippetServer.encode(name))).GET();
+        if (cached != null) builder.header("If-None-Match", cached.etag());
+        HttpResponse<byte[]> response;
+        try {
+            response = send(builder.build(), HttpResponse.BodyHandlers.ofByteArray());
+        } catch (IOException e) {
+            return cached == null ? null : cached.snippet(); // offline: serve the cache
+        }
+
+        switch (response.statusCode()) {
+            case 304 -> {
+                if (cached == null) return null;
+            }
+            case 200 -> {
+                var headers = response.headers();
+                var snippet = new Snippet(name, new String(response.body(), StandardCharsets.UTF_8), location(name),
+                        SnippetServer.splitTags(headers.firstValue("X-Snippet-Tags").orElse("")));
+                cached = new Cached(headers.firstValue("ETag").orElse(""), snippet);
+                writeCache(cached);
+            }
+            default -> {
+                evict(name);
+                return null;
+            }
+        }
+        validated.put(name, cached);
+        return cached.snippet();
+    }
+
+    /**
+     * Get many snippets in a single request. The cached ones are sent with their entity tag,
+     * and the server answers only with the snippets that changed.
+     * @param names the unique names of the snippets
+     * @return the snippets that exist, in no particular order
+     */
+    @Override
+    public List<Snippet> getAll(Collection<String> names) {
+        var snippets = new ArrayList<Snippet>();
+        var cachedByName = new HashMap<String, Cached>();
+        var body = new StringBuilder();
+        for (var name : new LinkedHashSet<>(names)) {
+            if (!Repository.isValidName(name)) continue;
+            var cached = validated.get(name);
+            if (cached != null) {
+                snippets.add(cached.snippet());
+                continue;
+            }
+            cached = readCache(name);
+            body.append(SnippetServer.encode(name));
+            if (cached != null) {
+                cachedByName.put(name, cached);
+                body.append(' ').append(SnippetServer.encode(cached.etag()));
+            }
+            body.append('\n');
+        }
+        if (body.isEmpty()) return snippets;
+
+        var request = HttpRequest.newBuilder(uri("/batch"))
+                .POST(HttpRequest.BodyPublishers.ofString(body.toString(), StandardCharsets.UTF_8))
+                .build();
+        try {
+            var response = send(request, HttpResponse.BodyHandlers.ofInputStream());
+            try (var in = new BufferedInputStream(response.body())) {
+                if (response.statusCode() != 200) throw new IOException("Unexpected status " + response.statusCode());
+                String header;
+                while ((header = readLine(in)) != null) {
+                    var frame = header.split(" ");
+                    if (frame.length != 4) throw new IOException("Malformed frame: " + header);
+                    var name = SnippetServer.decode(frame[0]);
+                    int length = Integer.parseInt(frame[3]);
+                    Cached cached;
+                    if (length < 0) { // not modified
+                        cached = cachedByName.get(name);
+                        if (cached == null) continue;
+                    } else {
+                        var content = in.readNBytes(length);
+                        if (content.length < length || in.read() != '\n') throw new IOException("Truncated frame: " + header);
+                        cached = new Cached(SnippetServer.decode(frame[2]), new Snippet(name,
+                                new String(content, StandardCharsets.UTF_8), location(name), SnippetServer.splitTags(frame[1])));
+                        writeCache(cached);
+                    }
+                    validated.put(name, cached);
+                    snippets.add(cached.snippet());
+                }
+            }
+        } catch (IOException | NumberFormatException e) {
+            // offline: serve the cache, for the snippets not received yet
+            cachedByName.forEach((name, cached) -> {
+                if (!validated.containsKey(name)) snippets.add(cached.snippet());
+            });
+        }
+        return snippets;
+    }
+
+    /**
+     * Replace a snippet by a new version on the server, which keeps the previous ones.
+     * @param name the unique name of the snippet
+     * @param content the new content of the snippet
+     * @param tags the new tags of the snippet
+     * @return true if the snippet was updated, false otherwise (e.g. the snippet does not exist, or the server is unreachable)
+     */
+    @Override
+    public boolean update(String name, String content, String[] tags) {
+        if (!Repository.isValidName(name)) return false;
+        var request = HttpRequest.newBuilder(uri("/snippets/" + SnippetServer.encode(name) + tagsQuery(tags)))
+                .POST(HttpRequest.BodyPublishers.ofString(content, StandardCharsets.UTF_8))
+                .build();
+        try {
+            return send(request, HttpResponse.BodyHandlers.discarding()).statusCode() == 200;
+        } catch (IOException e) {
+            return false;
+        } finally {
+            evict(name);
+        }
+    }
+
+    /**
+     * List the revisions of a snippet on the server.
+     * @param name the unique name of the snippet
+     * @return the revisions, or null if the snippet does not exist (or the server is unreachable)
+     */
+    @Override
+    public List<Revision> history(String name) {
+        if (!Repository.isValidName(name)) return null;
+        try {
+            var response = send(HttpRequest.newBuilder(uri("/history/" + SnippetServer.encode(name))).GET().build(),
+                    HttpResponse.BodyHandlers.ofLines());
+            if (response.statusCode() != 200) return null;
+            return response.body().map(line -> line.split(" ")).map(fields -> new Revision(Integer.parseInt(fields[0]),
+                    Long.parseLong(fields[1]), Integer.parseInt(fields[2]), SnippetServer.splitTags(fields[3]))).toList();
+        } catch (IOException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Get a revision of a snippet from the server (not cached).
+     * @param name the unique name of the snippet
+     * @param revision the number of the revision
+     * @return the snippet as it was at this revision, or null if not found (or the server is unreachable)
+     */
+    @Override
+    public Snippet getRevision(String name, int revision) {
+        if (!Repository.isValidName(name)) return null;
+        try {
+            var response = send(HttpRequest.newBuilder(uri("/snippets/" + SnippetServer.encode(name) + "?rev=" + revision)).GET().build(),
+                    HttpResponse.BodyHandlers.ofByteArray());
+            if (response.statusCode() != 200) return null;
+            return new Snippet(name, new String(response.body(), StandardCharsets.UTF_8), location(name),
+                    SnippetServer.splitTags(response.headers().firstValue("X-Snippet-Tags").orElse("")));
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Remove a snippet from the server.
+     * @param name the snippet's unique name
+     * @return true if the snippet was removed, false otherwise (e.g. the snippet does not exist, or the server is unreachable)
+     */
+    @Override
+    public boolean remove(String name) {
+        if (!Repository.isValidName(name)) return false;
+        var request = HttpRequest.newBuilder(uri("/snippets/" + SnippetServer.encode(name))).DELETE().build();
+        try {
+            return send(request, HttpResponse.BodyHandlers.discarding()).statusCode() == 204;
+        } catch (IOException e) {
+            return false;
+        } finally {
+            evict(name);
+        }
+    }
+
+    /**
+     * List the names of the snippets on the server.
+     * @return a list of snippet names
+     * @throws RuntimeException if the server is unreachable
+     */
+    @Override
+    public List<String> listNames() throws RuntimeException {
+        return lines("/names");
+    }
+
+    /**
+     * List a page of the names of the snippets on the server, sorted.
+     * @param prefix only list the names starting with it (can be null)
+     * @param cursor the cursor given by the previous page (null for the first page)
+     * @param limit the maximum number of names of the page
+     * @return the page
+     * @throws IllegalArgumentException if the cursor or the limit is not valid
+     * @throws RuntimeException if the server is unreachable
+     */
+    @Override
+    public Page listNames(String prefix, String cursor, int limit) throws RuntimeException {
+        if (limit < 1) throw new IllegalArgumentException("The limit must be positive");
+        var path = "/names?limit=" + limit + (prefix == null ? "" : "&prefix=" + SnippetServer.encode(prefix))
+                + (cursor == null ? "" : "&cursor=" + SnippetServer.encode(cursor));
+        try {
+            var response = send(HttpRequest.newBuilder(uri(path)).GET().build(), HttpResponse.BodyHandlers.ofLines());
+            if (response.statusCode() == 400) throw new IllegalArgumentException("Invalid cursor: " + cursor);
+            if (response.statusCode() != 200)
+                throw new RuntimeException("The storage " + baseUrl + " answered with status " + response.statusCode());
+            var names = response.body().map(SnippetServer::decode).toList();
+            return new Page(names, response.headers().firstValue("X-Snippet-Cursor").orElse(null));
+        } catch (IOException e) {
+            throw new RuntimeException("Cannot reach the storage: " + baseUrl, e);
+        }
+    }
+
+    /**
+     * List the tags used on the server.
+     * @return a list of tags
+     * @throws RuntimeException if the server is unreachable
+     */
+    @Override
+    public List<String> listTags() throws RuntimeException {
+        return lines("/tags");
+    }
+
+    /**
+     * List the usage of each tag on the server.
+     * @return the usage of each tag, sorted by tag
+     * @throws RuntimeException if the server is unreachable
+     */
+    @Override
+    public List<TagStats> tagStats() throws RuntimeException {
+        try {
+            var response = send(HttpRequest.newBuilder(uri("/tags?stats")).GET().build(), HttpResponse.BodyHandlers.ofLines());
+            if (response.statusCode() != 200)
+                throw new RuntimeException("The storage " + baseUrl + " answered with status " + response.statusCode());
+            return response.body().map(line -> line.split(" ")).map(fields -> new TagStats(SnippetServer.decode(fields[0]),
+                    Integer.parseInt(fields[1]), Long.parseLong(fields[2]))).toList();
+        } catch (IOException e) {
+            throw new RuntimeException("Cannot reach the storage: " + baseUrl, e);
+        }
+    }
+
+    /**
+     * Search in name, content and tags on the server.
+     * @param query a word or a phrase to search
+     * @return a list of snippets
+     * @throws RuntimeException if the server is unreachable
+     */
+    @Override
+    public List<Snippet> searchAll(String query) throws RuntimeException {
+        return getAll(searchNames(query, SearchMode.ALL));
+    }
+
+    /**
+     * Search in name on the server.
+     * @param query a word or a phrase to search
+     * @return a list of snippets
+     * @throws RuntimeException if the server is unreachable
+     */
+    @Override
+    public List<Snippet> searchName(String query) throws RuntimeException {
+        return getAll(searchNames(query, SearchMode.NAME));
+    }
+
+    /**
+     * Search in content on the server.
+     * @param query a word or a phrase to search
+     * @return a list of snippets
+     * @throws RuntimeException if the server is unreachable
+     */
+    @Override
+    public List<Snippet> searchContent(String query) throws RuntimeException {
+        return getAll(searchNames(query, SearchMode.CONTENT));
+    }
+
+    /**
+     * Search in tags on the server.
+     * @param query a word or a phrase to search
+     * @return a list of snippets
+     * @throws RuntimeException if the server is unreachable
+     */
+    @Override
+    public List<Snippet> searchTags(String query) throws RuntimeException {
+        return getAll(searchNames(query, SearchMode.TAGS));
+    }
+
+    /**
+     * Search on the server, which answers from its own query cache.
+     * @param query a word or a phrase to search
+     * @param mode where to search
+     * @return a list of snippet names
+     * @throws RuntimeException if the server is unreachable
+     */
+    @Override
+    public List<String> searchNames(String query, SearchMode mode) throws RuntimeException {
+        return lines("/search?q=" + SnippetServer.encode(query) + "&mode=" + mode);
+    }
+
+    /**
+     * Get a list of lines from the server.
+     * @param path the path and query of the request
+     * @return the decoded lines
+     * @throws RuntimeException if the server is unreachable, or answers with an error
+     */
+    private List<String> lines(String path) throws RuntimeException {
+        try {
+            var response = send(HttpRequest.newBuilder(uri(path)).GET().build(), HttpResponse.BodyHandlers.ofLines());
+            if (response.statusCode() != 200)
+                throw new RuntimeException("The storage " + baseUrl + " answered with status " + response.statusCode());
+            return response.body().map(SnippetServer::decode).toList();
+        } catch (IOException e) {
+            throw new RuntimeException("Cannot reach the storage: " + baseUrl, e);
+        }
+    }
+
+    /**
+     * Send a request to the server.
+     * @param request the request
+     * @param handler the handler of the response body
+     * @param <T> the type of the response body
+     * @return the response
+     * @throws IOException if the server is unreachable, or the thread is interrupted
+     */
+    private <T> HttpResponse<T> send(HttpRequest request, HttpResponse.BodyHandler<T> handler) throws IOException {
+        try {
+            return client.send(request, handler);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while querying " + baseUrl);
+        }
+    }
+
+    /**
+     * Build the URI of a request.
+     * @param path the path and query, already encoded
+     * @return the URI
+     */
+    private URI uri(String path) {
+        return URI.create(baseUrl + path);
+    }
+
+    /**
+     * Build the query giving the tags of a snippet saved or updated.
+     * @param tags the tags
+     * @return the query, with its leading {@code ?} (empty if there are no tags)
+     */
+    private static String tagsQuery(String[] tags) {
+        var query = Arrays.stream(tags).map(tag -> "tag=" + SnippetServer.encode(tag)).collect(Collectors.joining("&"));
+        return query.isEmpty() ? "" : "?" + query;
+    }
+
+    /**
+     * Get the tags of many snippets in a single request, see {@link #getAll(Collection)}: the server sends
+     * the content only of the snippets that changed since they were cached.
+     * @param names the unique names of the snippets
+     * @return the tags of the snippets that exist, by name
+     */
+    @Override
+    public Map<String, String[]> getAllTags(Collection<String> names) {
+        var tags = new HashMap<String, String[]>();
+        for (var snippet : getAll(names)) tags.put(snippet.name(), snippet.tags());
+        return tags;
+    }
+
+    /**
+     * Get the location of a snippet: its URL on the server.
+     * @param name the unique name of the snippet
+     * @return the URL
+     */
+    private String location(String name) {
+        return baseUrl + "/snippets/" + SnippetServer.encode(name);
+    }
+
+    /**
+     * Read a frame header.
+     * @param in the response body
+     * @return the header, without the newline, or null at the end of the body
+     * @throws IOException if the body cannot be read
+     */
+    private static String readLine(InputStream in) throws IOException {
+        var line = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) != '\n') {
+            if (b < 0) {
+                if (line.size() == 0) return null;
+                throw new IOException("Truncated frame header");
+            }
+            line.write(b);
+        }
+        return line.toString(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Get the root of the caches of remote storages.
+     * Priority order:
+     * <pre>{@code
+     * 1. XDG_CACHE_HOME/snipit/remote
+     * 2. HOME/.cache/snipit/remote
+     * }</pre>
+     * @return the path of the root
+     */
+    private static Path cacheRoot() {
+        var cacheHome = System.getenv("XDG_CACHE_HOME");
+        var root = cacheHome != null ? Path.of(cacheHome) : Path.of(System.getProperty("user.home"), ".cache");
+        return root.resolve("snipit").resolve("remote");
+    }
+
+    /**
+     * Get the cache file of a snippet.
+     * @param name the unique name of the snippet
+     * @return the path of the file
+     */
+    private Path cacheFile(String name) {
+        return cacheDir.resolve(SnippetServer.encode(name));
+    }
+
+    /**
+     * Read a snippet from the cache.
+     * @param name the unique name of the snippet
+     * @return the cached snippet, or null if not cached (or unreadable)
+     */
+    private Cached readCache(String name) {
+        var file = cacheFile(name);
+        if (!Files.exists(file)) return null;
+        try (var in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            var etag = in.readUTF();
+            var tags = new String[in.readInt()];
+            for (int i = 0; i < tags.length; i++) tags[i] = in.readUTF();
+            var content = new String(in.readNBytes(in.readInt()), StandardCharsets.UTF_8);
+            return new Cached(etag, new Snippet(name, content, location(name), tags));
+        } catch (IOException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Write a snippet to the cache, atomically. The cache is best effort: errors are ignored.
+     * @param cached the snippet
+     */
+    private void writeCache(Cached cached) {
+        var snippet = cached.snippet();
+        try {
+            Files.createDirectories(cacheDir);
+            var tmp = Files.createTempFile(cacheDir, "cache", ".tmp");
+            try (var out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+                out.writeUTF(cached.etag());
+                out.writeInt(snippet.tags().length);
+                for (var tag : snippet.tags()) out.writeUTF(tag);
+                var content = snippet.content().getBytes(StandardCharsets.UTF_8);
+                out.writeInt(content.length);
+                out.write(content);
+            } catch (IOException e) {
+                Files.deleteIfExists(tmp);
+                throw e;
+            }
+            Files.move(tmp, cacheFile(snippet.name()), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException ignored) {
+            // not cached, fetched again next time
+        }
+    }
+
+    /**
+     * Forget a snippet, after it changed.
+     * @param name the unique name of the snippet
+     */
+    private void evict(String name) {
+        validated.remove(name);
+        try {
+            Files.deleteIfExists(cacheFile(name));
+        } catch (IOException ignored) {
+            // revalidated with its entity tag anyway
+        }
+    }
+}
@@ -1,8 +1,19 @@
 package sh.sinux.repository;
 
 import sh.sinux.Snippet;
+import sh.sinux.similarity.MinHash;
 
+import java.io.Reader;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
 
 /**
  * A repository is a storage for snippets.
@@ -12,6 +23,18 @@ import java.util.List;
  */
 public interface Repository {
 
+    /**
+     * Tells if a name can be the name of a snippet: it's not blank, and has no path separator ({@code /} or
+     * {@code \}), no {@code ..} and no NUL character, so that it's a single file name in any storage.
+     * Repositories answer as if a snippet with an invalid name did not exist (and cannot be saved).
+     * @param name the name to check
+     * @return true if the name is valid
+     */
+    static boolean isValidName(String name) {
+        return name != null && !name.isBlank() && !name.equals(".") && !name.contains("..")
+                && name.indexOf('/') < 0 && name.indexOf('\\') < 0 && name.indexOf('\0') < 0;
+    }
+
     /**
      * Adds a snippet to the repository.
      * @param name the snippet name, has to be unique
@@ -28,6 +51,111 @@ public interface Repository {
      */
     Snippet get(String name);
 
+    /**
+     * Gets many snippets from the repository at once, for scans (searches, listings).
+     * Repositories can override it to fetch the snippets concurrently.
+     * Repositories which count the reads of their snippets don't count these, only {@link #get(String)}
+     * and {@link #openContent(String)}.
+     * @param names the unique names of the snippets
+     * @return the snippets that exist, in no particular order
+     */
+    default List<Snippet> getAll(Collection<String> names) {
+        return names.stream().map(this::get).filter(Objects::nonNull).toList();
+    }
+
+    /**
+     * Gets the tags of a snippet, without its content when the repository can avoid reading it.
+     * @param name the unique name of the snippet
+     * @return the tags of the snippet if it exists, null otherwise
+     */
+    default String[] getTags(String name) {
+        var snippet = get(name);
+        return snippet == null ? null : snippet.tags();
+    }
+
+    /**
+     * Gets the tags of many snippets at once, without their content when the repository can avoid reading it.
+     * Repositories can override it to fetch them together instead of one after another.
+     * @param names the unique names of the snippets
+     * @return the tags of the snippets that exist, by name
+     */
+    default Map<String, String[]> getAllTags(Collection<String> names) {
+        var tags = new HashMap<String, String[]>();
+        for (var name : names) {
+            var snippetTags = getTags(name);
+            if (snippetTags != null) tags.put(name, snippetTags);
+        }
+        return tags;
+    }
+
+    /**
+     * Gets the location of a snippet, a string meaningful for the repository type (like a filesystem path),
+     * without its content when the repository can avoid reading it.
+     * @param name the unique name of the snippet
+     * @return the location of the snippet if it exists (empty if it has none), null otherwise
+     */
+    default String getLocation(String name) {
+        var snippet = get(name);
+        return snippet == null ? null : snippet.location();
+    }
+
+    /**
+     * Opens the content of a snippet for reading.
+     * Repositories can override it to stream the content instead of loading it whole.
+     * @param name the unique name of the snippet
+     * @return a reader of the content if the snippet exists, null otherwise
+     */
+    default Reader openContent(String name) {
+        var snippet = get(name);
+        return snippet == null ? null : new StringReader(snippet.content());
+    }
+
+    /**
+     * Gets the {@link MinHash} signature of a snippet content, to find near-duplicates.
+     * Repositories can override it to store the signature instead of computing it every time.
+     * @param name the unique name of the snippet
+     * @return the signature of the snippet if it exists, null otherwise
+     */
+    default int[] getSignature(String name) {
+        var snippet = get(name);
+        return snippet == null ? null : MinHash.signature(snippet.content());
+    }
+
+    /**
+     * Replaces a snippet by a new version.
+     * Repositories can override it to keep the previous versions, see {@link #history(String)}.
+     * @param name the unique name of the snippet
+     * @param content the new content of the snippet
+     * @param tags the new tags of the snippet (can be empty)
+     * @return true if the snippet was updated, false if the snippet was not found or an error occurred
+     */
+    default boolean update(String name, String content, String[] tags) {
+        if (get(name) == null) return false;
+        return remove(name) && save(name, content, tags);
+    }
+
+    /**
+     * Lists the revisions of a snippet.
+     * Repositories without history only have the current version, as revision 1.
+     * @param name the unique name of the snippet
+     * @return the revisions, from the oldest to the current one, or null if the snippet was not found
+     */
+    default List<Revision> history(String name) {
+        var snippet = get(name);
+        if (snippet == null) return null;
+        return List.of(new Revision(1, 0, snippet.content().getBytes(StandardCharsets.UTF_8).length, snippet.tags()));
+    }
+
+    /**
+     * Gets a revision of a snippet, see {@link #history(String)}.
+     * @param name the unique name of the snippet
+     * @param revision the number of the revision
+     * @return the snippet as it was at this revision, or null if the snippet or the revision was not found
+     */
+    default Snippet getRevision(String name, int revision) {
+        return revision == 1 ? get(name) : null;
+    }
+
     /**
      * Removes a snippet from the repository.
      * @param name the snippet's unique name
@@ -41,12 +169,50 @@ public interface Repository {
      */
     List<String> listNames();
 
+    /**
+     * Lists a page of the snippet names, sorted (see {@link Page#ORDER}).
+     * Repositories can override it to read only the page from a sorted index.
+     * @param prefix only list the names starting with it (can be null)
+     * @param cursor the cursor given by the previous page (null for the first page)
+     * @param limit the maximum number of names of the page
+     * @return the page
+     * @throws IllegalArgumentException if the cursor or the limit is not valid
+     */
+    default Page listNames(String prefix, String cursor, int limit) throws IllegalArgumentException {
+        if (limit < 1) throw new IllegalArgumentException("The limit must be positive");
+        var after = Page.decodeCursor(cursor);
+        var start = prefix == null ? "" : prefix;
+        return Page.of(listNames().stream().filter(name -> Page.inRange(name, start, after)).sorted(Page.ORDER).toList(), limit);
+    }
+
     /**
      * List of all the tags used in the repository.
      * @return a list of tags
      */
     List<String> listTags();
 
+    /**
+     * Lists the usage of each tag: the number of snippets with it, and their total size.
+     * Repositories can override it to answer from aggregates, instead of reading every snippet.
+     * @return the usage of each tag, sorted by tag (see {@link Page#ORDER})
+     */
+    default List<TagStats> tagStats() {
+        return TagStats.merge(getAll(listNames()).stream().flatMap(snippet -> {
+            long bytes = snippet.content().getBytes(StandardCharsets.UTF_8).length;
+            return Arrays.stream(snippet.tags()).filter(tag -> !tag.isEmpty()).distinct().map(tag -> new TagStats(tag, 1, bytes));
+        }).toList());
+    }
+
+    /**
+     * Streams the usage of each tag, see {@link #tagStats()}.
+     * Repositories can override it to read the aggregates as they are consumed, instead of loading them first.
+     * The stream must be closed.
+     * @return the usage of each tag, sorted by tag
+     */
+    default Stream<TagStats> streamTagStats() {
+        return tagStats().stream();
+    }
+
     /**
      * Search in name, content and tags for a given query.
      * @param query a word or a phrase to search
@@ -74,4 +240,62 @@ public interface Repository {
      * @return a list of snippets
      */
     List<Snippet> searchTags(String query);
+
+    /**
+     * Search for a given query, where the mode tells.
+     * Repositories can override it to read only the matching snippets when the matches are known (e.g. from a cache).
+     * @param query a word or a phrase to search
+     * @param mode where to search
+     * @return a list of snippets
+     */
+    default List<Snippet> search(String query, SearchMode mode) {
+        return switch (mode) {
+            case ALL -> searchAll(query);
+            case NAME -> searchName(query);
+            case CONTENT -> searchContent(query);
+            case TAGS -> searchTags(query);
+        };
+    }
+
+    /**
+     * Search for a given query, returning only the names of the matching snippets.
+     * Repositories can override it to answer without building full snippets (e.g. from a cache).
+     * @param query a word or a phrase to search
+     * @param mode where to search
+     * @return a list of snippet names
+     */
+    default List<String> searchNames(String query, SearchMode mode) {
+        return search(query, mode).stream().map(Snippet::name).toList();
+    }
+
+    /**
+     * Makes the changes done so far durable.
+     * Repositories can buffer their changes (e.g. in a journal) and sync them here, once for many changes.
+     */
+    default void flush() {
+    }
+
+    /**
+     * Makes the changes durable and releases the resources of the repository, for a long-lived process shutting down.
+     * The repository cannot be used anymore. Repositories without resources only flush.
+     */
+    default void close() {
+        flush();
+    }
+
+    /**
+     * Runs the maintenance of the repository which can take long (e.g. moving the snippets between storage tiers),
+     * kept out of {@link #flush()}: on a background thread in a long-lived process, or in a pass of its own.
+     * Repositories without maintenance do nothing.
+     */
+    default void maintain() {
+    }
+
+    /**
+     * Watches the snippets changed outside the repository (e.g. edited by hand), for a long-lived process.
+     * Repositories which can, keep their derived structures up to date with them, and report them.
+     * @param listener called with the names of the snippets changed, or null if any may have changed
+     */
+    default void watch(Consumer<Collection<String>> listener) {
+    }
 }
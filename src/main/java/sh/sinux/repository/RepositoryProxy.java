@@ -3,41 +3,68 @@ package sh.sinux.repository;
 import sh.sinux.Snippet;
 import sh.sinux.config.Config;
 
-import java.util.ArrayList;
+import java.io.Reader;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
 
 /**
  * The RepositoryProxy choose which repository to use based on the config.
  * This is a singleton class, see {@link #create(Config)} and {@link #getInstance()}.
  * It performs optimizations when it can.
+ * The snippets names are only loaded once a method needs the whole list, so commands working
+ * on a single snippet go straight to the inner repository.
+ * It is thread-safe, as long as the inner repository is.
  * @author sinux-l5d
  * @since 1.0
  */
 public class RepositoryProxy implements Repository {
 
     /** The singleton instance */
-    private static RepositoryProxy instance;
+    private static volatile RepositoryProxy instance;
 
     /** The inner repository used by the proxy */
     private final Repository repository;
 
     /**
-     * Store snippets unique names to perform optimizations.
+     * Store snippets unique names (and tags, once needed) to perform optimizations.
+     * Replaced when the snippets may all have changed outside the repository, see {@link #watch(Consumer)}.
      */
-    private final ArrayList<String> snippetsName = new ArrayList<>();
+    private SnippetCatalog catalog = new SnippetCatalog();
+
+    /** Tells if the snippets names were loaded in the catalog */
+    private volatile boolean namesLoaded;
+
+    /** Guards the catalog: many threads can read it at once, changes are exclusive */
+    private final ReadWriteLock catalogLock = new ReentrantReadWriteLock();
 
     /**
      * Creates a new RepositoryProxy instance.
      * @param config the configuration of the application, used to determine the type of repository to use
      */
     private RepositoryProxy(Config config) {
-        //noinspection SwitchStatementWithTooFewBranches
-        switch (config.getStorageType()) {
-            case FILESYSTEM -> repository = new FilesystemRepository(config);
+        repository = inner(config);
+    }
+
+    /**
+     * Creates the repository matching the storage type of a configuration.
+     * @param config the configuration of the storage
+     * @return a new repository
+     * @throws RuntimeException if the storage type is unknown
+     */
+    static Repository inner(Config config) throws RuntimeException {
+        return switch (config.getStorageType()) {
+            case FILESYSTEM -> new FilesystemRepository(config);
+            case FEDERATED -> new FederatedRepository(config);
+            case REMOTE -> new RemoteRepository(config);
+            //noinspection UnnecessaryDefault
             default -> throw new RuntimeException("Unknown storage type: " + config.getStorageType());
-        }
-        // Load snippets names
-        snippetsName.addAll(repository.listNames());
+        };
     }
 
     /**
@@ -47,7 +74,7 @@ public class RepositoryProxy implements Repository {
      * @param config the configuration to use
      * @return RepositoryProxy instance
      */
-    public static RepositoryProxy create(Config config) {
+    public static synchronized RepositoryProxy create(Config config) {
         if (instance == null)
             instance = new RepositoryProxy(config);
         return instance;
@@ -63,7 +90,7 @@ public class RepositoryProxy implements Repository {
 
     /**
      * Save a snippet in the repository.
-     * The inner repository is not called if the snippet name already exists.
+     * The inner repository is not called if the snippet name is known to exist.
      * @param name the snippet name, has to be unique
      * @param content the snippet content
      * @param tags the snippet tags (can be empty)
@@ -72,10 +99,10 @@ public class RepositoryProxy implements Repository {
     @Override
     public boolean save(String name, String content, String[] tags) {
         // unique name
-        if (name == null || snippetsName.contains(name)) return false;
+        if (name == null || (namesLoaded && inCatalog(name))) return false;
 
         var ok = repository.save(name, content, tags);
-        if (ok) snippetsName.add(name);
+        if (ok) updateCatalog(() -> catalog.add(name, tags));
         return ok;
     }
 
@@ -86,10 +113,77 @@ public class RepositoryProxy implements Repository {
      */
     @Override
     public Snippet get(String name) {
-        if (name == null || !snippetsName.contains(name)) return null;
+        if (!mayExist(name)) return null;
         return repository.get(name);
     }
 
+    /**
+     * Gets many snippets from the repository at once.
+     * Names known not to exist are not sent to the inner repository.
+     * @param names the names of the snippets
+     * @return the snippets that exist, in no particular order
+     */
+    @Override
+    public List<Snippet> getAll(Collection<String> names) {
+        if (!namesLoaded) return repository.getAll(names);
+        return repository.getAll(names.stream().filter(this::mayExist).toList());
+    }
+
+    /**
+     * Gets the tags of a snippet from the repository.
+     * @param name the name of the snippet
+     * @return the tags of the snippet, or null if the snippet does not exist
+     */
+    @Override
+    public String[] getTags(String name) {
+        if (!mayExist(name)) return null;
+        return repository.getTags(name);
+    }
+
+    /**
+     * Gets the tags of many snippets from the repository, skipping the ones known not to exist.
+     * @param names the names of the snippets
+     * @return the tags of the snippets that exist, by name
+     */
+    @Override
+    public Map<String, String[]> getAllTags(Collection<String> names) {
+        if (!namesLoaded) return repository.getAllTags(names);
+        return repository.getAllTags(names.stream().filter(this::mayExist).toList());
+    }
+
+    /**
+     * Gets the location of a snippet from the repository.
+     * @param name the name of the snippet
+     * @return the location of the snippet, or null if the snippet does not exist
+     */
+    @Override
+    public String getLocation(String name) {
+        if (!mayExist(name)) return null;
+        return repository.getLocation(name);
+    }
+
+    /**
+     * Opens the content of a snippet from the repository.
+     * @param name the name of the snippet
+     * @return a reader of the content, or null if the snippet does not exist
+     */
+    @Override
+    public Reader openContent(String name) {
+        if (!mayExist(name)) return null;
+        return repository.openContent(name);
+    }
+
+    /**
+     * Gets the MinHash signature of a snippet from the repository.
+     * @param name the name of the snippet
+     * @return the signature of the snippet, or null if the snippet does not exist
+     */
+    @Override
+    public int[] getSignature(String name) {
+        if (!mayExist(name)) return null;
+        return repository.getSignature(name);
+    }
+
     /**
      * Removes a snippet from the repository.
      * @param name the snippet's unique name
@@ -98,26 +192,107 @@ public class RepositoryProxy implements Repository {
     @Override
     public boolean remove(String name) {
         var ok = repository.remove(name);
-        if (ok) snippetsName.remove(name);
+        if (ok) updateCatalog(() -> catalog.remove(name));
+        return ok;
+    }
+
+    /**
+     * Replaces a snippet by a new version, if it may exist.
+     * @param name the name of the snippet
+     * @param content the new content of the snippet
+     * @param tags the new tags of the snippet
+     * @return true if the snippet was updated, false otherwise
+     */
+    @Override
+    public boolean update(String name, String content, String[] tags) {
+        if (!mayExist(name)) return false;
+        var ok = repository.update(name, content, tags);
+        if (ok) updateCatalog(() -> {
+            catalog.remove(name);
+            catalog.add(name, tags);
+        });
         return ok;
     }
 
+    /**
+     * Lists the revisions of a snippet, if it may exist.
+     * @param name the name of the snippet
+     * @return the revisions, or null if the snippet does not exist
+     */
+    @Override
+    public List<Revision> history(String name) {
+        if (!mayExist(name)) return null;
+        return repository.history(name);
+    }
+
+    /**
+     * Gets a revision of a snippet, if it may exist.
+     * @param name the name of the snippet
+     * @param revision the number of the revision
+     * @return the snippet as it was at this revision, or null if not found
+     */
+    @Override
+    public Snippet getRevision(String name, int revision) {
+        if (!mayExist(name)) return null;
+        return repository.getRevision(name, revision);
+    }
+
     /**
      * List all the snippets name in the repository.
      * @return a list of snippet names
      */
     @Override
     public List<String> listNames() {
-        return snippetsName;
+        loadNames();
+        catalogLock.readLock().lock();
+        try {
+            return catalog.names();
+        } finally {
+            catalogLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * List a page of the snippet names, sorted. The inner repository reads only the page if it can:
+     * the catalog is not loaded.
+     * @param prefix only list the names starting with it (can be null)
+     * @param cursor the cursor given by the previous page (null for the first page)
+     * @param limit the maximum number of names of the page
+     * @return the page
+     * @throws IllegalArgumentException if the cursor or the limit is not valid
+     */
+    @Override
+    public Page listNames(String prefix, String cursor, int limit) throws IllegalArgumentException {
+        return repository.listNames(prefix, cursor, limit);
     }
 
     /**
      * List of all the tags used in the repository.
-     * @return a list of tags
+     * Served from the usage of the tags (see {@link #tagStats()}), which repositories answer from aggregates,
+     * instead of loading the tags of every snippet in the catalog.
+     * @return a list of tags, sorted
      */
     @Override
     public List<String> listTags() {
-        return repository.listTags();
+        return repository.tagStats().stream().map(TagStats::tag).toList();
+    }
+
+    /**
+     * Lists the usage of each tag, from the repository (the catalog doesn't know the sizes).
+     * @return the usage of each tag, sorted by tag
+     */
+    @Override
+    public List<TagStats> tagStats() {
+        return repository.tagStats();
+    }
+
+    /**
+     * Streams the usage of each tag, from the repository.
+     * @return the usage of each tag, sorted by tag
+     */
+    @Override
+    public Stream<TagStats> streamTagStats() {
+        return repository.streamTagStats();
     }
 
     /**
@@ -160,6 +335,164 @@ public class RepositoryProxy implements Repository {
      */
     @Override
     public List<Snippet> searchTags(String query) {
-        return repository.searchTags(query);
+        // The catalog finds the matching snippets, so only those are read
+        loadTags();
+        List<String> names;
+        catalogLock.readLock().lock();
+        try {
+            names = catalog.namesWithTagMatching(query);
+        } finally {
+            catalogLock.readLock().unlock();
+        }
+        return repository.getAll(names);
+    }
+
+    /**
+     * Search for a given query, returning only the names of the matching snippets.
+     * The inner repository may answer from its own cache.
+     * @param query a word or a phrase to search
+     * @param mode where to search
+     * @return a list of snippet names
+     */
+    @Override
+    public List<String> searchNames(String query, SearchMode mode) {
+        return repository.searchNames(query, mode);
+    }
+
+    /**
+     * Search for a given query, where the mode tells.
+     * The inner repository may answer from its own cache.
+     * @param query a word or a phrase to search
+     * @param mode where to search
+     * @return a list of snippets
+     */
+    @Override
+    public List<Snippet> search(String query, SearchMode mode) {
+        return repository.search(query, mode);
+    }
+
+    /**
+     * Makes the changes done so far durable.
+     */
+    @Override
+    public void flush() {
+        repository.flush();
+    }
+
+    /**
+     * Makes the changes durable and releases the resources of the repository.
+     */
+    @Override
+    public void close() {
+        repository.close();
+    }
+
+    /**
+     * Runs the maintenance of the repository.
+     */
+    @Override
+    public void maintain() {
+        repository.maintain();
+    }
+
+    /**
+     * Watches the snippets changed outside the repository, and updates the catalog with them.
+     * @param listener called with the names of the snippets changed, or null if any may have changed
+     */
+    @Override
+    public void watch(Consumer<Collection<String>> listener) {
+        repository.watch(names -> {
+            refreshCatalog(names);
+            listener.accept(names);
+        });
+    }
+
+    /**
+     * Update the catalog for snippets changed outside the repository, if the names are loaded.
+     * Their tags are read again before the catalog is locked.
+     * @param names the names of the snippets changed, or null to load the catalog again when needed
+     */
+    private void refreshCatalog(Collection<String> names) {
+        if (!namesLoaded) return;
+        if (names == null) {
+            catalogLock.writeLock().lock();
+            try {
+                catalog = new SnippetCatalog();
+                namesLoaded = false;
+            } finally {
+                catalogLock.writeLock().unlock();
+            }
+            return;
+        }
+        var tags = new HashMap<String, String[]>();
+        names.forEach(name -> tags.put(name, repository.getTags(name)));
+        updateCatalog(() -> tags.forEach((name, snippetTags) -> {
+            catalog.remove(name);
+            if (snippetTags != null) catalog.add(name, snippetTags);
+        }));
+    }
+
+    /**
+     * Tells if a snippet may exist: always true until the names are loaded, then looked up in the catalog.
+     * @param name the name of the snippet
+     * @return false if the snippet does not exist for sure
+     */
+    private boolean mayExist(String name) {
+        return name != null && (!namesLoaded || inCatalog(name));
+    }
+
+    /**
+     * Tells if a snippet is in the catalog.
+     * @param name the name of the snippet
+     * @return true if the snippet is in the catalog
+     */
+    private boolean inCatalog(String name) {
+        catalogLock.readLock().lock();
+        try {
+            return catalog.contains(name);
+        } finally {
+            catalogLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Apply a change to the catalog, if the names are loaded (otherwise the change is loaded with them).
+     * @param change the change to apply
+     */
+    private void updateCatalog(Runnable change) {
+        catalogLock.writeLock().lock();
+        try {
+            if (namesLoaded) change.run();
+        } finally {
+            catalogLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Load the snippets names in the catalog, if not done yet.
+     */
+    private void loadNames() {
+        if (namesLoaded) return;
+        catalogLock.writeLock().lock();
+        try {
+            if (namesLoaded) return;
+            catalog.addAll(repository.listNames());
+            namesLoaded = true;
+        } finally {
+            catalogLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Load the tags of every snippet in the catalog, if not done yet.
+     */
+    private void loadTags() {
+        loadNames();
+        catalogLock.writeLock().lock();
+        try {
+            if (!catalog.hasTags()) catalog.loadTags(repository::getTags);
+        } finally {
+            catalogLock.writeLock().unlock();
+        }
     }
 }
@@ -0,0 +1,30 @@
+package sh.sinux.repository;
+
+/**
+ * A revision of a snippet, as listed by {@link Repository#history(String)}.
+ * Revisions are numbered from 1 (the first version saved); the highest number is the current version.
+ * @param number the number of the revision
+ * @param time when the revision was saved, in milliseconds since the epoch (0 if unknown)
+ * @param size the size of the content of the revision, in bytes
+ * @param tags the tags of the revision
+ * @author sinux-l5d
+ * @since 1.1
+ */
+public record Revision(int number, long time, int size, String[] tags) {
+
+    /**
+     * Creates a new Revision instance.
+     * @param number the number of the revision (starting at 1)
+     * @param time when the revision was saved
+     * @param size the size of the content of the revision
+     * @param tags the tags of the revision
+     */
+    public Revision {
+        if (number < 1) {
+            throw new IllegalArgumentException("number must start at 1");
+        }
+        if (tags == null) {
+            tags = new String[0];
+        }
+    }
+}
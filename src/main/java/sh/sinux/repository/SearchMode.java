@@ -0,0 +1,36 @@
+package sh.sinux.repository;
+
+/**
+ * The search mode determines where a {@link Repository} searches for a query.
+ * @author sinux-l5d
+ * @since 1.1
+ */
+public enum SearchMode {
+    /** Search in name, content and tags */
+    ALL("all"),
+    /** Search in name */
+    NAME("name"),
+    /** Search in content */
+    CONTENT("content"),
+    /** Search in tags */
+    TAGS("tags");
+
+    /** The name of the search mode */
+    private final String modeName;
+
+    /**
+     * Creates a new SearchMode instance.
+     * @param modeName the name of the search mode
+     */
+    SearchMode(String modeName) {
+        this.modeName = modeName;
+    }
+
+    /**
+     * Returns the name of the search mode.
+     * @return the name of the search mode
+     */
+    public String toString() {
+        return modeName;
+    }
+}
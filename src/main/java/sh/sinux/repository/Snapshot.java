@@ -0,0 +1,274 @@
+package sh.sinux.repository;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The Snapshot records the size and modification time of every snippet file of a {@link FilesystemRepository},
+ * with its tags and the size of its content, as of a generation of the repository. Comparing it with the snippet files tells which ones were
+ * changed outside the repository (by hand, or by a synchronization tool), so that only those are read again
+ * to bring the derived structures up to date (see {@link FilesystemRepository#reconcile(java.util.Collection)}).
+ * <p>
+ * The file is stored as:
+ * <pre>{@code
+ * int magic | long generation | int entry count
+ * entry = UTF name | long modified | long size | long content length | int tag count | UTF tags...
+ * }</pre>
+ * It is updated along with the generation of the repository, by appending the changes to a delta file
+ * (the snapshot file name with {@code .delta}), which is compacted into the snapshot file once it's as large:
+ * <pre>{@code
+ * record = long generation | int change count | change... | long generation
+ * change = UTF name | int tag count (REMOVED, or STATE_ONLY) | long modified | long size | long content length | UTF tags...
+ * }</pre>
+ * The generation of the snapshot is the one ending the delta file (or the one of the snapshot file, without changes):
+ * if it doesn't match the generation of the repository (e.g. after a crash), the snapshot is rebuilt from a full scan.
+ * @author sinux-l5d
+ * @since 1.1
+ */
+class Snapshot {
+
+    /** Magic number and version of the snapshot file format */
+    private static final int MAGIC = 0x534e5333; // "SNS3"
+
+    /** The tag count of a change of the delta file for a snippet removed */
+    private static final int REMOVED = -1;
+
+    /** The tag count of a change of the delta file for a snippet file rewritten with the same tags and content */
+    private static final int STATE_ONLY = -2;
+
+    /** Minimum size of the delta file compacted into the snapshot file */
+    private static final long COMPACT_BYTES = 1 << 16;
+
+    /**
+     * The state of a snippet file.
+     * @param modified the modification time of the file, in milliseconds since the epoch
+     * @param size the size of the file, in bytes
+     * @param length the size of the content of the snippet, in bytes
+     * @param tags the tags of the snippet
+     */
+    record Entry(long modified, long size, long length, String[] tags) {
+
+        /**
+         * Tells if a snippet file is in the same state, like the quick check of rsync.
+         * @param other the state of the file now (can be null)
+         * @return true if the file has the same modification time and size
+         */
+        boolean matches(Entry other) {
+            return other != null && modified == other.modified && size == other.size;
+        }
+    }
+
+    /** The snapshot file */
+    private final Path file;
+
+    /** The delta file, the changes since the snapshot file was written */
+    private final Path delta;
+
+    /**
+     * Creates a new Snapshot instance.
+     * @param file the snapshot file
+     */
+    Snapshot(Path file) {
+        this.file = file;
+        this.delta = file.resolveSibling(file.getFileName() + ".delta");
+    }
+
+    /**
+     * Read the snapshot: the snapshot file, then the changes of the delta file.
+     * @param generation the current generation of the repository
+     * @return the state of the snippet files by name, or null if there is no snapshot of this generation
+     */
+    Map<String, Entry> read(long generation) {
+        Map<String, Entry> entries;
+        long current;
+        try (var in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            if (in.readInt() != MAGIC) return null;
+            current = in.readLong();
+            int count = in.readInt();
+            entries = new HashMap<>(Math.max(16, count * 4 / 3 + 1));
+            for (int i = 0; i < count; i++) {
+                var name = in.readUTF();
+                entries.put(name, new Entry(in.readLong(), in.readLong(), in.readLong(), readTags(in, in.readInt())));
+            }
+        } catch (IOException | NegativeArraySizeException e) {
+            return null;
+        }
+
+        byte[] changes;
+        try {
+            changes = Files.readAllBytes(delta);
+        } catch (NoSuchFileException e) {
+            changes = new byte[0];
+        } catch (IOException e) {
+            return null;
+        }
+        try (var in = new DataInputStream(new ByteArrayInputStream(changes))) {
+            while (in.available() > 0) {
+                long to = in.readLong();
+                for (int i = in.readInt(); i > 0; i--) {
+                    var name = in.readUTF();
+                    int tagCount = in.readInt();
+                    if (tagCount == REMOVED) {
+                        entries.remove(name);
+                        continue;
+                    }
+                    var entry = new Entry(in.readLong(), in.readLong(), in.readLong(), readTags(in, Math.max(0, tagCount)));
+                    if (tagCount != STATE_ONLY) entries.put(name, entry);
+                    else entries.computeIfPresent(name, (n, previous) -> new Entry(entry.modified(), entry.size(), previous.length(), previous.tags()));
+                }
+                // A record cut by a crash does not end with its generation
+                if (in.readLong() != to) return null;
+                current = to;
+            }
+        } catch (IOException | NegativeArraySizeException e) {
+            return null;
+        }
+        return current == generation ? entries : null;
+    }
+
+    /**
+     * Read the tags of an entry.
+     * @param in the snapshot or delta file
+     * @param count the number of tags
+     * @return the tags
+     * @throws IOException if the file cannot be read
+     */
+    private static String[] readTags(DataInputStream in, int count) throws IOException {
+        var tags = new String[count];
+        for (int i = 0; i < tags.length; i++) tags[i] = in.readUTF();
+        return tags;
+    }
+
+    /**
+     * Read the generation of the snapshot, without reading the snapshot: the one ending the delta file,
+     * or the one of the snapshot file if there is no delta file.
+     * @return the generation, or -1 if there is no snapshot (of this format)
+     */
+    long generation() {
+        long generation;
+        try (var channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            var buffer = ByteBuffer.allocate(Integer.BYTES + Long.BYTES);
+            channel.read(buffer, 0);
+            if (buffer.hasRemaining() || buffer.getInt(0) != MAGIC) return -1;
+            generation = buffer.getLong(Integer.BYTES);
+        } catch (IOException e) {
+            return -1;
+        }
+        try (var channel = FileChannel.open(delta, StandardOpenOption.READ)) {
+            var buffer = ByteBuffer.allocate(Long.BYTES);
+            if (channel.size() >= Long.BYTES) channel.read(buffer, channel.size() - Long.BYTES);
+            return buffer.hasRemaining() ? -1 : buffer.getLong(0);
+        } catch (NoSuchFileException e) {
+            return generation; // no changes since the snapshot file
+        } catch (IOException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Get the time of the last change of the snapshot.
+     * The repository changes a snippet file before the snapshot, so a snippet file modified after it
+     * was changed outside the repository.
+     * @return the modification time of the snapshot or of its delta file, in milliseconds since the epoch (0 if none)
+     */
+    long modified() {
+        return Math.max(file.toFile().lastModified(), delta.toFile().lastModified());
+    }
+
+    /**
+     * Mark the snapshot as up to date with the snippet files as of a time, after they were all compared with it
+     * (see {@link #modified()}).
+     * @param time the time the comparison started, in milliseconds since the epoch
+     * @throws IOException if the modification time of the snapshot cannot be set
+     */
+    void touch(long time) throws IOException {
+        if (time > modified()) Files.setLastModifiedTime(file, FileTime.fromMillis(time));
+    }
+
+    /**
+     * Delete the snapshot, to be rebuilt on the next startup.
+     * @throws IOException if the snapshot cannot be deleted
+     */
+    void delete() throws IOException {
+        Files.deleteIfExists(delta);
+        Files.deleteIfExists(file);
+    }
+
+    /**
+     * Replace the snapshot, atomically.
+     * The delta file is deleted first: a crash in between leaves a snapshot of a former generation, rebuilt.
+     * @param entries the state of the snippet files by name
+     * @param generation the generation of the repository
+     * @throws IOException if the snapshot cannot be written
+     */
+    void write(Map<String, Entry> entries, long generation) throws IOException {
+        Files.deleteIfExists(delta);
+        var tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (var out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+            out.writeInt(MAGIC);
+            out.writeLong(generation);
+            out.writeInt(entries.size());
+            for (var entry : entries.entrySet()) {
+                out.writeUTF(entry.getKey());
+                out.writeLong(entry.getValue().modified());
+                out.writeLong(entry.getValue().size());
+                out.writeLong(entry.getValue().length());
+                out.writeInt(entry.getValue().tags().length);
+                for (var tag : entry.getValue().tags()) out.writeUTF(tag);
+            }
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Update the snapshot for changes of snippets, by appending them to the delta file: it costs the changes,
+     * not the number of snippets. The delta file is compacted once it's as large as the snapshot file.
+     * A snapshot which does not match the generation is deleted instead, to be rebuilt on the next startup.
+     * It must be called with the counters of the repository locked.
+     * @param changes the new state of the snippet files by name: null for a snippet removed,
+     *                and null tags for a snippet whose file was rewritten with the same tags and content
+     * @param from the generation of the repository before the changes
+     * @param to the generation of the repository after the changes
+     * @throws IOException if the snapshot cannot be written
+     */
+    void update(Map<String, Entry> changes, long from, long to) throws IOException {
+        if (generation() != from) {
+            delete();
+            return;
+        }
+        var bytes = new ByteArrayOutputStream();
+        var out = new DataOutputStream(bytes);
+        out.writeLong(to);
+        out.writeInt(changes.size());
+        for (var change : changes.entrySet()) {
+            out.writeUTF(change.getKey());
+            var entry = change.getValue();
+            if (entry == null) {
+                out.writeInt(REMOVED);
+                continue;
+            }
+            out.writeInt(entry.tags() == null ? STATE_ONLY : entry.tags().length);
+            out.writeLong(entry.modified());
+            out.writeLong(entry.size());
+            out.writeLong(entry.length());
+            if (entry.tags() != null) for (var tag : entry.tags()) out.writeUTF(tag);
+        }
+        out.writeLong(to);
+        Files.write(delta, bytes.toByteArray(), StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+
+        if (Files.size(delta) >= Math.max(COMPACT_BYTES, Files.size(file))) {
+            var entries = read(to);
+            if (entries == null) delete();
+            else write(entries, to);
+        }
+    }
+}
@@ -0,0 +1,332 @@
+package sh.sinux.repository;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.function.Function;
+
+/**
+ * The SnippetCatalog is a compact in-memory index of the snippets names and tags,
+ * used by {@link RepositoryProxy}.
+ * Snippets and tags are given int IDs, tags are interned (each tag string is stored once),
+ * and the snippet-to-tags relation is stored in primitive arrays (CSR-style):
+ * <pre>{@code
+ * tagRefs[offsets[id]] .. tagRefs[offsets[id + 1] - 1] are the tag IDs of the snippet id
+ * }</pre>
+ * Lookups by name use open-addressing tables of int, so no boxing and no map entries are allocated.
+ * Removed snippets are tombstoned, and the arrays are compacted once half of them are removed.
+ * It is not thread-safe for changes: {@link RepositoryProxy} guards it with a read-write lock.
+ * @author sinux-l5d
+ * @since 1.1
+ */
+class SnippetCatalog {
+
+    /** Snippet names, by snippet ID */
+    private String[] names = new String[16];
+
+    /** Number of snippet IDs given (including removed ones) */
+    private int size;
+
+    /** Removed snippet IDs */
+    private BitSet removed = new BitSet();
+
+    /** Number of removed snippet IDs */
+    private int removedCount;
+
+    /** Open-addressing table of snippet IDs + 1, 0 meaning empty, probed by name */
+    private int[] nameSlots = new int[32];
+
+    /** Interned tags, by tag ID */
+    private String[] tags = new String[16];
+
+    /** Number of tag IDs given */
+    private int tagCount;
+
+    /** Number of live snippets using each tag, by tag ID */
+    private int[] tagUsage = new int[16];
+
+    /** Open-addressing table of tag IDs + 1, 0 meaning empty, probed by tag */
+    private int[] tagSlots = new int[32];
+
+    /** CSR offsets in {@link #tagRefs}, by snippet ID (size + 1 entries) */
+    private int[] offsets = new int[17];
+
+    /** CSR tag IDs of every snippet, one after another */
+    private int[] tagRefs = new int[16];
+
+    /** Tells if the tags of the snippets were loaded, see {@link #loadTags(Function)} */
+    private boolean tagsLoaded;
+
+    /**
+     * Inverted CSR: the snippet IDs of every tag, one after another.
+     * @param offsets the offsets in ids, by tag ID (tag count + 1 entries)
+     * @param ids the snippet IDs
+     */
+    private record Postings(int[] offsets, int[] ids) {
+    }
+
+    /**
+     * The inverted CSR, built on demand and dropped on every change.
+     * Assigned at once, so concurrent readers can build it without locking each other.
+     */
+    private volatile Postings postings;
+
+    /**
+     * Add snippets names to the catalog, without their tags.
+     * @param snippetNames the names of the snippets
+     */
+    void addAll(List<String> snippetNames) {
+        for (var name : snippetNames) add(name, null);
+    }
+
+    /**
+     * Add a snippet to the catalog.
+     * Its tags are only recorded if the tags of the catalog are loaded.
+     * @param name the unique name of the snippet
+     * @param snippetTags the tags of the snippet (can be null)
+     * @return true if the snippet was added, false if the name is already in the catalog
+     */
+    boolean add(String name, String[] snippetTags) {
+        int slot = findSlot(nameSlots, names, name);
+        int existing = nameSlots[slot] - 1;
+        if (existing >= 0 && !removed.get(existing)) return false;
+
+        if (size == names.length) {
+            names = Arrays.copyOf(names, size * 2);
+            offsets = Arrays.copyOf(offsets, size * 2 + 1);
+        }
+        int id = size++;
+        names[id] = name;
+        int end = offsets[id];
+        if (tagsLoaded && snippetTags != null) {
+            for (var tag : snippetTags) {
+                if (tag == null || tag.isEmpty()) continue;
+                if (end == tagRefs.length) tagRefs = Arrays.copyOf(tagRefs, tagRefs.length * 2);
+                int tagId = internTag(tag);
+                tagUsage[tagId]++;
+                tagRefs[end++] = tagId;
+            }
+        }
+        offsets[id + 1] = end;
+        postings = null;
+
+        // A removed snippet with the same name keeps its slot, which is reused
+        nameSlots[slot] = id + 1;
+        if (existing < 0 && size > nameSlots.length / 2) nameSlots = rehash(nameSlots, names);
+        return true;
+    }
+
+    /**
+     * Tells if a snippet is in the catalog.
+     * @param name the unique name of the snippet
+     * @return true if the snippet is in the catalog
+     */
+    boolean contains(String name) {
+        return idOf(name) >= 0;
+    }
+
+    /**
+     * Remove a snippet from the catalog.
+     * @param name the unique name of the snippet
+     * @return true if the snippet was removed, false if it wasn't in the catalog
+     */
+    boolean remove(String name) {
+        int id = idOf(name);
+        if (id < 0) return false;
+        removed.set(id);
+        removedCount++;
+        for (int i = offsets[id]; i < offsets[id + 1]; i++) tagUsage[tagRefs[i]]--;
+        postings = null;
+        if (removedCount > 16 && removedCount > size / 2) compact();
+        return true;
+    }
+
+    /**
+     * List the names of the snippets in the catalog.
+     * @return the names, in insertion order
+     */
+    List<String> names() {
+        var list = new ArrayList<String>(size - removedCount);
+        for (int id = 0; id < size; id++) {
+            if (!removed.get(id)) list.add(names[id]);
+        }
+        return list;
+    }
+
+    /**
+     * Tells if the tags of the snippets are loaded.
+     * @return true if {@link #loadTags(Function)} was called
+     */
+    boolean hasTags() {
+        return tagsLoaded;
+    }
+
+    /**
+     * Load the tags of every snippet of the catalog.
+     * @param loader a function returning the tags of a snippet from its name (may return null)
+     */
+    void loadTags(Function<String, String[]> loader) {
+        tagsLoaded = true;
+        Arrays.fill(tagUsage, 0);
+        var refs = new int[Math.max(16, size)];
+        int end = 0;
+        for (int id = 0; id < size; id++) {
+            offsets[id] = end;
+            if (removed.get(id)) continue;
+            var snippetTags = loader.apply(names[id]);
+            if (snippetTags == null) continue;
+            for (var tag : snippetTags) {
+                if (tag == null || tag.isEmpty()) continue;
+                if (end == refs.length) refs = Arrays.copyOf(refs, refs.length * 2);
+                int tagId = internTag(tag);
+                tagUsage[tagId]++;
+                refs[end++] = tagId;
+            }
+        }
+        offsets[size] = end;
+        tagRefs = refs;
+        postings = null;
+    }
+
+    /**
+     * List the names of the snippets having a tag containing the query.
+     * Only the interned tags are matched, then their postings are merged.
+     * @param query a word or phrase to search for
+     * @return the names of the matching snippets, in insertion order
+     */
+    List<String> namesWithTagMatching(String query) {
+        var inverted = postings;
+        if (inverted == null) postings = inverted = buildPostings();
+        var matches = new BitSet(size);
+        for (int tagId = 0; tagId < tagCount; tagId++) {
+            if (tagUsage[tagId] == 0 || !tags[tagId].contains(query)) continue;
+            for (int i = inverted.offsets()[tagId]; i < inverted.offsets()[tagId + 1]; i++) matches.set(inverted.ids()[i]);
+        }
+        var list = new ArrayList<String>(matches.cardinality());
+        for (int id = matches.nextSetBit(0); id >= 0; id = matches.nextSetBit(id + 1)) list.add(names[id]);
+        return list;
+    }
+
+    /**
+     * Get the ID of a live snippet.
+     * @param name the unique name of the snippet
+     * @return the snippet ID, or -1 if it's not in the catalog
+     */
+    private int idOf(String name) {
+        int id = nameSlots[findSlot(nameSlots, names, name)] - 1;
+        return id >= 0 && !removed.get(id) ? id : -1;
+    }
+
+    /**
+     * Get the ID of a tag, interning it if needed.
+     * @param tag the tag
+     * @return the tag ID
+     */
+    private int internTag(String tag) {
+        int slot = findSlot(tagSlots, tags, tag);
+        if (tagSlots[slot] != 0) return tagSlots[slot] - 1;
+
+        if (tagCount == tags.length) {
+            tags = Arrays.copyOf(tags, tagCount * 2);
+            tagUsage = Arrays.copyOf(tagUsage, tagCount * 2);
+        }
+        int tagId = tagCount++;
+        tags[tagId] = tag;
+        tagSlots[slot] = tagId + 1;
+        if (tagCount > tagSlots.length / 2) tagSlots = rehash(tagSlots, tags);
+        return tagId;
+    }
+
+    /**
+     * Build the inverted CSR from the snippet-to-tags relation, with a counting sort.
+     * @return the inverted CSR
+     */
+    private Postings buildPostings() {
+        var starts = new int[tagCount + 1];
+        for (int id = 0; id < size; id++) {
+            if (removed.get(id)) continue;
+            for (int i = offsets[id]; i < offsets[id + 1]; i++) starts[tagRefs[i] + 1]++;
+        }
+        for (int tagId = 0; tagId < tagCount; tagId++) starts[tagId + 1] += starts[tagId];
+
+        var fill = Arrays.copyOf(starts, tagCount);
+        var ids = new int[starts[tagCount]];
+        for (int id = 0; id < size; id++) {
+            if (removed.get(id)) continue;
+            for (int i = offsets[id]; i < offsets[id + 1]; i++) ids[fill[tagRefs[i]]++] = id;
+        }
+        return new Postings(starts, ids);
+    }
+
+    /**
+     * Drop the removed snippets, giving new IDs to the remaining ones.
+     */
+    private void compact() {
+        var newNames = new String[Math.max(16, size - removedCount)];
+        var newOffsets = new int[newNames.length + 1];
+        var newRefs = new int[Math.max(16, offsets[size])];
+        int newSize = 0;
+        int end = 0;
+        for (int id = 0; id < size; id++) {
+            if (removed.get(id)) continue;
+            newNames[newSize] = names[id];
+            newOffsets[newSize] = end;
+            for (int i = offsets[id]; i < offsets[id + 1]; i++) newRefs[end++] = tagRefs[i];
+            newSize++;
+        }
+        newOffsets[newSize] = end;
+
+        names = newNames;
+        offsets = newOffsets;
+        tagRefs = newRefs;
+        size = newSize;
+        removed = new BitSet();
+        removedCount = 0;
+        nameSlots = rehash(new int[nameSlots.length], names);
+        postings = null;
+    }
+
+    /**
+     * Find the slot of a key in an open-addressing table (linear probing).
+     * @param slots the table of IDs + 1
+     * @param keys the keys, by ID
+     * @param key the key to look for
+     * @return the slot holding the key, or the empty slot where it would be inserted
+     */
+    private static int findSlot(int[] slots, String[] keys, String key) {
+        int mask = slots.length - 1;
+        int slot = mix(key.hashCode()) & mask;
+        while (slots[slot] != 0 && !keys[slots[slot] - 1].equals(key)) slot = (slot + 1) & mask;
+        return slot;
+    }
+
+    /**
+     * Rebuild an open-addressing table with twice the capacity needed by its keys.
+     * Only the last ID of a key is kept, which drops the removed duplicates.
+     * @param slots the table of IDs + 1 (only used for its capacity)
+     * @param keys the keys, by ID (null after the last one)
+     * @return the new table
+     */
+    private static int[] rehash(int[] slots, String[] keys) {
+        int count = 0;
+        while (count < keys.length && keys[count] != null) count++;
+        int capacity = Math.max(slots.length, Integer.highestOneBit(Math.max(count, 8)) * 4);
+        var table = new int[capacity];
+        for (int id = 0; id < count; id++) table[findSlot(table, keys, keys[id])] = id + 1;
+        return table;
+    }
+
+    /**
+     * Spread the bits of a hash code (MurmurHash3 finalizer).
+     * @param h the hash code
+     * @return the mixed hash
+     */
+    private static int mix(int h) {
+        h ^= (h >>> 16);
+        h *= 0x85ebca6b;
+        h ^= (h >>> 13);
+        h *= 0xc2b2ae35;
+        return h ^ (h >>> 16);
+    }
+}
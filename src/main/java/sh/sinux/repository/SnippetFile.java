@@ -0,0 +1,257 @@
+package sh.sinux.repository;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * A SnippetFile stores a snippet of a {@link FilesystemRepository} in a single file (format 2 of the repository):
+ * a small header, then the content. A snippet is read with one open and one read, and its tags or signature
+ * with a read of the header only.
+ * <p>
+ * The file is stored as:
+ * <pre>{@code
+ * int magic | byte flags | int header length
+ * header = int crc32 | int content length | int stored length | int tag count | UTF tags...
+ *        | int signature length | signature
+ * content (UTF-8, or compressed with gzip when flagged, see {@link ColdStorage})
+ * }</pre>
+ * The checksum and length are the ones of the content uncompressed: they are checked on every read.
+ * A snippet file is written in the staging directory, then renamed over the previous one, so it's never seen
+ * half-written.
+ * @author sinux-l5d
+ * @since 1.1
+ */
+final class SnippetFile {
+
+    /** Magic number and version of the snippet file format */
+    private static final int MAGIC = 0x534e5032; // "SNP2"
+
+    /** Flag of a compressed content */
+    private static final int COMPRESSED = 1;
+
+    /** Size of the fields before the header */
+    private static final int PREFIX = Integer.BYTES + 1 + Integer.BYTES;
+
+    /** Size of the first read of a header, enough for most of them */
+    private static final int HEADER_READ = 4096;
+
+    /**
+     * The header of a snippet file.
+     * @param compressed true if the content is compressed
+     * @param crc the checksum of the content
+     * @param length the length of the content, in bytes
+     * @param storedLength the length of the content as stored (compressed or not), in bytes
+     * @param tags the tags of the snippet
+     * @param signature the {@link sh.sinux.similarity.MinHash} signature of the content, encoded
+     * @param contentOffset the position of the content in the file
+     */
+    record Header(boolean compressed, int crc, int length, int storedLength, String[] tags, byte[] signature, int contentOffset) {
+    }
+
+    /**
+     * A snippet file read whole.
+     * @param header the header
+     * @param content the content, uncompressed
+     */
+    record Contents(Header header, byte[] content) {
+        /**
+         * Get the content as text.
+         * @return the content, decoded as UTF-8
+         */
+        String text() {
+            return new String(content, StandardCharsets.UTF_8);
+        }
+    }
+
+    /** Not instantiable */
+    private SnippetFile() {
+    }
+
+    /**
+     * Encode a snippet file.
+     * @param content the content of the snippet, as UTF-8
+     * @param tags the tags of the snippet
+     * @param signature the signature of the content, encoded
+     * @param compress true to compress the content
+     * @return the bytes of the file
+     * @throws IOException if the snippet cannot be encoded
+     */
+    static byte[] encode(byte[] content, String[] tags, byte[] signature, boolean compress) throws IOException {
+        var header = new ByteArrayOutputStream(64 + signature.length);
+        var out = new DataOutputStream(header);
+        byte[] stored = content;
+        if (compress) {
+            var compressed = new ByteArrayOutputStream(content.length / 2);
+            try (var gzip = new GZIPOutputStream(compressed)) {
+                gzip.write(content);
+            }
+            stored = compressed.toByteArray();
+        }
+        out.writeInt(History.crc(content));
+        out.writeInt(content.length);
+        out.writeInt(stored.length);
+        out.writeInt(tags.length);
+        for (var tag : tags) out.writeUTF(tag);
+        out.writeInt(signature.length);
+        out.write(signature);
+
+        var buffer = ByteBuffer.allocate(PREFIX + header.size() + stored.length);
+        buffer.putInt(MAGIC).put((byte) (compress ? COMPRESSED : 0)).putInt(header.size());
+        buffer.put(header.toByteArray()).put(stored);
+        return buffer.array();
+    }
+
+    /**
+     * Read the header of a snippet file only.
+     * @param file the snippet file
+     * @return the header
+     * @throws IOException if the file cannot be read, or is not a snippet file
+     */
+    static Header readHeader(Path file) throws IOException {
+        try (var channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            var buffer = ByteBuffer.allocate((int) Math.min(size, HEADER_READ));
+            readFully(channel, buffer, 0);
+            if (buffer.limit() >= PREFIX) {
+                // A header larger than the first read (many tags)
+                long end = PREFIX + (long) buffer.getInt(Integer.BYTES + 1);
+                if (end > buffer.limit() && end <= size) {
+                    buffer = ByteBuffer.allocate((int) end);
+                    readFully(channel, buffer, 0);
+                }
+            }
+            return header(buffer.array(), size);
+        }
+    }
+
+    /**
+     * Read a snippet file whole.
+     * @param file the snippet file
+     * @return the header and the content
+     * @throws IOException if the file cannot be read, or is not a valid snippet file
+     */
+    static Contents read(Path file) throws IOException {
+        return decode(Files.readAllBytes(file));
+    }
+
+    /**
+     * Decode a snippet file read whole.
+     * @param bytes the bytes of the file
+     * @return the header and the content
+     * @throws IOException if the bytes are not a valid snippet file
+     */
+    static Contents decode(byte[] bytes) throws IOException {
+        var header = header(bytes, bytes.length);
+        byte[] content;
+        if (header.compressed()) {
+            try (var in = new GZIPInputStream(new ByteArrayInputStream(bytes, header.contentOffset(), header.storedLength()))) {
+                content = in.readAllBytes();
+            }
+        } else {
+            content = new byte[header.length()];
+            System.arraycopy(bytes, header.contentOffset(), content, 0, Math.min(content.length, header.storedLength()));
+        }
+        if (content.length != header.length() || History.crc(content) != header.crc())
+            throw new IOException("Corrupted snippet content");
+        return new Contents(header, content);
+    }
+
+    /**
+     * Open the content of a snippet file for reading, decoded (and decompressed) as it's read.
+     * @param file the snippet file
+     * @return a reader of the content
+     * @throws IOException if the file cannot be read, or is not a snippet file
+     */
+    static Reader open(Path file) throws IOException {
+        var header = readHeader(file);
+        var channel = FileChannel.open(file, StandardOpenOption.READ);
+        try {
+            channel.position(header.contentOffset());
+            InputStream in = new BufferedInputStream(Channels.newInputStream(channel));
+            if (header.compressed()) in = new GZIPInputStream(in);
+            return new InputStreamReader(in, StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Write a snippet file in the staging directory, then rename it over the snippet file.
+     * @param file the snippet file
+     * @param bytes the bytes of the file, see {@link #encode(byte[], String[], byte[], boolean)}
+     * @param tmpDir the staging directory
+     * @param time the modification time of the file (the time of the version), or -1 for now
+     * @param sync true to sync the file before renaming it (when no journal entry covers the write)
+     * @throws IOException if the file cannot be written
+     */
+    static void write(Path file, byte[] bytes, Path tmpDir, long time, boolean sync) throws IOException {
+        Files.createDirectories(tmpDir);
+        var staging = Files.createTempFile(tmpDir, "snippet-", "");
+        try {
+            try (var channel = FileChannel.open(staging, StandardOpenOption.WRITE)) {
+                var buffer = ByteBuffer.wrap(bytes);
+                while (buffer.hasRemaining()) channel.write(buffer);
+                if (sync) channel.force(false);
+            }
+            if (time >= 0) Files.setLastModifiedTime(staging, FileTime.fromMillis(time));
+            Files.createDirectories(file.getParent());
+            Files.move(staging, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            Files.deleteIfExists(staging);
+            throw e;
+        }
+    }
+
+    /**
+     * Decode a header.
+     * @param bytes the start of the file (at least the header)
+     * @param size the size of the file
+     * @return the header
+     * @throws IOException if the bytes are not the header of a snippet file of this size
+     */
+    private static Header header(byte[] bytes, long size) throws IOException {
+        var in = new DataInputStream(new ByteArrayInputStream(bytes));
+        try {
+            if (in.readInt() != MAGIC) throw new IOException("Not a snippet file");
+            boolean compressed = (in.readByte() & COMPRESSED) != 0;
+            int headerLength = in.readInt();
+            int crc = in.readInt();
+            int length = in.readInt();
+            int storedLength = in.readInt();
+            var tags = new String[in.readInt()];
+            for (int i = 0; i < tags.length; i++) tags[i] = in.readUTF();
+            var signature = in.readNBytes(in.readInt());
+            int contentOffset = PREFIX + headerLength;
+            if (length < 0 || size != (long) contentOffset + storedLength) throw new IOException("Truncated snippet file");
+            return new Header(compressed, crc, length, storedLength, tags, signature, contentOffset);
+        } catch (EOFException | NegativeArraySizeException e) {
+            throw new IOException("Truncated snippet file", e);
+        }
+    }
+
+    /**
+     * Fill a buffer from a position of a channel.
+     * @param channel the channel
+     * @param buffer the buffer to fill
+     * @param position the position to read from
+     * @throws IOException if the channel cannot be read, or ends before the buffer is full
+     */
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position + buffer.position());
+            if (read < 0) throw new EOFException();
+        }
+        buffer.flip();
+    }
+}
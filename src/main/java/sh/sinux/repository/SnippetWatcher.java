@@ -0,0 +1,142 @@
+package sh.sinux.repository;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+/**
+ * The SnippetWatcher watches the snippet files of a {@link FilesystemRepository} with a {@link WatchService},
+ * in a long-lived process, to report the ones changed: the repository then reconciles them
+ * (see {@link FilesystemRepository#reconcile(Collection)}).
+ * The snippets directory and its shard directories are watched (a {@link WatchService} is not recursive),
+ * and the shard directories created later are watched as they appear.
+ * The events are grouped: the names are reported once no event came for {@link #QUIET_MILLIS}.
+ * The changes made by the repository itself are reported too, which the reconciliation finds unchanged.
+ * @author sinux-l5d
+ * @since 1.1
+ */
+class SnippetWatcher {
+
+    /** Time without event after which the names changed are reported */
+    private static final long QUIET_MILLIS = 200;
+
+    /** Reports the names of the snippets changed, or null if events were lost (any snippet may have changed) */
+    private final Consumer<Collection<String>> listener;
+
+    /** The watch service */
+    private final WatchService service;
+
+    /**
+     * Creates a new SnippetWatcher instance, and starts watching the snippets directory.
+     * @param snippetsDir the snippets directory
+     * @param listener reports the names of the snippets changed, or null if any may have changed
+     * @throws IOException if the directories cannot be watched
+     */
+    SnippetWatcher(Path snippetsDir, Consumer<Collection<String>> listener) throws IOException {
+        this.listener = listener;
+        this.service = FileSystems.getDefault().newWatchService();
+        Files.createDirectories(snippetsDir);
+        register(snippetsDir, new HashSet<>());
+    }
+
+    /**
+     * Start reporting the changes, on a daemon thread.
+     */
+    void start() {
+        var thread = new Thread(this::run, "snipit-watch");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Wait for events, and report the names changed, until stopped.
+     */
+    private void run() {
+        try {
+            while (true) {
+                var names = new HashSet<String>();
+                boolean lost = false;
+                var key = service.take();
+                while (key != null) {
+                    lost |= collect(key, names);
+                    key = service.poll(QUIET_MILLIS, TimeUnit.MILLISECONDS);
+                }
+                listener.accept(lost ? null : names);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ClosedWatchServiceException e) {
+            // stopped
+        }
+    }
+
+    /**
+     * Collect the names of the snippets of the events of a directory, and watch the new shard directories.
+     * @param key the key of the directory
+     * @param names the set to fill with the names
+     * @return true if events were lost
+     */
+    private boolean collect(WatchKey key, Collection<String> names) {
+        boolean lost = false;
+        var dir = (Path) key.watchable();
+        for (var event : key.pollEvents()) {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                lost = true;
+                continue;
+            }
+            var path = dir.resolve((Path) event.context());
+            if (!Files.isDirectory(path)) {
+                addName(names, path);
+                continue;
+            }
+            if (event.kind() != StandardWatchEventKinds.ENTRY_CREATE) continue;
+            try {
+                // The snippets written before the directory was watched raise no event
+                register(path, names);
+            } catch (IOException e) {
+                lost = true;
+            }
+        }
+        key.reset();
+        return lost;
+    }
+
+    /**
+     * Add the name of a snippet file, unless it's not a valid snippet name (not a snippet).
+     * @param names the set to fill with the names
+     * @param file the snippet file
+     */
+    private static void addName(Collection<String> names, Path file) {
+        var name = file.getFileName().toString();
+        if (Repository.isValidName(name)) names.add(name);
+    }
+
+    /**
+     * Watch a directory and its subdirectories.
+     * @param dir the directory
+     * @param names the set to fill with the names of the snippets in the directory
+     * @throws IOException if a directory cannot be watched
+     */
+    private void register(Path dir, Collection<String> names) throws IOException {
+        try (Stream<Path> paths = Files.walk(dir)) {
+            for (var path : paths.toList()) {
+                if (Files.isDirectory(path)) {
+                    path.register(service, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE,
+                            StandardWatchEventKinds.ENTRY_MODIFY);
+                } else {
+                    addName(names, path);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,159 @@
+package sh.sinux.repository;
+
+import java.io.File;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Stream;
+
+/**
+ * The storage layout determines where a snippet is stored inside the snippets directory
+ * of a {@link FilesystemRepository}.
+ * <pre>{@code
+ * flat:    snippets/snippet-unique-name/
+ * sharded: snippets/3f/a2/snippet-unique-name/
+ * }</pre>
+ * The sharded layout fans snippets out over two levels of hash-prefix directories (256 x 256),
+ * so no directory holds more than a few entries even with millions of snippets.
+ * @author sinux-l5d
+ * @since 1.1
+ */
+public enum StorageLayout {
+    /** Every snippet directly under the snippets directory (the original layout) */
+    FLAT("flat"),
+    /** Snippets under two levels of hash-prefix directories */
+    SHARDED("sharded");
+
+    /** The name of the layout, as stored in the repository metadata */
+    private final String layoutName;
+
+    /**
+     * Creates a new StorageLayout instance.
+     * @param layoutName the name of the layout
+     */
+    StorageLayout(String layoutName) {
+        this.layoutName = layoutName;
+    }
+
+    /**
+     * Get a layout from its name.
+     * @param name the name of the layout (case-insensitive)
+     * @return the layout
+     * @throws IllegalArgumentException if no layout has this name
+     */
+    public static StorageLayout fromName(String name) throws IllegalArgumentException {
+        for (var layout : values()) {
+            if (layout.layoutName.equalsIgnoreCase(name)) return layout;
+        }
+        throw new IllegalArgumentException("Unknown storage layout: " + name);
+    }
+
+    /**
+     * Resolve the path of a snippet entry, in O(1) whatever the number of snippets.
+     * The entry is always inside the snippets directory: the name is checked first (see {@link Repository#isValidName(String)}).
+     * @param snippetsDir the snippets directory
+     * @param name the unique name of the snippet
+     * @return the path of the snippet entry (which may not exist)
+     * @throws IllegalArgumentException if the name is not a valid snippet name
+     */
+    public Path resolve(Path snippetsDir, String name) throws IllegalArgumentException {
+        if (!Repository.isValidName(name)) throw new IllegalArgumentException("Invalid snippet name: " + name);
+        Path entry;
+        if (this == FLAT) {
+            entry = snippetsDir.resolve(name);
+        } else {
+            var shard = shard(name);
+            entry = snippetsDir.resolve(shard.substring(0, 2)).resolve(shard.substring(2)).resolve(name);
+        }
+        var dir = snippetsDir.normalize();
+        var normalized = entry.normalize();
+        if (!normalized.startsWith(dir) || normalized.equals(dir)) throw new IllegalArgumentException("Invalid snippet name: " + name);
+        return entry;
+    }
+
+    /**
+     * List the names of the snippets stored with this layout.
+     * The shards of the sharded layout are walked in parallel.
+     * Files whose name is not a valid snippet name (see {@link Repository#isValidName(String)}) are not snippets.
+     * @param snippetsDir the snippets directory
+     * @return a list of snippet names
+     */
+    public List<String> listNames(Path snippetsDir) {
+        if (this == FLAT) {
+            String[] snippets = snippetsDir.toFile().list();
+            if (snippets == null) return new ArrayList<>();
+            return Arrays.stream(snippets).filter(Repository::isValidName).toList();
+        }
+        return Arrays.stream(listShards(snippetsDir.toFile()))
+                .parallel()
+                .flatMap(level1 -> Arrays.stream(listShards(level1)))
+                .flatMap(level2 -> {
+                    String[] snippets = level2.list();
+                    return snippets == null ? Stream.<String>empty() : Arrays.stream(snippets);
+                })
+                .filter(Repository::isValidName)
+                .toList();
+    }
+
+    /**
+     * Tells if snippets may have been created, deleted or renamed since a time: a directory holding them
+     * (the snippets directory, or a shard directory) was modified after it.
+     * It costs a stat of each directory, not of each snippet.
+     * @param snippetsDir the snippets directory
+     * @param time the time, in milliseconds since the epoch
+     * @return true if a directory of the snippets was modified after the time
+     */
+    boolean isModifiedSince(Path snippetsDir, long time) {
+        var dir = snippetsDir.toFile();
+        if (dir.lastModified() > time) return true;
+        if (this == FLAT) return false;
+        return Arrays.stream(listShards(dir)).parallel().anyMatch(level1 -> level1.lastModified() > time
+                || Arrays.stream(listShards(level1)).anyMatch(level2 -> level2.lastModified() > time));
+    }
+
+    /**
+     * Tells if a directory is a shard directory (two lowercase hexadecimal characters).
+     * @param dir the directory to test
+     * @return true if it's named like a shard directory
+     */
+    static boolean isShardName(String dir) {
+        return dir.length() == 2 && Character.digit(dir.charAt(0), 16) >= 0 && Character.digit(dir.charAt(1), 16) >= 0
+                && dir.equals(dir.toLowerCase());
+    }
+
+    /**
+     * List the shard subdirectories of a directory.
+     * @param dir the directory to list
+     * @return the shard directories, possibly empty
+     */
+    private static File[] listShards(File dir) {
+        File[] shards = dir.listFiles(file -> file.isDirectory() && isShardName(file.getName()));
+        return shards == null ? new File[0] : shards;
+    }
+
+    /**
+     * Compute the 4 hexadecimal characters shard of a name.
+     * {@link String#hashCode()} is specified by the JLS, so the shard is stable across JVMs.
+     * It is mixed with the MurmurHash3 finalizer, because short names have close hash codes.
+     * @param name the unique name of the snippet
+     * @return the shard, e.g. "3fa2"
+     */
+    private static String shard(String name) {
+        int h = name.hashCode();
+        h ^= (h >>> 16);
+        h *= 0x85ebca6b;
+        h ^= (h >>> 13);
+        h *= 0xc2b2ae35;
+        h ^= (h >>> 16);
+        return String.format("%04x", h & 0xffff);
+    }
+
+    /**
+     * Returns the name of the layout.
+     * @return the name of the layout
+     */
+    public String toString() {
+        return layoutName;
+    }
+}
@@ -0,0 +1,175 @@
+package sh.sinux.repository;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The StripedLock serializes the mutations of a {@link FilesystemRepository} per snippet name,
+ * between the threads of this process and between processes sharing the same storage root.
+ * Names are hashed to a fixed number of stripes: each stripe is a {@link ReentrantLock} in this process,
+ * and a one-byte region of a lock file (locked with {@link FileChannel#tryLock(long, long, boolean)}) for other processes.
+ * Mutations of names in different stripes run in parallel; reads take no lock at all.
+ * @author sinux-l5d
+ * @since 1.1
+ */
+class StripedLock {
+
+    /** Default number of stripes */
+    static final int DEFAULT_STRIPES = 64;
+
+    /** Maximum wait between two attempts to lock the lock file held by another process */
+    private static final long MAX_BACKOFF_MILLIS = 20;
+
+    /**
+     * A held lock, released by {@link #close()}.
+     */
+    interface Held extends AutoCloseable {
+        /** Release the lock */
+        @Override
+        void close();
+    }
+
+    /** The lock file */
+    private final Path file;
+
+    /** The in-process locks, by stripe */
+    private final ReentrantLock[] stripes;
+
+    /** The in-process lock of the counter region, see {@link #lockCounter()} */
+    private final ReentrantLock counter = new ReentrantLock();
+
+    /** The channel of the lock file, opened on first use */
+    private FileChannel channel;
+
+    /**
+     * Creates a new StripedLock instance.
+     * @param file the lock file (created if needed)
+     * @param stripes the number of stripes
+     */
+    StripedLock(Path file, int stripes) {
+        this.file = file;
+        this.stripes = new ReentrantLock[stripes];
+        for (int i = 0; i < stripes; i++) this.stripes[i] = new ReentrantLock();
+    }
+
+    /**
+     * Lock the stripe of a name.
+     * @param name the unique name of the snippet
+     * @return the held lock
+     * @throws UncheckedIOException if the lock file cannot be locked
+     */
+    Held lock(String name) throws UncheckedIOException {
+        int stripe = Math.floorMod(name.hashCode(), stripes.length);
+        return lock(stripe, stripe + 1);
+    }
+
+    /**
+     * Lock every stripe, to run an operation on the whole repository (e.g. a recovery or a migration).
+     * @return the held lock
+     * @throws UncheckedIOException if the lock file cannot be locked
+     */
+    Held lockAll() throws UncheckedIOException {
+        return lock(0, stripes.length);
+    }
+
+    /**
+     * Lock the region of the repository-wide counters (e.g. the generation), which is not a stripe:
+     * it can be locked while holding the stripe of a name.
+     * @return the held lock
+     * @throws UncheckedIOException if the lock file cannot be locked
+     */
+    Held lockCounter() throws UncheckedIOException {
+        return acquire(new ReentrantLock[]{counter}, stripes.length, 1);
+    }
+
+    /**
+     * Lock a range of stripes.
+     * @param from the first stripe (inclusive)
+     * @param to the last stripe (exclusive)
+     * @return the held lock
+     * @throws UncheckedIOException if the lock file cannot be locked
+     */
+    private Held lock(int from, int to) throws UncheckedIOException {
+        return acquire(Arrays.copyOfRange(stripes, from, to), from, to - from);
+    }
+
+    /**
+     * Lock in-process first, then a region of the lock file.
+     * Holding the in-process locks ensures no other thread of this process holds an overlapping file lock.
+     * @param locks the in-process locks, taken in order
+     * @param position the start of the region of the lock file
+     * @param size the size of the region of the lock file
+     * @return the held lock
+     * @throws UncheckedIOException if the lock file cannot be locked
+     */
+    private Held acquire(ReentrantLock[] locks, long position, long size) throws UncheckedIOException {
+        for (var lock : locks) lock.lock();
+        FileLock fileLock;
+        try {
+            fileLock = lockFile(position, size);
+        } catch (IOException e) {
+            unlock(locks);
+            throw new UncheckedIOException("Cannot lock the storage: " + file, e);
+        }
+        return () -> {
+            try {
+                fileLock.release();
+            } catch (IOException ignored) {
+                // released when the channel is closed anyway
+            } finally {
+                unlock(locks);
+            }
+        };
+    }
+
+    /**
+     * Lock a region of the lock file, waiting for other processes to release it.
+     * The lock is polled with {@link FileChannel#tryLock(long, long, boolean)}: a blocking lock would fail
+     * with a false deadlock (EDEADLK), because the system sees a whole process waiting, not a thread.
+     * @param position the start of the region
+     * @param size the size of the region
+     * @return the file lock
+     * @throws IOException if the lock file cannot be locked, or the thread is interrupted
+     */
+    private FileLock lockFile(long position, long size) throws IOException {
+        long backoff = 1;
+        while (true) {
+            var fileLock = channel().tryLock(position, size, false);
+            if (fileLock != null) return fileLock;
+            try {
+                Thread.sleep(backoff);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for the storage lock");
+            }
+            backoff = Math.min(backoff * 2, MAX_BACKOFF_MILLIS);
+        }
+    }
+
+    /**
+     * Release in-process locks, in reverse order.
+     * @param locks the in-process locks
+     */
+    private static void unlock(ReentrantLock[] locks) {
+        for (int i = locks.length - 1; i >= 0; i--) locks[i].unlock();
+    }
+
+    /**
+     * Get the channel of the lock file, opening it if needed.
+     * @return the channel
+     * @throws IOException if the lock file cannot be opened
+     */
+    private synchronized FileChannel channel() throws IOException {
+        if (channel == null) {
+            channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        }
+        return channel;
+    }
+}
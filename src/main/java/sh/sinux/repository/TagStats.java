@@ -0,0 +1,37 @@
+package sh.sinux.repository;
+
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * The usage of a tag, as listed by {@link Repository#tagStats()}.
+ * @param tag the tag
+ * @param count the number of snippets with the tag
+ * @param bytes the total size of the content of these snippets, in bytes
+ * @author sinux-l5d
+ * @since 1.1
+ */
+public record TagStats(String tag, int count, long bytes) {
+
+    /** The most used tags first, then by tag (see {@link Page#ORDER}) */
+    public static final Comparator<TagStats> BY_COUNT = Comparator.comparingInt(TagStats::count).reversed()
+            .thenComparing(TagStats::tag, Page.ORDER);
+
+    /** By tag (see {@link Page#ORDER}) */
+    public static final Comparator<TagStats> BY_TAG = Comparator.comparing(TagStats::tag, Page.ORDER);
+
+    /**
+     * Sum the usage of the same tags, e.g. of several repositories.
+     * @param stats the usage of the tags, with duplicates
+     * @return the usage of each tag, sorted by tag
+     */
+    static List<TagStats> merge(Collection<TagStats> stats) {
+        var merged = new HashMap<String, TagStats>();
+        for (var stat : stats) {
+            merged.merge(stat.tag(), stat, (a, b) -> new TagStats(a.tag(), a.count() + b.count(), a.bytes() + b.bytes()));
+        }
+        return merged.values().stream().sorted(BY_TAG).toList();
+    }
+}
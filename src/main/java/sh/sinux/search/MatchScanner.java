@@ -0,0 +1,111 @@
+package sh.sinux.search;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * The MatchScanner finds the offsets of a query in a text, in a single pass over a {@link Reader},
+ * and gives the matching lines along with their surrounding context lines.
+ * Only the context lines are kept in memory, so large contents are never decoded as a whole.
+ * @author sinux-l5d
+ * @since 1.1
+ */
+public class MatchScanner {
+
+    /**
+     * The offset of a match.
+     * @param line the line of the match (starting at 1)
+     * @param column the column of the match in its line (starting at 0)
+     */
+    public record Match(int line, int column) {
+    }
+
+    /**
+     * A line to print: a matching line, or a context line.
+     * @param number the number of the line (starting at 1)
+     * @param text the text of the line
+     * @param columns the columns of the matches in the line (empty for a context line)
+     */
+    public record Line(int number, String text, int[] columns) {
+        /**
+         * Tells if the line holds a match.
+         * @return true if the line is a matching line, false if it's a context line
+         */
+        public boolean isMatch() {
+            return columns.length > 0;
+        }
+    }
+
+    /** The query to find */
+    private final String query;
+
+    /** Number of context lines before and after each matching line */
+    private final int context;
+
+    /**
+     * Creates a new MatchScanner instance.
+     * @param query the query to find (cannot be empty, nor span several lines)
+     * @param context the number of context lines before and after each matching line
+     */
+    public MatchScanner(String query, int context) {
+        if (query == null || query.isEmpty()) throw new IllegalArgumentException("query cannot be null or empty");
+        if (query.indexOf('\n') >= 0 || query.indexOf('\r') >= 0) throw new IllegalArgumentException("query cannot span several lines");
+        this.query = query;
+        this.context = Math.max(0, context);
+    }
+
+    /**
+     * Scan a text.
+     * @param reader the text to scan, closed once scanned
+     * @param lines receives the matching lines and their context lines, in order
+     * @return the offsets of every match
+     * @throws IOException if the text cannot be read
+     */
+    public List<Match> scan(Reader reader, Consumer<Line> lines) throws IOException {
+        var matches = new ArrayList<Match>();
+        var before = new ArrayDeque<Line>(context);
+        int after = 0; // context lines still to give after the last matching line
+        try (var buffered = reader instanceof BufferedReader b ? b : new BufferedReader(reader)) {
+            String text;
+            int number = 0;
+            while ((text = buffered.readLine()) != null) {
+                number++;
+                var columns = columns(text);
+                if (columns.length > 0) {
+                    for (var column : columns) matches.add(new Match(number, column));
+                    while (!before.isEmpty()) lines.accept(before.poll());
+                    lines.accept(new Line(number, text, columns));
+                    after = context;
+                } else if (after > 0) {
+                    lines.accept(new Line(number, text, columns));
+                    after--;
+                } else if (context > 0) {
+                    if (before.size() == context) before.poll();
+                    before.add(new Line(number, text, columns));
+                }
+            }
+        }
+        return matches;
+    }
+
+    /**
+     * Find the columns of the query in a line (non-overlapping).
+     * @param text the line
+     * @return the columns of the matches, possibly empty
+     */
+    private int[] columns(String text) {
+        int column = text.indexOf(query);
+        if (column < 0) return new int[0];
+        var columns = new ArrayList<Integer>();
+        while (column >= 0) {
+            columns.add(column);
+            column = text.indexOf(query, column + query.length());
+        }
+        return columns.stream().mapToInt(Integer::intValue).toArray();
+    }
+}
@@ -0,0 +1,453 @@
+package sh.sinux.server;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import sh.sinux.Snippet;
+import sh.sinux.repository.Page;
+import sh.sinux.repository.Repository;
+import sh.sinux.repository.SearchMode;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/**
+ * The SnippetServer exposes a {@link Repository} over HTTP, with the JDK built-in HTTP server.
+ * Requests are handled on virtual threads, one per request.
+ * <pre>{@code
+ * GET    /names                    sorted names, one per line (streamed, read by pages)
+ * GET    /names?limit=N&prefix=P&cursor=C a page of the sorted names, the cursor of the next one in X-Snippet-Cursor
+ * GET    /tags                     tags, one per line (streamed)
+ * GET    /tags?stats               usage of the tags, one {@code TAG COUNT BYTES} per line (streamed)
+ * GET    /search?q=QUERY&mode=MODE names of the matching snippets, one per line (streamed)
+ * GET    /snippets/NAME            content, tags in the X-Snippet-Tags header, ETag (If-None-Match gives a 304)
+ * GET    /snippets/NAME?rev=N      the same, for a revision of the snippet
+ * PUT    /snippets/NAME?tag=TAG... save the body as a snippet (201, or 409 if the name is used)
+ * POST   /snippets/NAME?tag=TAG... update the snippet with the body (200, or 404)
+ * GET    /history/NAME             revisions, one {@code NUMBER TIME SIZE TAGS} per line (or 404)
+ * DELETE /snippets/NAME            remove a snippet (204, or 404)
+ * POST   /batch                    get the snippets named in the body, as frames (streamed)
+ * }</pre>
+ * Names and tags in headers and frames are URL-encoded. A request on an invalid snippet name
+ * (see {@link Repository#isValidName(String)}) gives a 400. The body of a batch has one {@code NAME [ETAG]} per line,
+ * and the response one frame per snippet found: {@code NAME TAGS ETAG LENGTH\n} followed by LENGTH bytes
+ * of content and a newline, TAGS being the URL-encoded tags joined by commas. A LENGTH of -1 means that the snippet
+ * matches the ETAG sent (not modified), and the frame has no content.
+ * @author sinux-l5d
+ * @since 1.1
+ */
+public class SnippetServer {
+
+    /** Number of names read at once when streaming all the names */
+    private static final int NAMES_PAGE = 1024;
+
+    /** The repository served */
+    private final Repository repository;
+
+    /** The HTTP server */
+    private final HttpServer server;
+
+    /** The executor handling requests */
+    private final ExecutorService executor;
+
+    /** Makes the changes durable regularly (group commit window) */
+    private final ScheduledExecutorService flusher;
+
+    /** Runs the maintenance of the repository regularly, apart from the flushes it could delay */
+    private final ScheduledExecutorService maintainer;
+
+    /** Time between two maintenances of the repository, which only do what is due */
+    private static final long MAINTAIN_SECONDS = 60;
+
+    /**
+     * Creates a new SnippetServer instance, not started yet.
+     * @param repository the repository to serve
+     * @param address the address to listen to
+     * @throws IOException if the address cannot be bound
+     */
+    public SnippetServer(Repository repository, InetSocketAddress address) throws IOException {
+        this.repository = repository;
+        this.server = HttpServer.create(address, 0);
+        this.executor = Executors.newVirtualThreadPerTaskExecutor();
+        this.flusher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            var thread = new Thread(runnable, "snipit-flush");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.maintainer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            var thread = new Thread(runnable, "snipit-maintain");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        server.setExecutor(executor);
+        server.createContext("/names", exchange -> handle(exchange, "GET", () -> names(exchange)));
+        server.createContext("/tags", exchange -> handle(exchange, "GET", () -> tags(exchange)));
+        server.createContext("/search", exchange -> handle(exchange, "GET", () -> search(exchange)));
+        server.createContext("/snippets/", this::snippet);
+        server.createContext("/history/", exchange -> handle(exchange, "GET", () -> history(exchange)));
+        server.createContext("/batch", exchange -> handle(exchange, "POST", () -> batch(exchange)));
+    }
+
+    /**
+     * Start the server.
+     * The storage is watched for the snippets changed outside the server, which the repository reconciles:
+     * nothing else of the server depends on them.
+     */
+    public void start() {
+        server.start();
+        flusher.scheduleWithFixedDelay(repository::flush, 1, 1, TimeUnit.SECONDS);
+        maintainer.scheduleWithFixedDelay(repository::maintain, MAINTAIN_SECONDS, MAINTAIN_SECONDS, TimeUnit.SECONDS);
+        repository.watch(names -> {
+        });
+    }
+
+    /**
+     * Stop the server, and make the changes durable (see {@link Repository#close()}).
+     * A flush or a maintenance running is waited for rather than interrupted, which would close the files it uses.
+     */
+    public void stop() {
+        server.stop(0);
+        flusher.shutdown();
+        maintainer.shutdown();
+        executor.shutdownNow();
+        try {
+            flusher.awaitTermination(1, TimeUnit.MINUTES);
+            maintainer.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        repository.close();
+    }
+
+    /**
+     * Get the address the server listens to.
+     * @return the address (with the actual port if 0 was asked)
+     */
+    public InetSocketAddress getAddress() {
+        return server.getAddress();
+    }
+
+    /**
+     * Encode a name or a tag for a header, a query or a frame.
+     * @param value the value to encode
+     * @return the URL-encoded value
+     */
+    public static String encode(String value) {
+        return URLEncoder.encode(value, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Decode a name or a tag from a header, a query or a frame.
+     * @param value the URL-encoded value
+     * @return the value
+     */
+    public static String decode(String value) {
+        return URLDecoder.decode(value, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Compute the entity tag of a snippet, which changes when its content or tags change.
+     * @param snippet the snippet
+     * @return the quoted entity tag
+     */
+    public static String etag(Snippet snippet) {
+        var crc = new CRC32();
+        crc.update(snippet.content().getBytes(StandardCharsets.UTF_8));
+        crc.update(0);
+        crc.update(String.join("\n", snippet.tags()).getBytes(StandardCharsets.UTF_8));
+        return "\"" + Long.toHexString(crc.getValue()) + "-" + snippet.content().length() + "\"";
+    }
+
+    /**
+     * A handler which can fail with an IOException.
+     */
+    private interface Handler {
+        /**
+         * Handle the request.
+         * @throws IOException if the response cannot be written
+         */
+        void handle() throws IOException;
+    }
+
+    /**
+     * Check the method of a request, then handle it. Any error gives a 500.
+     * @param exchange the exchange
+     * @param method the expected method
+     * @param handler the handler
+     */
+    private static void handle(HttpExchange exchange, String method, Handler handler) {
+        try (exchange) {
+            if (!exchange.getRequestMethod().equals(method)) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+            handler.handle();
+        } catch (IOException | RuntimeException e) {
+            try {
+                exchange.sendResponseHeaders(500, -1);
+            } catch (IOException | RuntimeException ignored) {
+                // headers already sent, the client sees a truncated response
+            }
+        }
+    }
+
+    /**
+     * Stream lines in a chunked response, URL-encoded.
+     * @param exchange the exchange
+     * @param lines the lines
+     * @throws IOException if the response cannot be written
+     */
+    private static void lines(HttpExchange exchange, Collection<String> lines) throws IOException {
+        lines(exchange, lines.stream(), SnippetServer::encode);
+    }
+
+    /**
+     * Stream lines in a chunked response, written as they are produced. The stream is closed.
+     * @param exchange the exchange
+     * @param values the values of the lines
+     * @param format formats a value as a line
+     * @param <T> the type of the values
+     * @throws IOException if the response cannot be written
+     */
+    private static <T> void lines(HttpExchange exchange, Stream<T> values, Function<T, String> format) throws IOException {
+        try (values) {
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+            exchange.sendResponseHeaders(200, 0);
+            try (var writer = new BufferedWriter(new OutputStreamWriter(exchange.getResponseBody(), StandardCharsets.UTF_8))) {
+                var iterator = values.iterator();
+                while (iterator.hasNext()) {
+                    writer.write(format.apply(iterator.next()));
+                    writer.write('\n');
+                }
+            }
+        }
+    }
+
+    /**
+     * Handle a listing of the names, whole or by page.
+     * @param exchange the exchange
+     * @throws IOException if the response cannot be written
+     */
+    private void names(HttpExchange exchange) throws IOException {
+        var query = query(exchange.getRequestURI());
+        if (!query.containsKey("limit")) {
+            // Page by page, so that the names are written as they are read
+            var pages = Stream.iterate(repository.listNames(null, null, NAMES_PAGE), Objects::nonNull,
+                    page -> page.cursor() == null ? null : repository.listNames(null, page.cursor(), NAMES_PAGE));
+            lines(exchange, pages.flatMap(page -> page.names().stream()), SnippetServer::encode);
+            return;
+        }
+        Page page;
+        try {
+            page = repository.listNames(first(query, "prefix"), first(query, "cursor"), Integer.parseInt(first(query, "limit")));
+        } catch (IllegalArgumentException e) {
+            exchange.sendResponseHeaders(400, -1);
+            return;
+        }
+        if (page.cursor() != null) exchange.getResponseHeaders().set("X-Snippet-Cursor", page.cursor());
+        lines(exchange, page.names());
+    }
+
+    /**
+     * Handle a listing of the tags, with their usage if asked.
+     * @param exchange the exchange
+     * @throws IOException if the response cannot be written
+     */
+    private void tags(HttpExchange exchange) throws IOException {
+        if (!query(exchange.getRequestURI()).containsKey("stats")) {
+            lines(exchange, repository.streamTagStats(), stat -> encode(stat.tag()));
+            return;
+        }
+        lines(exchange, repository.streamTagStats(), stat -> encode(stat.tag()) + " " + stat.count() + " " + stat.bytes());
+    }
+
+    /**
+     * Get the first value of a query parameter.
+     * @param query the query parameters
+     * @param name the name of the parameter
+     * @return the value, or null if the parameter is not given
+     */
+    private static String first(Map<String, List<String>> query, String name) {
+        var values = query.get(name);
+        return values == null ? null : values.get(0);
+    }
+
+    /**
+     * Handle a search.
+     * @param exchange the exchange
+     * @throws IOException if the response cannot be written
+     */
+    private void search(HttpExchange exchange) throws IOException {
+        var query = query(exchange.getRequestURI());
+        var q = query.getOrDefault("q", List.of());
+        if (q.isEmpty()) {
+            exchange.sendResponseHeaders(400, -1);
+            return;
+        }
+        var mode = SearchMode.ALL;
+        for (var candidate : SearchMode.values()) {
+            if (candidate.toString().equals(query.getOrDefault("mode", List.of("all")).get(0))) mode = candidate;
+        }
+        lines(exchange, repository.searchNames(q.get(0), mode));
+    }
+
+    /**
+     * Handle the requests on a single snippet.
+     * @param exchange the exchange
+     */
+    private void snippet(HttpExchange exchange) {
+        var name = decode(exchange.getRequestURI().getRawPath().substring("/snippets/".length()));
+        if (!Repository.isValidName(name)) {
+            handle(exchange, exchange.getRequestMethod(), () -> exchange.sendResponseHeaders(400, -1));
+            return;
+        }
+        switch (exchange.getRequestMethod()) {
+            case "GET" -> handle(exchange, "GET", () -> {
+                var rev = query(exchange.getRequestURI()).get("rev");
+                Snippet snippet;
+                try {
+                    snippet = rev == null ? repository.get(name) : repository.getRevision(name, Integer.parseInt(rev.get(0)));
+                } catch (NumberFormatException e) {
+                    exchange.sendResponseHeaders(400, -1);
+                    return;
+                }
+                if (snippet == null) {
+                    exchange.sendResponseHeaders(404, -1);
+                    return;
+                }
+                var etag = etag(snippet);
+                var headers = exchange.getResponseHeaders();
+                headers.set("ETag", etag);
+                if (etag.equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+                    exchange.sendResponseHeaders(304, -1);
+                    return;
+                }
+                var content = snippet.content().getBytes(StandardCharsets.UTF_8);
+                headers.set("Content-Type", "text/plain; charset=utf-8");
+                headers.set("X-Snippet-Tags", joinTags(snippet.tags()));
+                exchange.sendResponseHeaders(200, content.length == 0 ? -1 : content.length);
+                exchange.getResponseBody().write(content);
+            });
+            case "PUT" -> handle(exchange, "PUT", () -> {
+                var content = new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8);
+                var tags = query(exchange.getRequestURI()).getOrDefault("tag", List.of()).toArray(String[]::new);
+                exchange.sendResponseHeaders(repository.save(name, content, tags) ? 201 : 409, -1);
+            });
+            case "POST" -> handle(exchange, "POST", () -> {
+                var content = new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8);
+                var tags = query(exchange.getRequestURI()).getOrDefault("tag", List.of()).toArray(String[]::new);
+                exchange.sendResponseHeaders(repository.update(name, content, tags) ? 200 : 404, -1);
+            });
+            case "DELETE" -> handle(exchange, "DELETE", () ->
+                    exchange.sendResponseHeaders(repository.remove(name) ? 204 : 404, -1));
+            default -> handle(exchange, "GET", () -> {
+            });
+        }
+    }
+
+    /**
+     * Handle the listing of the revisions of a snippet.
+     * @param exchange the exchange
+     * @throws IOException if the response cannot be written
+     */
+    private void history(HttpExchange exchange) throws IOException {
+        var name = decode(exchange.getRequestURI().getRawPath().substring("/history/".length()));
+        if (!Repository.isValidName(name)) {
+            exchange.sendResponseHeaders(400, -1);
+            return;
+        }
+        var history = repository.history(name);
+        if (history == null) {
+            exchange.sendResponseHeaders(404, -1);
+            return;
+        }
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+        exchange.sendResponseHeaders(200, 0);
+        try (var writer = new BufferedWriter(new OutputStreamWriter(exchange.getResponseBody(), StandardCharsets.UTF_8))) {
+            for (var revision : history) {
+                writer.write(revision.number() + " " + revision.time() + " " + revision.size() + " " + joinTags(revision.tags()) + "\n");
+            }
+        }
+    }
+
+    /**
+     * Handle a batch lookup: the snippets are written as frames, as they are read.
+     * @param exchange the exchange
+     * @throws IOException if the response cannot be written
+     */
+    private void batch(HttpExchange exchange) throws IOException {
+        var etags = new LinkedHashMap<String, String>();
+        new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8).lines().forEach(line -> {
+            if (line.isEmpty()) return;
+            var fields = line.split(" ", 2);
+            etags.put(decode(fields[0]), fields.length > 1 ? decode(fields[1]) : "");
+        });
+        exchange.getResponseHeaders().set("Content-Type", "application/octet-stream");
+        exchange.sendResponseHeaders(200, 0);
+        try (var out = new BufferedOutputStream(exchange.getResponseBody())) {
+            for (var snippet : repository.getAll(etags.keySet())) {
+                var etag = etag(snippet);
+                if (etag.equals(etags.get(snippet.name()))) {
+                    out.write((encode(snippet.name()) + " - " + encode(etag) + " -1\n").getBytes(StandardCharsets.UTF_8));
+                    continue;
+                }
+                var content = snippet.content().getBytes(StandardCharsets.UTF_8);
+                var header = encode(snippet.name()) + " " + joinTags(snippet.tags()) + " " + encode(etag) + " " + content.length + "\n";
+                out.write(header.getBytes(StandardCharsets.UTF_8));
+                out.write(content);
+                out.write('\n');
+            }
+        }
+    }
+
+    /**
+     * Join tags for a header or a frame.
+     * @param tags the tags
+     * @return the URL-encoded tags joined by commas (a lone "-" for no tags, to keep frames splittable)
+     */
+    public static String joinTags(String[] tags) {
+        var joined = String.join(",", Arrays.stream(tags).map(SnippetServer::encode).toList());
+        return joined.isEmpty() ? "-" : joined;
+    }
+
+    /**
+     * Split tags from a header or a frame.
+     * @param joined the tags, as given by {@link #joinTags(String[])}
+     * @return the tags
+     */
+    public static String[] splitTags(String joined) {
+        if (joined == null || joined.isEmpty() || joined.equals("-")) return new String[0];
+        return Arrays.stream(joined.split(",")).map(SnippetServer::decode).toArray(String[]::new);
+    }
+
+    /**
+     * Parse the query parameters of a request.
+     * @param uri the URI of the request
+     * @return the values by parameter name
+     */
+    private static Map<String, List<String>> query(URI uri) {
+        var parameters = new HashMap<String, List<String>>();
+        var raw = uri.getRawQuery();
+        if (raw == null) return parameters;
+        for (var pair : raw.split("&")) {
+            if (pair.isEmpty()) continue;
+            int equals = pair.indexOf('=');
+            var key = decode(equals < 0 ? pair : pair.substring(0, equals));
+            var value = equals < 0 ? "" : decode(pair.substring(equals + 1));
+            parameters.computeIfAbsent(key, k -> new ArrayList<>()).add(value);
+        }
+        return parameters;
+    }
+}
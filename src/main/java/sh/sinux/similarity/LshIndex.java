@@ -0,0 +1,108 @@
+package sh.sinux.similarity;
+
+import java.util.*;
+
+/**
+ * LshIndex finds the pairs of similar items from their {@link MinHash} signatures, in near-linear time.
+ * Signatures are cut in bands, and items sharing a whole band land in the same bucket:
+ * only the items sharing a bucket are compared, instead of every pair.
+ * The number of bands is chosen from the similarity threshold, to rarely miss a similar pair.
+ * @author sinux-l5d
+ * @since 1.1
+ */
+public class LshIndex {
+
+    /**
+     * A pair of similar items.
+     * @param first the first item
+     * @param second the second item
+     * @param similarity the estimated similarity, from 0 to 1
+     */
+    public record Pair(String first, String second, double similarity) {
+    }
+
+    /** The similarity threshold */
+    private final double threshold;
+
+    /** Number of signature values per band */
+    private final int rows;
+
+    /** The items, by ID */
+    private final List<String> items = new ArrayList<>();
+
+    /** The signatures, by item ID */
+    private final List<int[]> signatures = new ArrayList<>();
+
+    /** The item IDs of every bucket, by bucket key */
+    private final Map<Long, List<Integer>> buckets = new HashMap<>();
+
+    /**
+     * Creates a new LshIndex instance.
+     * @param threshold the minimum similarity of the pairs to find, from 0 to 1
+     */
+    public LshIndex(double threshold) {
+        this.threshold = threshold;
+        this.rows = rowsFor(threshold);
+    }
+
+    /**
+     * Add an item to the index.
+     * @param item the item (e.g. a snippet name)
+     * @param signature its signature
+     */
+    public void add(String item, int[] signature) {
+        int id = items.size();
+        items.add(item);
+        signatures.add(signature);
+        for (int band = 0; band < MinHash.SIGNATURE_LENGTH / rows; band++) {
+            long key = band;
+            for (int i = band * rows; i < (band + 1) * rows; i++) key = key * 0x9e3779b97f4a7c15L + signature[i];
+            buckets.computeIfAbsent(key, k -> new ArrayList<>(2)).add(id);
+        }
+    }
+
+    /**
+     * Find the pairs of items whose estimated similarity reaches the threshold.
+     * @return the pairs, the most similar first
+     */
+    public List<Pair> pairs() {
+        var seen = new HashSet<Long>();
+        var pairs = new ArrayList<Pair>();
+        for (var bucket : buckets.values()) {
+            for (int i = 0; i < bucket.size(); i++) {
+                for (int j = i + 1; j < bucket.size(); j++) {
+                    int a = bucket.get(i);
+                    int b = bucket.get(j);
+                    if (!seen.add(((long) a << 32) | b)) continue;
+                    var similarity = MinHash.similarity(signatures.get(a), signatures.get(b));
+                    if (similarity < threshold) continue;
+                    var first = items.get(a);
+                    var second = items.get(b);
+                    pairs.add(first.compareTo(second) <= 0
+                            ? new Pair(first, second, similarity)
+                            : new Pair(second, first, similarity));
+                }
+            }
+        }
+        pairs.sort(Comparator.comparingDouble(Pair::similarity).reversed()
+                .thenComparing(Pair::first)
+                .thenComparing(Pair::second));
+        return pairs;
+    }
+
+    /**
+     * Choose the number of rows per band for a threshold.
+     * Two items become candidates from a similarity of about (1 / bands) ^ (1 / rows):
+     * the largest band size keeping this point well under the threshold is chosen.
+     * @param threshold the similarity threshold
+     * @return the number of rows per band (a divisor of the signature length)
+     */
+    private static int rowsFor(double threshold) {
+        int best = 1;
+        for (int rows = 1; rows <= MinHash.SIGNATURE_LENGTH; rows *= 2) {
+            int bands = MinHash.SIGNATURE_LENGTH / rows;
+            if (Math.pow(1.0 / bands, 1.0 / rows) <= threshold - 0.1) best = rows;
+        }
+        return best;
+    }
+}
@@ -0,0 +1,116 @@
+package sh.sinux.similarity;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.SplittableRandom;
+
+/**
+ * MinHash computes compact signatures of texts, whose agreement estimates the Jaccard similarity
+ * of their sets of shingles (overlapping sequences of characters).
+ * Two snippets with 90% of their shingles in common have about 90% of their signature in common.
+ * @author sinux-l5d
+ * @since 1.1
+ */
+public final class MinHash {
+
+    /** Number of hash functions, i.e. length of a signature */
+    public static final int SIGNATURE_LENGTH = 128;
+
+    /** Length of a shingle, in characters */
+    private static final int SHINGLE_LENGTH = 5;
+
+    /** Multipliers of the hash functions (odd, for a bijective multiplication) */
+    private static final long[] MULTIPLIERS = new long[SIGNATURE_LENGTH];
+
+    /** Increments of the hash functions */
+    private static final long[] INCREMENTS = new long[SIGNATURE_LENGTH];
+
+    static {
+        // Fixed seed: signatures are stored, they must be the same on every run
+        var random = new SplittableRandom(0x536e6970497421L);
+        for (int i = 0; i < SIGNATURE_LENGTH; i++) {
+            MULTIPLIERS[i] = random.nextLong() | 1;
+            INCREMENTS[i] = random.nextLong();
+        }
+    }
+
+    private MinHash() {
+    }
+
+    /**
+     * Compute the signature of a text.
+     * Whitespace runs are collapsed first, so reindented copies are seen as identical.
+     * @param content the text
+     * @return the signature, {@link #SIGNATURE_LENGTH} values
+     */
+    public static int[] signature(String content) {
+        var signature = new int[SIGNATURE_LENGTH];
+        Arrays.fill(signature, Integer.MAX_VALUE);
+        var text = content.strip().replaceAll("\\s+", " ");
+
+        int shingles = Math.max(1, text.length() - SHINGLE_LENGTH + 1);
+        for (int start = 0; start < shingles; start++) {
+            long shingle = hash(text, start, Math.min(text.length(), start + SHINGLE_LENGTH));
+            for (int i = 0; i < SIGNATURE_LENGTH; i++) {
+                int value = (int) ((shingle * MULTIPLIERS[i] + INCREMENTS[i]) >>> 33);
+                if (value < signature[i]) signature[i] = value;
+            }
+        }
+        return signature;
+    }
+
+    /**
+     * Estimate the Jaccard similarity of two texts from their signatures.
+     * @param a the signature of the first text
+     * @param b the signature of the second text
+     * @return the estimated similarity, from 0 to 1
+     */
+    public static double similarity(int[] a, int[] b) {
+        int same = 0;
+        for (int i = 0; i < SIGNATURE_LENGTH; i++) {
+            if (a[i] == b[i]) same++;
+        }
+        return (double) same / SIGNATURE_LENGTH;
+    }
+
+    /**
+     * Encode a signature, to store it.
+     * @param signature the signature
+     * @return the signature as bytes (big-endian)
+     */
+    public static byte[] encode(int[] signature) {
+        var buffer = ByteBuffer.allocate(signature.length * Integer.BYTES);
+        buffer.asIntBuffer().put(signature);
+        return buffer.array();
+    }
+
+    /**
+     * Decode a stored signature.
+     * @param bytes the signature as bytes, see {@link #encode(int[])}
+     * @return the signature, or null if the bytes are not a signature
+     */
+    public static int[] decode(byte[] bytes) {
+        if (bytes.length != SIGNATURE_LENGTH * Integer.BYTES) return null;
+        var signature = new int[SIGNATURE_LENGTH];
+        ByteBuffer.wrap(bytes).asIntBuffer().get(signature);
+        return signature;
+    }
+
+    /**
+     * Hash a shingle (64-bit FNV-1a, then mixed).
+     * @param text the text
+     * @param start the start of the shingle (inclusive)
+     * @param end the end of the shingle (exclusive)
+     * @return the hash of the shingle
+     */
+    private static long hash(String text, int start, int end) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = start; i < end; i++) {
+            h ^= text.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        h ^= (h >>> 33);
+        h *= 0xff51afd7ed558ccdL;
+        return h ^ (h >>> 33);
+    }
+}
@@ -0,0 +1,100 @@
+package sh.sinux.repository;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeSet;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Checks that the {@link CompletionIndex} lists the same names from its delta file as once merged,
+ * and that {@link Page#ORDER} is the order of the UTF-8 bytes.
+ * @author sinux-l5d
+ * @since 1.1
+ */
+class CompletionIndexTest {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void orderIsTheOrderOfTheUtf8Bytes() {
+        // Around the surrogates: U+D7FF, U+E000 and U+FFFD sort before the code points above U+FFFF in UTF-8
+        var chars = new String[]{"a", "b", "\u00E9", "\uD7FF", "\uE000", "\uFFFD", "\uD83D\uDE00", "\uD800\uDC00"};
+        var random = new Random(42);
+        for (int i = 0; i < 10_000; i++) {
+            var a = randomString(random, chars);
+            var b = randomString(random, chars);
+            int expected = Integer.signum(Arrays.compareUnsigned(a.getBytes(StandardCharsets.UTF_8), b.getBytes(StandardCharsets.UTF_8)));
+            assertEquals(expected, Integer.signum(Page.ORDER.compare(a, b)), a + " / " + b);
+        }
+    }
+
+    @Test
+    void namesAreTheSameFromTheDeltaAndOnceMerged() throws Exception {
+        var index = new CompletionIndex(dir);
+        var expected = new TreeSet<>(Page.ORDER);
+        var initial = new ArrayList<CompletionIndex.Change>();
+        for (int i = 0; i < 500; i += 2) {
+            initial.add(CompletionIndex.Change.added("name" + i, new String[]{"even"}, 1));
+            expected.add("name" + i);
+        }
+        index.rebuild(initial, 1);
+
+        var random = new Random(7);
+        long generation = 1;
+        for (int i = 0; i < 2000; i++) {
+            var name = "name" + random.nextInt(600);
+            var tags = new String[]{"tag"};
+            var change = expected.contains(name)
+                    ? new CompletionIndex.Change(name, tags, 1, random.nextBoolean() ? null : tags, 1)
+                    : CompletionIndex.Change.added(name, tags, 1);
+            if (change.addedTags() == null) expected.remove(name);
+            else expected.add(name);
+            index.update(List.of(change), ++generation);
+            if (i % 250 == 0) assertPages(index, expected);
+        }
+        assertPages(index, expected);
+        index.merge();
+        assertPages(index, expected);
+    }
+
+    /**
+     * Check every page of the names of the index, for a few prefixes.
+     * @param index the index
+     * @param expected the names it must list
+     * @throws Exception if the index cannot be read
+     */
+    private static void assertPages(CompletionIndex index, TreeSet<String> expected) throws Exception {
+        for (var prefix : List.of("", "name", "name1", "name55", "other")) {
+            var listed = new ArrayList<String>();
+            String after = null;
+            List<String> page;
+            do {
+                page = index.names(prefix, after, 7);
+                listed.addAll(page);
+                if (!page.isEmpty()) after = page.get(page.size() - 1);
+            } while (page.size() == 7);
+            assertEquals(expected.stream().filter(name -> name.startsWith(prefix)).toList(), listed, prefix);
+        }
+    }
+
+    /**
+     * Build a random string.
+     * @param random the source of randomness
+     * @param chars the pieces of the string
+     * @return the string
+     */
+    private static String randomString(Random random, String[] chars) {
+        var builder = new StringBuilder();
+        for (int i = random.nextInt(4); i >= 0; i--) builder.append(chars[random.nextInt(chars.length)]);
+        return builder.toString();
+    }
+}
@@ -0,0 +1,42 @@
+package sh.sinux.repository;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import sh.sinux.config.Config;
+import sh.sinux.config.StorageType;
+
+import java.nio.file.Path;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Checks that a {@link FilesystemRepository} counts the snippets read one by one, to tier them,
+ * and not the ones read by the scans of every snippet.
+ * @author sinux-l5d
+ * @since 1.1
+ */
+class FilesystemRepositoryAccessTest {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void onlyReadsOneByOneAreCounted() throws Exception {
+        var root = dir.resolve("snippets");
+        var repository = new FilesystemRepository(Config.mount(StorageType.FILESYSTEM, root.toString()));
+        for (var name : new String[]{"shown", "opened", "scanned"}) {
+            repository.save(name, name + " content", new String[]{"tag"});
+        }
+
+        repository.get("shown");
+        repository.openContent("opened").close();
+        repository.getAll(repository.listNames());
+        repository.searchContent("content");
+        repository.searchNames("scan", SearchMode.ALL);
+        repository.flush();
+
+        var stats = new AccessCounter(root.resolve("tiers")).compact(System.currentTimeMillis());
+        assertEquals(Set.of("shown", "opened"), stats.keySet());
+    }
+}
@@ -0,0 +1,237 @@
+package sh.sinux.repository;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import sh.sinux.config.Config;
+import sh.sinux.config.StorageType;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Hammers a {@link FilesystemRepository} with concurrent saves, reads, updates and removes,
+ * from threads of one process and from several processes, and checks that it stays consistent.
+ * Every snippet is saved with a single tag equal to its content, so a snippet read half from a version
+ * and half from another is caught.
+ * @author sinux-l5d
+ * @since 1.1
+ */
+class FilesystemRepositoryStressTest {
+
+    /** The number of threads hammering the repository */
+    private static final int THREADS = 8;
+
+    /** The number of operations of each thread */
+    private static final int OPERATIONS = 1500;
+
+    /** The number of distinct names, small so that the threads collide */
+    private static final int NAMES = 24;
+
+    @TempDir
+    Path dir;
+
+    /**
+     * Open a repository on the temporary directory.
+     * @return the repository
+     */
+    private FilesystemRepository open() {
+        return new FilesystemRepository(Config.mount(StorageType.FILESYSTEM, dir.resolve("snippets").toString()));
+    }
+
+    /**
+     * Run tasks at once, and wait for their results.
+     * @param tasks the tasks
+     * @return the results, in the order of the tasks
+     * @param <T> the type of the results
+     * @throws Exception if a task failed
+     */
+    private static <T> List<T> together(List<Callable<T>> tasks) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(tasks.size());
+        try {
+            var start = new CountDownLatch(1);
+            var futures = new ArrayList<Future<T>>();
+            for (var task : tasks) {
+                futures.add(executor.submit(() -> {
+                    start.await();
+                    return task.call();
+                }));
+            }
+            start.countDown();
+            var results = new ArrayList<T>();
+            for (var future : futures) {
+                results.add(future.get(2, TimeUnit.MINUTES));
+            }
+            return results;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Check that a snippet is whole: its single tag is its content, which starts with its name.
+     * @param repository the repository
+     * @param name the name of the snippet
+     */
+    private static void assertWhole(Repository repository, String name) {
+        var snippet = repository.get(name);
+        if (snippet == null) return;
+        assertEquals(name, snippet.name());
+        assertTrue(snippet.content().startsWith(name + "#"), snippet.content());
+        assertArrayEquals(new String[]{snippet.content()}, snippet.tags());
+    }
+
+    @Test
+    void concurrentSavesOfTheSameNameKeepOne() throws Exception {
+        var repository = open();
+        var tasks = new ArrayList<Callable<Boolean>>();
+        for (int i = 0; i < THREADS * 2; i++) {
+            var content = "same#" + i;
+            tasks.add(() -> repository.save("same", content, new String[]{content}));
+        }
+        var saved = together(tasks).stream().filter(Boolean::booleanValue).count();
+
+        assertEquals(1, saved);
+        assertNotNull(repository.get("same"));
+        assertWhole(repository, "same");
+    }
+
+    @Test
+    void concurrentSaveGetUpdateRemoveStayConsistent() throws Exception {
+        var repository = open();
+        var tasks = new ArrayList<Callable<Integer>>();
+        var done = new AtomicInteger();
+        for (int t = 0; t < THREADS; t++) {
+            int thread = t;
+            tasks.add(() -> {
+                var random = ThreadLocalRandom.current();
+                for (int op = 0; op < OPERATIONS; op++) {
+                    var name = "snippet" + random.nextInt(NAMES);
+                    var content = name + "#" + thread + "#" + op;
+                    switch (random.nextInt(6)) {
+                        case 0 -> repository.save(name, content, new String[]{content});
+                        case 1 -> repository.update(name, content, new String[]{content});
+                        case 2 -> repository.remove(name);
+                        case 3 -> repository.searchNames(name, SearchMode.NAME)
+                                .forEach(found -> assertTrue(found.contains(name), found));
+                        default -> assertWhole(repository, name);
+                    }
+                    if (op % 100 == 0) repository.flush();
+                }
+                return done.incrementAndGet();
+            });
+        }
+        together(tasks);
+        assertEquals(THREADS, done.get());
+        repository.flush();
+
+        var names = repository.listNames().stream().sorted(Page.ORDER).toList();
+        assertEquals(names, repository.listNames(null, null, NAMES * 2).names());
+        assertEquals(scanTagStats(repository, names), repository.tagStats());
+        names.forEach(name -> assertWhole(repository, name));
+    }
+
+    @Test
+    void reopenedRepositoryHasTheSameSnippets() throws Exception {
+        var repository = open();
+        var tasks = new ArrayList<Callable<Integer>>();
+        for (int t = 0; t < THREADS; t++) {
+            int thread = t;
+            tasks.add(() -> {
+                for (int op = 0; op < OPERATIONS / 10; op++) {
+                    var name = "snippet" + thread + "-" + op;
+                    var content = name + "#" + op;
+                    repository.save(name, content, new String[]{content});
+                    if (op % 3 == 0) repository.remove(name);
+                }
+                return thread;
+            });
+        }
+        together(tasks);
+        repository.flush();
+        var before = new TreeMap<String, String>();
+        for (var name : repository.listNames()) {
+            before.put(name, repository.get(name).content());
+        }
+        var stats = repository.tagStats();
+
+        var reopened = open();
+        var after = new TreeMap<String, String>();
+        for (var name : reopened.listNames()) {
+            after.put(name, reopened.get(name).content());
+        }
+        assertEquals(before, after);
+        assertEquals(stats, reopened.tagStats());
+    }
+
+    @Test
+    void concurrentProcessesSavingTheSameNameKeepOne() throws Exception {
+        var file = Files.writeString(dir.resolve("same.txt"), "same#content");
+        var config = Files.createDirectory(dir.resolve("config"));
+        var processes = new ArrayList<Process>();
+        for (int i = 0; i < 4; i++) {
+            processes.add(add(config, file, "same", "t" + i));
+        }
+        int added = 0;
+        for (var process : processes) {
+            assertTrue(process.waitFor(2, TimeUnit.MINUTES), "the process did not end");
+            if (process.exitValue() == 0) added++;
+        }
+        assertEquals(1, added);
+    }
+
+    /**
+     * Start a process of the application adding a snippet.
+     * @param config the configuration directory of the process
+     * @param file the file to add
+     * @param name the name of the snippet
+     * @param tag the tag of the snippet
+     * @return the started process
+     * @throws IOException if the process could not be started
+     */
+    private static Process add(Path config, Path file, String name, String tag) throws IOException {
+        var java = Path.of(System.getProperty("java.home"), "bin", "java").toString();
+        var builder = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"), "sh.sinux.Main",
+                "add", "-n", name, "-t", tag, file.toString());
+        builder.environment().put("XDG_CONFIG_HOME", config.toString());
+        builder.redirectErrorStream(true).redirectOutput(ProcessBuilder.Redirect.DISCARD);
+        return builder.start();
+    }
+
+    /**
+     * Compute the usage of the tags by reading every snippet, to check the aggregates against it.
+     * @param repository the repository
+     * @param names the names of the snippets
+     * @return the usage of each tag, sorted by tag
+     */
+    private static List<TagStats> scanTagStats(Repository repository, List<String> names) {
+        Map<String, TagStats> stats = new HashMap<>();
+        for (var name : names) {
+            var snippet = repository.get(name);
+            long bytes = snippet.content().getBytes(StandardCharsets.UTF_8).length;
+            for (var tag : snippet.tags()) {
+                stats.merge(tag, new TagStats(tag, 1, bytes), (a, b) -> new TagStats(tag, a.count() + 1, a.bytes() + bytes));
+            }
+        }
+        return stats.values().stream().sorted(TagStats.BY_TAG).toList();
+    }
+}
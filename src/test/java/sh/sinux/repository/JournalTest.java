@@ -0,0 +1,69 @@
+package sh.sinux.repository;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Checks that the {@link Journal} gives the entries appended since it was last checked, and all of them
+ * once emptied by a checkpoint, or with a torn entry at the end.
+ * @author sinux-l5d
+ * @since 1.1
+ */
+class JournalTest {
+
+    @TempDir
+    Path dir;
+
+    /**
+     * Append the saves of snippets.
+     * @param journal the journal
+     * @param names the names of the snippets
+     * @throws Exception if the journal cannot be written
+     */
+    private static void save(Journal journal, String... names) throws Exception {
+        for (var name : names) journal.append(new Journal.Entry(Journal.Op.SAVE, name, name + " content", new String[]{"tag"}));
+        journal.sync();
+    }
+
+    /**
+     * Get the names of the entries of the journal appended since it was last checked.
+     * @param journal the journal
+     * @return the names
+     * @throws Exception if the journal cannot be read
+     */
+    private static List<String> unchecked(Journal journal) throws Exception {
+        return journal.recover(journal.checked()).stream().map(Journal.Entry::name).toList();
+    }
+
+    @Test
+    void onlyTheEntriesAppendedSinceTheLastCheckAreGiven() throws Exception {
+        var file = dir.resolve("journal");
+        var journal = new Journal(file, 64);
+        save(journal, "a", "b");
+        assertEquals(List.of("a", "b"), unchecked(journal));
+        journal.markChecked();
+
+        save(journal, "c");
+        journal.append(new Journal.Entry(Journal.Op.ABORT, "c", "", new String[0]));
+        save(journal, "d");
+        // Another process reads the journal, with a torn entry at its end
+        Files.write(file, new byte[]{0, 0, 1}, StandardOpenOption.APPEND);
+        var reopened = new Journal(file, 64);
+        // Without the boot of the system, every entry is checked again
+        var expected = Files.isReadable(Path.of("/proc/sys/kernel/random/boot_id")) ? List.of("d") : List.of("a", "b", "d");
+        assertEquals(expected, unchecked(reopened));
+        assertEquals(List.of("a", "b", "d"), reopened.recover().stream().map(Journal.Entry::name).toList());
+
+        reopened.markChecked();
+        reopened.reset();
+        save(reopened, "e", "f", "g");
+        assertEquals(List.of("e", "f", "g"), unchecked(new Journal(file, 64)));
+    }
+}
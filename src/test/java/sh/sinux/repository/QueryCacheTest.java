@@ -0,0 +1,53 @@
+package sh.sinux.repository;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+/**
+ * Checks that the {@link QueryCache} evicts the least recently used entry, even when the entries are used
+ * by other instances (a process per command) than the ones adding entries.
+ * @author sinux-l5d
+ * @since 1.1
+ */
+class QueryCacheTest {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void hitsOfOtherInstancesKeepAnEntry() {
+        var file = dir.resolve("search");
+        var writer = new QueryCache(file, 2);
+        writer.put(SearchMode.ALL, "a", 1, List.of("a1"));
+        writer.put(SearchMode.ALL, "b", 1, List.of("b1"));
+
+        assertEquals(List.of("a1"), new QueryCache(file, 2).get(SearchMode.ALL, "a", 1));
+        new QueryCache(file, 2).put(SearchMode.ALL, "c", 1, List.of("c1"));
+
+        var reader = new QueryCache(file, 2);
+        assertNull(reader.get(SearchMode.ALL, "b", 1));
+        assertEquals(List.of("a1"), reader.get(SearchMode.ALL, "a", 1));
+        assertEquals(List.of("c1"), reader.get(SearchMode.ALL, "c", 1));
+    }
+
+    @Test
+    void manyHitsRewriteTheCacheFile() {
+        var file = dir.resolve("search");
+        new QueryCache(file, 2).put(SearchMode.NAME, "a", 1, List.of("a1"));
+        new QueryCache(file, 2).put(SearchMode.NAME, "b", 1, List.of("b1"));
+        for (int i = 0; i < 20_000; i++) {
+            assertEquals(List.of("a1"), new QueryCache(file, 2).get(SearchMode.NAME, "a", 1));
+        }
+        new QueryCache(file, 2).put(SearchMode.NAME, "c", 1, List.of("c1"));
+
+        var reader = new QueryCache(file, 2);
+        assertNull(reader.get(SearchMode.NAME, "b", 1));
+        assertEquals(List.of("a1"), reader.get(SearchMode.NAME, "a", 1));
+    }
+}
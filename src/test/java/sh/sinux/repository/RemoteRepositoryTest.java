@@ -0,0 +1,139 @@
+package sh.sinux.repository;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import sh.sinux.Snippet;
+import sh.sinux.config.Config;
+import sh.sinux.config.StorageType;
+import sh.sinux.server.SnippetServer;
+
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Drives a {@link RemoteRepository} against a {@link SnippetServer} serving a {@link FilesystemRepository}
+ * on an ephemeral port of localhost, and checks the conditional requests of its cache.
+ * @author sinux-l5d
+ * @since 1.1
+ */
+class RemoteRepositoryTest {
+
+    @TempDir
+    Path dir;
+
+    /** The server, on an ephemeral port */
+    private SnippetServer server;
+
+    /** The URL of the server */
+    private String url;
+
+    @BeforeEach
+    void start() throws Exception {
+        var storage = new FilesystemRepository(Config.mount(StorageType.FILESYSTEM, dir.resolve("storage").toString()));
+        server = new SnippetServer(storage, new InetSocketAddress("127.0.0.1", 0));
+        server.start();
+        url = "http://127.0.0.1:" + server.getAddress().getPort();
+    }
+
+    @AfterEach
+    void stop() {
+        if (server != null) server.stop();
+    }
+
+    /**
+     * Open a client of the server, with a cache shared by the clients of the test (as by the processes of a user).
+     * @return the client
+     */
+    private RemoteRepository open() {
+        return new RemoteRepository(Config.mount(StorageType.REMOTE, url), dir.resolve("cache"));
+    }
+
+    @Test
+    void saveGetListSearchRemove() {
+        var remote = open();
+        assertTrue(remote.save("hello", "hello world\nsecond line", new String[]{"greeting", "text"}));
+        assertTrue(remote.save("other", "nothing to see", new String[]{"text"}));
+        assertFalse(remote.save("hello", "again", new String[0]));
+        assertFalse(remote.save("../escape", "out", new String[0]));
+
+        var snippet = remote.get("hello");
+        assertNotNull(snippet);
+        assertEquals("hello world\nsecond line", snippet.content());
+        assertArrayEquals(new String[]{"greeting", "text"}, snippet.tags());
+        var tags = open().getAllTags(List.of("hello", "missing"));
+        assertEquals(1, tags.size());
+        assertArrayEquals(new String[]{"greeting", "text"}, tags.get("hello"));
+        assertEquals(url + "/snippets/hello", remote.getLocation("hello"));
+        assertNull(remote.getLocation("missing"));
+
+        assertEquals(List.of("hello", "other"), remote.listNames().stream().sorted().toList());
+        var page = remote.listNames(null, null, 1);
+        assertEquals(List.of("hello"), page.names());
+        assertEquals(List.of("other"), remote.listNames(null, page.cursor(), 1).names());
+        assertEquals(List.of("greeting", "text"), remote.listTags());
+        assertEquals(List.of(new TagStats("greeting", 1, 23), new TagStats("text", 2, 37)), remote.tagStats());
+
+        assertEquals(List.of("hello"), remote.searchNames("world", SearchMode.CONTENT));
+        assertEquals(List.of("other"), remote.searchNames("oth", SearchMode.NAME));
+        assertEquals(List.of("hello"), remote.search("greet", SearchMode.TAGS).stream().map(Snippet::name).toList());
+        assertEquals(List.of("hello", "other"), remote.searchName("").stream().map(Snippet::name).sorted().toList());
+
+        assertTrue(remote.update("hello", "hello again", new String[]{"greeting"}));
+        assertEquals("hello again", open().get("hello").content());
+        assertEquals(2, remote.history("hello").size());
+        assertEquals("hello world\nsecond line", remote.getRevision("hello", 1).content());
+
+        assertTrue(remote.remove("hello"));
+        assertFalse(remote.remove("hello"));
+        assertNull(open().get("hello"));
+        assertEquals(List.of("other"), remote.listNames());
+    }
+
+    @Test
+    void unchangedSnippetsAreNotSentAgain() throws Exception {
+        var remote = open();
+        assertTrue(remote.save("cached", "cached content", new String[]{"tag"}));
+        assertEquals("cached content", remote.get("cached").content());
+
+        // The server answers a request with the entity tag of the snippet with a 304, without the content
+        var client = HttpClient.newHttpClient();
+        var uri = URI.create(url + "/snippets/cached");
+        var response = client.send(HttpRequest.newBuilder(uri).GET().build(), HttpResponse.BodyHandlers.ofString());
+        assertEquals(200, response.statusCode());
+        var etag = response.headers().firstValue("ETag").orElseThrow();
+        var notModified = client.send(HttpRequest.newBuilder(uri).header("If-None-Match", etag).GET().build(),
+                HttpResponse.BodyHandlers.ofString());
+        assertEquals(304, notModified.statusCode());
+        assertEquals("", notModified.body());
+
+        // Another client revalidates its cache, alone or in a batch, and gets the same snippet
+        assertEquals("cached content", open().get("cached").content());
+        var batch = open().getAll(List.of("cached", "missing"));
+        assertEquals(1, batch.size());
+        assertEquals("cached content", batch.get(0).content());
+        assertArrayEquals(new String[]{"tag"}, batch.get(0).tags());
+
+        // A changed snippet is sent again
+        assertTrue(remote.update("cached", "changed content", new String[]{"tag"}));
+        assertEquals("changed content", open().getAll(List.of("cached")).get(0).content());
+
+        // The cache serves the snippets once the server is unreachable
+        server.stop();
+        server = null;
+        assertEquals("changed content", open().get("cached").content());
+    }
+}
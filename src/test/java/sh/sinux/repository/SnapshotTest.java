@@ -0,0 +1,82 @@
+package sh.sinux.repository;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+/**
+ * Checks that the {@link Snapshot} reads the same entries from its delta file as once compacted,
+ * and that a delta file cut by a crash is not taken for a snapshot of the generation.
+ * @author sinux-l5d
+ * @since 1.1
+ */
+class SnapshotTest {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void updatesAreReadBackThroughCompactions() throws Exception {
+        var snapshot = new Snapshot(dir.resolve("snapshot"));
+        snapshot.write(Map.of(), 0);
+        var expected = new HashMap<String, Snapshot.Entry>();
+        for (long generation = 1; generation <= 3000; generation++) {
+            var name = "snippet" + generation % 400;
+            var changes = new HashMap<String, Snapshot.Entry>();
+            if (generation % 7 == 0) {
+                changes.put(name, null);
+                expected.remove(name);
+            } else if (generation % 5 == 0 && expected.containsKey(name)) {
+                // rewritten with the same tags and content: the tags and length are kept
+                var previous = expected.get(name);
+                changes.put(name, new Snapshot.Entry(generation, generation + 1, -1, null));
+                expected.put(name, new Snapshot.Entry(generation, generation + 1, previous.length(), previous.tags()));
+            } else {
+                var entry = new Snapshot.Entry(generation, generation * 2, generation, new String[]{"tag" + generation % 3});
+                changes.put(name, entry);
+                expected.put(name, entry);
+            }
+            snapshot.update(changes, generation - 1, generation);
+            assertEquals(generation, snapshot.generation());
+        }
+        assertEntries(expected, snapshot.read(3000));
+        assertNull(snapshot.read(2999));
+    }
+
+    @Test
+    void cutDeltaIsNotASnapshotOfTheGeneration() throws Exception {
+        var snapshot = new Snapshot(dir.resolve("snapshot"));
+        snapshot.write(Map.of(), 0);
+        snapshot.update(Map.of("a", new Snapshot.Entry(1, 2, 3, new String[]{"x"})), 0, 1);
+        Files.write(dir.resolve("snapshot.delta"), new byte[]{0, 0, 0}, StandardOpenOption.APPEND);
+
+        assertNull(snapshot.read(1));
+        snapshot.update(Map.of("b", new Snapshot.Entry(1, 2, 3, new String[]{"x"})), 1, 2);
+        assertNull(snapshot.read(2));
+    }
+
+    /**
+     * Check the entries of a snapshot.
+     * @param expected the entries it must have
+     * @param actual the entries read
+     */
+    private static void assertEntries(Map<String, Snapshot.Entry> expected, Map<String, Snapshot.Entry> actual) {
+        assertEquals(expected.keySet(), actual.keySet());
+        expected.forEach((name, entry) -> {
+            var read = actual.get(name);
+            assertEquals(entry.modified(), read.modified(), name);
+            assertEquals(entry.size(), read.size(), name);
+            assertEquals(entry.length(), read.length(), name);
+            assertArrayEquals(entry.tags(), read.tags(), name);
+        });
+    }
+}